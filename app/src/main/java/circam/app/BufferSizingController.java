@@ -0,0 +1,128 @@
+package circam.app;
+
+/**
+ * Works out how big the circular buffer should be from what the encoder actually produces.
+ * <p>
+ * CircularEncoderBuffer is initially sized from the requested bit rate and frame rate, but
+ * real encoders overshoot on high-motion scenes and undershoot on static ones.  We track the
+ * measured bytes/sec and packets/sec, and recommend a ring that holds the desired span at
+ * that rate, clamped to the configured memory bounds.
+ * <p>
+ * Rates are measured against presentation time stamps rather than the wall clock, since
+ * the PTS is what defines the span of the buffer.  Each window of WINDOW_USEC is folded
+ * into an exponentially-weighted average, so a single busy second doesn't double the ring.
+ * <p>
+ * Not thread-safe; feed it from the encoder thread.
+ */
+public class BufferSizingController {
+    private static final long WINDOW_USEC = 2000000;
+    private static final float SMOOTHING = 0.25f;
+
+    private final int mDesiredSpanSec;
+    private final int mMinDataBytes;
+    private final int mMaxDataBytes;
+
+    private long mWindowStartUsec = -1;
+    private long mWindowBytes;
+    private int mWindowPackets;
+
+    // Smoothed rates; negative until the first window completes.
+    private float mBytesPerSec = -1;
+    private float mPacketsPerSec = -1;
+
+    /**
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer.
+     * @param minDataBytes Smallest data ring we'll recommend.
+     * @param maxDataBytes Largest data ring we'll recommend.
+     */
+    public BufferSizingController(int desiredSpanSec, int minDataBytes, int maxDataBytes) {
+        if (minDataBytes <= 0 || minDataBytes > maxDataBytes) {
+            throw new IllegalArgumentException("Bad bounds: " + minDataBytes + " - " +
+                    maxDataBytes);
+        }
+        mDesiredSpanSec = desiredSpanSec;
+        mMinDataBytes = CircularEncoderBuffer.roundUpPowerOfTwo(minDataBytes);
+        // Round the upper bound down, so we never go over it.
+        mMaxDataBytes = Math.max(mMinDataBytes, Integer.highestOneBit(maxDataBytes));
+    }
+
+    /**
+     * Records a packet that went into the buffer.
+     */
+    public void onPacket(int size, long ptsUsec) {
+        if (mWindowStartUsec < 0) {
+            mWindowStartUsec = ptsUsec;
+        }
+        mWindowBytes += size;
+        mWindowPackets++;
+
+        long elapsedUsec = ptsUsec - mWindowStartUsec;
+        if (elapsedUsec >= WINDOW_USEC) {
+            float bytesPerSec = mWindowBytes * 1000000f / elapsedUsec;
+            float packetsPerSec = mWindowPackets * 1000000f / elapsedUsec;
+            if (mBytesPerSec < 0) {
+                mBytesPerSec = bytesPerSec;
+                mPacketsPerSec = packetsPerSec;
+            } else {
+                mBytesPerSec += (bytesPerSec - mBytesPerSec) * SMOOTHING;
+                mPacketsPerSec += (packetsPerSec - mPacketsPerSec) * SMOOTHING;
+            }
+            mWindowStartUsec = ptsUsec;
+            mWindowBytes = 0;
+            mWindowPackets = 0;
+        }
+    }
+
+    /**
+     * Returns the measured data rate, in bytes per second, or -1 if we don't know it yet.
+     */
+    public float getBytesPerSec() {
+        return mBytesPerSec;
+    }
+
+    /**
+     * Returns the measured packet rate, in packets per second, or -1 if we don't know it yet.
+     */
+    public float getPacketsPerSec() {
+        return mPacketsPerSec;
+    }
+
+    /**
+     * Returns the data ring size, a power of two, that holds the desired span at the
+     * measured rate.  Only meaningful once getBytesPerSec() is known.
+     * <p>
+     * Rounding up to a power of two already leaves some headroom for spikes, so we don't
+     * add any of our own.
+     */
+    public int getRecommendedDataSize() {
+        long want = (long) (mBytesPerSec * mDesiredSpanSec);
+        want = Math.max(mMinDataBytes, Math.min(mMaxDataBytes, want));
+        return Math.min(mMaxDataBytes, CircularEncoderBuffer.roundUpPowerOfTwo(want));
+    }
+
+    /**
+     * Returns the meta-data ring size for the measured packet rate.  Like the initial
+     * sizing, this over-allocates by 2x, since meta-data is cheap.
+     */
+    public int getRecommendedMetaCount() {
+        return CircularEncoderBuffer.roundUpPowerOfTwo(
+                (long) Math.ceil(mPacketsPerSec * mDesiredSpanSec * 2));
+    }
+
+    /**
+     * Decides whether the buffer should be resized.  We grow as soon as the ring is too small
+     * for the span, but only shrink once it's at least 4x too big, so we don't bounce back
+     * and forth between two sizes.
+     */
+    public boolean shouldResize(CircularEncoderBuffer buffer) {
+        if (mBytesPerSec < 0 || !buffer.isResizable()) {
+            return false;
+        }
+        int dataSize = getRecommendedDataSize();
+        int metaCount = getRecommendedMetaCount();
+        int curDataSize = buffer.getDataCapacity();
+        int curMetaCount = buffer.getMetaCapacity();
+        return dataSize > curDataSize || metaCount > curMetaCount ||
+                dataSize <= curDataSize / 4;
+    }
+}
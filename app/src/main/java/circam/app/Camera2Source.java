@@ -0,0 +1,250 @@
+package circam.app;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CameraSource on camera2, for Lollipop and later.
+ * <p>
+ * The frame rate range is chosen from CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES, limited to
+ * what the stream configuration says the camera can sustain at the chosen size, and locked
+ * in with CONTROL_AE_TARGET_FPS_RANGE on a TEMPLATE_RECORD request.  Opening the device and
+ * configuring the session are asynchronous; they run on a camera thread, and streaming
+ * starts when both the device and the SurfaceTexture are ready.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Source implements CameraSource {
+    private static final String TAG = "Camera2Source";
+
+    private final CameraManager mCameraManager;
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+
+    private Size mSize;
+    private Range<Integer> mFpsRange;
+
+    // Guarded by mLock; the camera callbacks and start() can come from different threads.
+    private final Object mLock = new Object();
+    private CameraDevice mCameraDevice;
+    private CameraCaptureSession mCaptureSession;
+    private Surface mTarget;
+    private boolean mReleased;
+
+    public Camera2Source(Context context) {
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    @SuppressLint("MissingPermission")      // CameraActivity gets it before we're used
+    @Override
+    public int open(int width, int height, int maxFps) {
+        if (mCameraThread != null) {
+            throw new RuntimeException("camera already initialized");
+        }
+        try {
+            String cameraId = getBackFacingCameraId();
+            CameraCharacteristics characteristics =
+                    mCameraManager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            mSize = chooseSize(map.getOutputSizes(SurfaceTexture.class), width, height);
+
+            // Don't ask for more than the camera can deliver at this size.
+            long minFrameNsec = map.getOutputMinFrameDuration(SurfaceTexture.class, mSize);
+            int maxThousandFps = maxFps * 1000;
+            if (minFrameNsec > 0) {
+                maxThousandFps = (int) Math.min(maxThousandFps, 1000000000000L / minFrameNsec);
+            }
+
+            List<int[]> ranges = new ArrayList<>();
+            for (Range<Integer> range : characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)) {
+                ranges.add(new int[] { range.getLower() * 1000, range.getUpper() * 1000 });
+            }
+            int[] range = FpsRanges.chooseRange(ranges, maxThousandFps);
+            mFpsRange = new Range<>(range[0] / 1000, range[1] / 1000);
+            Log.i(TAG, "Camera config: " + mSize + " @" + mFpsRange + "fps");
+
+            mCameraThread = new HandlerThread("Camera2Source");
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+            mCameraManager.openCamera(cameraId, new DeviceCallback(), mCameraHandler);
+            return FpsRanges.expectedThousandFps(range, maxThousandFps);
+        } catch (CameraAccessException cae) {
+            throw new RuntimeException("Unable to open camera", cae);
+        }
+    }
+
+    @Override
+    public void start(SurfaceTexture target) {
+        target.setDefaultBufferSize(mSize.getWidth(), mSize.getHeight());
+        synchronized (mLock) {
+            mTarget = new Surface(target);
+            startSessionLocked();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            if (mCaptureSession != null) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            if (mCameraDevice != null) {
+                mCameraDevice.close();
+                mCameraDevice = null;
+            }
+            if (mTarget != null) {
+                mTarget.release();
+                mTarget = null;
+            }
+        }
+        if (mCameraThread != null) {
+            mCameraThread.quitSafely();
+            mCameraThread = null;
+        }
+    }
+
+    /**
+     * Creates the capture session, once the device is open and we have somewhere to send
+     * the frames.
+     */
+    private void startSessionLocked() {
+        if (mCameraDevice == null || mTarget == null || mCaptureSession != null) {
+            return;
+        }
+        try {
+            mCameraDevice.createCaptureSession(Collections.singletonList(mTarget),
+                    new SessionCallback(), mCameraHandler);
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "createCaptureSession failed", cae);
+        }
+    }
+
+    private String getBackFacingCameraId() throws CameraAccessException {
+        String[] ids = mCameraManager.getCameraIdList();
+        for (String id : ids) {
+            Integer facing = mCameraManager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        if (ids.length == 0) {
+            throw new RuntimeException("No cameras");
+        }
+        Log.d(TAG, "No back-facing camera found; opening default");
+        return ids[0];
+    }
+
+    /**
+     * Picks the output size: the wanted one, in either orientation, if it's there; otherwise
+     * the largest with the same aspect ratio that's no bigger; otherwise the first.
+     */
+    private static Size chooseSize(Size[] sizes, int width, int height) {
+        // Camera sizes are landscape.
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        Size best = null;
+        for (Size size : sizes) {
+            if (size.getWidth() == longSide && size.getHeight() == shortSide) {
+                return size;
+            }
+            if ((long) size.getWidth() * shortSide == (long) size.getHeight() * longSide &&
+                    size.getWidth() <= longSide &&
+                    (best == null || size.getWidth() > best.getWidth())) {
+                best = size;
+            }
+        }
+        if (best == null) {
+            Log.w(TAG, "Unable to set preview size to " + longSide + "x" + shortSide);
+            best = sizes[0];
+        }
+        return best;
+    }
+
+    private class DeviceCallback extends CameraDevice.StateCallback {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            synchronized (mLock) {
+                if (mReleased) {
+                    camera.close();
+                    return;
+                }
+                mCameraDevice = camera;
+                startSessionLocked();
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            Log.w(TAG, "Camera disconnected");
+            closeDevice(camera);
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error " + error);
+            closeDevice(camera);
+        }
+
+        private void closeDevice(CameraDevice camera) {
+            synchronized (mLock) {
+                camera.close();
+                if (mCameraDevice == camera) {
+                    mCameraDevice = null;
+                    mCaptureSession = null;
+                }
+            }
+        }
+    }
+
+    private class SessionCallback extends CameraCaptureSession.StateCallback {
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            synchronized (mLock) {
+                if (mCameraDevice == null || mReleased) {
+                    session.close();
+                    return;
+                }
+                mCaptureSession = session;
+                try {
+                    CaptureRequest.Builder builder =
+                            mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                    builder.addTarget(mTarget);
+                    builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+                    builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+                    session.setRepeatingRequest(builder.build(), null, mCameraHandler);
+                } catch (CameraAccessException cae) {
+                    Log.e(TAG, "Unable to start capture", cae);
+                }
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            Log.e(TAG, "Capture session configuration failed");
+        }
+    }
+}
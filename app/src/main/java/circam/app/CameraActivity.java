@@ -1,21 +1,51 @@
 package circam.app;
 
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.Button;
 import android.widget.FrameLayout;
+import android.widget.Toast;
 
 public class CameraActivity extends AppCompatActivity {
 
     // Variables declarations
     TextureView mPreviewTextureView;
     FrameLayout mPreviewHolder;
-    Button captureBtn, saveBtn;
+    Button captureBtn, saveBtn, streamBtn;
 
     CameraRenderer mCameraRenderer;
 
+    private final CameraRenderer.StreamingCallback mStreamingCallback =
+            new CameraRenderer.StreamingCallback() {
+        @Override
+        public void streamingStarted(final String url) {
+            new AlertDialog.Builder(CameraActivity.this)
+                    .setTitle("Streaming")
+                    .setMessage(url)
+                    .setPositiveButton("Play", new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            Intent view = new Intent(Intent.ACTION_VIEW);
+                            view.setDataAndType(Uri.parse(url), "video/mp4");
+                            startActivity(Intent.createChooser(view, "Play with"));
+                        }
+                    })
+                    .setNegativeButton("Close", null)
+                    .show();
+        }
+
+        @Override
+        public void streamingFailed() {
+            Toast.makeText(CameraActivity.this, "Unable to start streaming", Toast.LENGTH_SHORT).show();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -26,6 +56,7 @@ public class CameraActivity extends AppCompatActivity {
         mPreviewHolder = (FrameLayout) findViewById(R.id.texture_view_holder);
         captureBtn = (Button) findViewById(R.id.capture_btn);
         saveBtn = (Button) findViewById(R.id.save_btn);
+        streamBtn = (Button) findViewById(R.id.stream_btn);
 
         mCameraRenderer = new CameraRenderer(this);
         mPreviewTextureView = new TextureView(this);
@@ -50,6 +81,19 @@ public class CameraActivity extends AppCompatActivity {
 
             }
         });
+        // Streaming is only ever started from here.  Its URL holds the token that keeps
+        // other apps out, so it's shown, or handed to the player the user picks, but never
+        // put anywhere other apps can read it, like the clipboard.
+        streamBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+
+            if (!mCameraRenderer.startStreaming(mStreamingCallback)) {
+                Toast.makeText(CameraActivity.this, "Camera isn't ready", Toast.LENGTH_SHORT).show();
+            }
+
+            }
+        });
 
     }
 }
@@ -2,16 +2,17 @@ package circam.app;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
-import android.hardware.Camera;
+import android.opengl.EGLSurface;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.NonNull;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseIntArray;
+import android.view.Choreographer;
 import android.view.Display;
 import android.view.Surface;
 import android.view.TextureView;
@@ -25,21 +26,15 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
-
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
-
 
 import circam.app.filter.CameraFilter;
-import circam.app.filter.ChromaticAberrationFilter;
+import circam.app.filter.FilterRegistry;
+import circam.app.filter.ShaderFilter;
 
 import static android.content.Context.WINDOW_SERVICE;
 
-public class CameraRenderer implements TextureView.SurfaceTextureListener, Runnable {
+public class CameraRenderer implements TextureView.SurfaceTextureListener, Runnable,
+        SurfaceTexture.OnFrameAvailableListener {
 
     // Camera orientation variables
     private static final int SENSOR_ORIENTATION_DEFAULT_DEGREES = 90;
@@ -63,35 +58,77 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
     private static final String TAG = "Camera-Renderer::::::";
 
 
-    private static final int EGL_OPENGL_ES2_BIT = 4;
-    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
-    private static final int DRAW_INTERVAL = 1000 / 30;
+    private static final int SCHEDULER_REPORT_FRAMES = 300;   // frames between stats logs
 
     private Context mContext;
 
-    private Camera mCamera;
-    private int mCameraId;
+    private CameraSource mCameraSource;
     private SurfaceTexture mSurfaceTexture, mCameraSurfaceTexture;
     private int mCameraTextureId;
     private int mHeight;
     private int mWidth;
 
-    private EGLDisplay eglDisplay;
-    private EGLSurface eglSurface;
-    private EGLContext eglContext;
-    public EGL10 egl10;
+    private EglCore mEglCore;
+    private EGLSurface mEncoderEglSurface;
+    private EGLSurface mPreviewEglSurface;     // the TextureView
+
+    // Each camera frame is filtered once into mFrameBuffer, at the video size, and then
+    // copied to the encoder and the preview.
+    private RenderBuffer mFrameBuffer;
+    private FrameBlitter mFrameBlitter;
 
     private Thread mRenderThread;
+    // Camera frames that have arrived but haven't been rendered yet, and when they arrived.
+    private final Object mFrameLock = new Object();
+    private final long[] mFrameArrivalNsec = new long[8];
+    private int mFramesArrived;
+    private int mFramesTaken;
+
+    // Paces the render loop against frame deadlines and the display's vsync.
+    private RenderScheduler mScheduler;
+    private final Choreographer.FrameCallback mVsyncCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduler.onVsync(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
 
-    private int mSelectedFilterId = 0;
-    private CameraFilter mSelectedCameraFilter;
-    private SparseArray<CameraFilter> mCameraFilterList = new SparseArray<>();
+    // The filter the UI asked for, by FilterRegistry index, and the one the render thread
+    // last passed on.
+    private volatile int mSelectedFilterId = 0;
+    private int mAppliedFilterId = -1;
+    private ShaderFilter mShaderFilter;
+    // From GL setup to the selected filter's first frame; zero once logged.
+    private long mStartupNsec;
 
     CircularEncoder mCircularEncoder;
     private static int VIDEO_WIDTH = 1080;  // dimensions for 720p video
     private static int VIDEO_HEIGHT = 1920;
     private static final int VIDEO_BIT_RATE = 6000000;
-    private static final int DESIRED_PREVIEW_FPS = 15;
+    private static final int MAX_PREVIEW_FPS = 60;
+    private static final int BUFFER_SPAN_SEC = 20;
+    // Longer spans than this keep the circular buffer in a memory-mapped file.
+    private static final int MAX_IN_MEMORY_SPAN_SEC = 30;
+    // Bounds for the in-memory buffer when it's resized to the measured bit rate.
+    private static final int MIN_BUFFER_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_BUFFER_BYTES = 64 * 1024 * 1024;
+    // Sync frames of GOPs older than the buffer, for a low-frame-rate history.  Whichever
+    // limit is reached first applies.
+    private static final int LONG_TAIL_BYTES = 8 * 1024 * 1024;
+    private static final int LONG_TAIL_SPAN_SEC = 300;
+    // Journal of the buffer, so a crash doesn't lose it, if BuildConfig.GOP_JOURNAL.  Five of
+    // these hold 20 sec at 6Mbps, plus one being written.
+    private static final int JOURNAL_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int JOURNAL_SEGMENTS = 6;
+    // How long a save keeps recording after it's asked for.
+    private static final int POST_ROLL_MSEC = 5000;
+    // Live fragmented MP4, for players on this device, at http://127.0.0.1:8087/<token>
+    // once the user asks for it.  The token is pending until the streamer has its port.
+    private static final int STREAMING_PORT = 8087;
+    private String mStreamingToken;
+    private String mStreamingUrl;
+    private StreamingCallback mStreamingCallback;
     private int mCameraPreviewThousandFps;
     private MainHandler mHandler;
 
@@ -112,10 +149,58 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
     public void stopEncoding(){
 
         isRecording = false;
-        mCircularEncoder.saveVideo(createOutputFile());
+        mCircularEncoder.saveVideo(createOutputFile(), POST_ROLL_MSEC);
 
     }
 
+    /**
+     * Hears whether the live stream started.  Called on the main thread.
+     */
+    public interface StreamingCallback {
+        /**
+         * @param url Where to play it.  Anyone with this can watch, so don't publish it.
+         */
+        void streamingStarted(String url);
+
+        void streamingFailed();
+    }
+
+    /**
+     * Starts the live stream, if it isn't already, at a URL with a token new to this session.
+     * It runs until the camera closes.  Call on the main thread.
+     *
+     * @param callback Told the URL once it's streaming, or right away if it already is.
+     * @return false if the encoder isn't running yet.
+     */
+    public boolean startStreaming(StreamingCallback callback) {
+        if (mCircularEncoder == null) {
+            return false;
+        }
+        mStreamingCallback = callback;
+        if (mStreamingUrl != null) {
+            callback.streamingStarted(mStreamingUrl);
+        } else if (mStreamingToken == null) {
+            mStreamingToken = FragmentedMp4Streamer.newToken();
+            mCircularEncoder.enableStreaming(STREAMING_PORT, mStreamingToken);
+        }
+        return true;
+    }
+
+    private void onStreamingStatus(int port) {
+        if (mStreamingToken == null) {
+            // From a session that has since closed.
+            return;
+        }
+        if (port >= 0) {
+            mStreamingUrl = "http://127.0.0.1:" + port + "/" + mStreamingToken;
+            mStreamingCallback.streamingStarted(mStreamingUrl);
+        } else {
+            // Let the user try again.
+            mStreamingToken = null;
+            mStreamingCallback.streamingFailed();
+        }
+    }
+
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
 
@@ -128,15 +213,13 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
         mHeight = -height;
         mWidth = -width;
 
-        openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, DESIRED_PREVIEW_FPS);
-
-        mCamera.setPreviewCallback(new Camera.PreviewCallback() {
-            @Override
-            public void onPreviewFrame(byte[] bytes, Camera camera) {
-                mCircularEncoder.frameAvailableSoon();
+        openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, MAX_PREVIEW_FPS);
 
-            }
-        });
+        Display display = ((WindowManager) mContext.getSystemService(WINDOW_SERVICE)).getDefaultDisplay();
+        mScheduler = new RenderScheduler(RenderScheduler.SYSTEM_CLOCK,
+                1000000000000L / mCameraPreviewThousandFps,
+                (long) (1000000000L / display.getRefreshRate()));
+        Choreographer.getInstance().postFrameCallback(mVsyncCallback);
 
         mHandler = new MainHandler(this);
 
@@ -155,11 +238,16 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
     @Override
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
 
-        mCircularEncoder.shutdown();
+        Choreographer.getInstance().removeFrameCallback(mVsyncCallback);
 
+        // The render thread draws to the encoder's surface, so it stops first.
         releaseRenderer();
 
-        releasePreviewEGL();
+        mCircularEncoder.shutdown();
+        mStreamingToken = null;
+        mStreamingUrl = null;
+        // A clean stop; the journal is only for when we don't get this far.
+        GopJournal.clear(getJournalDir());
 
         releaseCamera();
 
@@ -170,62 +258,211 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {/* EMPTY */}
 
+    // Called when the camera has a new frame for mCameraSurfaceTexture.  The render thread
+    // has no Looper, so this arrives on the main thread; just wake the render thread.
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        synchronized (mFrameLock) {
+            mFrameArrivalNsec[mFramesArrived++ % mFrameArrivalNsec.length] = System.nanoTime();
+            mFrameLock.notify();
+        }
+    }
+
     @Override
     public void run() {
 
         try {
-            mCircularEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, VIDEO_BIT_RATE, mCameraPreviewThousandFps / 1000, 20, mHandler);
+            // If we were killed while recording, save what the journal caught.
+            File journalDir = getJournalDir();
+            if (GopJournal.hasSegments(journalDir)) {
+                // Cleared whatever happens, so a journal we can't recover can't bring us down
+                // on every launch.
+                try {
+                    GopJournal.recover(journalDir, createOutputFile());
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "journal recovery failed", re);
+                } finally {
+                    GopJournal.clear(journalDir);
+                }
+            }
+
+            File bufferFile = null;
+            if (BUFFER_SPAN_SEC > MAX_IN_MEMORY_SPAN_SEC) {
+                bufferFile = new File(mContext.getFilesDir(), "circam_buffer.bin");
+            }
+            // The encoder, and the ring's metadata, are sized for the rate the camera agreed to.
+            int frameRate = (mCameraPreviewThousandFps + 500) / 1000;
+            mCircularEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, VIDEO_BIT_RATE, frameRate, BUFFER_SPAN_SEC, bufferFile, mHandler);
+            if (bufferFile == null) {
+                mCircularEncoder.enableAdaptiveSizing(MIN_BUFFER_BYTES, MAX_BUFFER_BYTES);
+            }
+            mCircularEncoder.enableLongTail(LONG_TAIL_BYTES, LONG_TAIL_SPAN_SEC);
+            if (BuildConfig.GOP_JOURNAL) {
+                mCircularEncoder.enableJournal(journalDir, JOURNAL_SEGMENT_BYTES,
+                        JOURNAL_SEGMENTS);
+            }
         } catch (IOException e) { e.printStackTrace(); }
 
-        initGL(mCircularEncoder.getInputSurface());
+        mStartupNsec = System.nanoTime();
+        ProgramBinaryCache.get(mContext).resetStats();
+        initGL(mCircularEncoder.getInputSurface(), mSurfaceTexture);
+        mFrameBuffer = new RenderBuffer(VIDEO_WIDTH, VIDEO_HEIGHT, GLES20.GL_TEXTURE7);
+        mFrameBlitter = new FrameBlitter(mContext);
 
         loadAllFilters();
 
-        if(mCamera != null) startCameraPreview();
+        if(mCameraSource != null) startCameraPreview();
 
-        // Render loop
+        // Render loop: one pass per camera frame, woken by onFrameAvailable().
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                if (mWidth < 0 && mWidth < 0) GLES20.glViewport(0, 0, mWidth = -mWidth, mHeight = -mHeight);
-
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                mScheduler.beginFrame(waitForFrame());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
 
-                // Update the camera preview texture
-                synchronized (this) {
-                    mCameraSurfaceTexture.updateTexImage();
-                }
+            if (mWidth < 0 && mHeight < 0) {
+                mWidth = -mWidth;
+                mHeight = -mHeight;
+            }
 
-                // Draw camera preview
-                mSelectedCameraFilter.draw(mCameraTextureId, mWidth, mHeight);
+            // The encoder surface is current from here to its swap.
+            mEglCore.makeCurrent(mEncoderEglSurface);
 
-                // Flush
-                GLES20.glFlush();
-                egl10.eglSwapBuffers(eglDisplay, eglSurface);
+            // Update the camera preview texture
+            synchronized (this) {
+                mCameraSurfaceTexture.updateTexImage();
+            }
+            // That bound the camera texture behind the state cache's back.
+            MyGLUtils.GL.invalidateTextures();
+
+            // Run the filter, once
+            applySelectedFilter();
+            mShaderFilter.draw(mCameraTextureId, mFrameBuffer);
+            if (mStartupNsec != 0 && mShaderFilter.isShowingSelected()) {
+                logStartup();
+            }
 
-                Thread.sleep(DRAW_INTERVAL);
+            // Copy it to the encoder.  Tell the encoder before handing it the frame; see
+            // CircularEncoder.frameAvailableSoon().  The frame is stamped with the time the
+            // camera captured it, not when we got around to drawing it.
+            mFrameBlitter.blit(mFrameBuffer, VIDEO_WIDTH, VIDEO_HEIGHT);
+            mCircularEncoder.frameAvailableSoon();
+            long ptsNsec = mCameraSurfaceTexture.getTimestamp();
+            setPresentationTime(mEncoderEglSurface, ptsNsec);
+            mCircularEncoder.frameSubmitted(ptsNsec);
+            mEglCore.swapBuffers(mEncoderEglSurface);
+            mScheduler.encoderFrameDone();
+
+            // Then the preview, if it won't hold up the next frame, at the display's size.
+            if (mScheduler.shouldDrawPreview(framesWaiting())) {
+                mEglCore.makeCurrent(mPreviewEglSurface);
+                mFrameBlitter.blit(mFrameBuffer, mWidth, mHeight);
+                setPresentationTime(mPreviewEglSurface, mScheduler.getPreviewPresentationNsec());
+                mEglCore.swapBuffers(mPreviewEglSurface);
+                mScheduler.previewFrameDone();
+            }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            if (mScheduler.getFrames() % SCHEDULER_REPORT_FRAMES == 0) {
+                Log.d(TAG, mScheduler.getFrames() + " frames, " +
+                        mScheduler.getDeadlineMisses() + " late, encoder pass " +
+                        mScheduler.getEncoderCostNsec() / 1000 + " us; preview " +
+                        mScheduler.getPreviewFrames() + " shown, " +
+                        mScheduler.getPreviewSkippedLate() + " skipped to keep up, " +
+                        mScheduler.getPreviewSkippedVsync() + " skipped for vsync; GL state calls " +
+                        MyGLUtils.GL.getIssued() + " made, " + MyGLUtils.GL.getSkipped() + " skipped");
             }
         }
 
+        mShaderFilter.releasePrograms();
+        mFrameBlitter.release();
         mCameraSurfaceTexture.release();
         GLES20.glDeleteTextures(1, new int[]{mCameraTextureId}, 0);
+        releaseGL();
+
+    }
 
+    /**
+     * Logs how long it took to get the selected filter on screen.  A cold start is one that
+     * had to compile programs, for want of binaries from an earlier run.
+     */
+    private void logStartup() {
+        ProgramBinaryCache programs = ProgramBinaryCache.get(mContext);
+        Log.i(TAG, "startup (" + (programs.getCompiled() > 0 ? "cold" : "warm") + "): " +
+                "filter on screen after " + (System.nanoTime() - mStartupNsec) / 1000000 +
+                " ms; programs " + programs.getLoaded() + " from binaries, " +
+                programs.getCompiled() + " compiled, " +
+                programs.getBuildNsec() / 1000000 + " ms building");
+        mStartupNsec = 0;
+    }
+
+    /**
+     * Waits for a camera frame we haven't rendered yet.
+     *
+     * @return When it arrived, on the System.nanoTime() clock.
+     */
+    private long waitForFrame() throws InterruptedException {
+        synchronized (mFrameLock) {
+            while (mFramesTaken == mFramesArrived) {
+                mFrameLock.wait();
+            }
+            return mFrameArrivalNsec[mFramesTaken++ % mFrameArrivalNsec.length];
+        }
+    }
+
+    /**
+     * Returns the number of camera frames waiting to be rendered.
+     */
+    private int framesWaiting() {
+        synchronized (mFrameLock) {
+            return mFramesArrived - mFramesTaken;
+        }
+    }
+
+    /**
+     * Sets the presentation time of the frame about to be swapped to surface.
+     */
+    private void setPresentationTime(EGLSurface surface, long nsecs) {
+        if (nsecs == 0) {
+            // Some cameras don't stamp their frames.
+            nsecs = System.nanoTime();
+        }
+        mEglCore.setPresentationTime(surface, nsecs);
     }
 
     private void loadAllFilters(){
 
-        // Setup camera filters map
-        mCameraFilterList.append(0, new ChromaticAberrationFilter(mContext));
-        setSelectedFilter(mSelectedFilterId);
+        // Programs compile in the background, on a context sharing ours.
+        mShaderFilter = new ShaderFilter(mContext, mEglCore);
+        mAppliedFilterId = -1;
+
+    }
 
+    /**
+     * Passes a new filter selection to the filter, and has the filters either side of it
+     * loaded, since they're likely next.
+     */
+    private void applySelectedFilter() {
+        int id = mSelectedFilterId;
+        if (id == mAppliedFilterId) {
+            return;
+        }
+        mAppliedFilterId = id;
+        mShaderFilter.select(FilterRegistry.get(id));
+        mShaderFilter.prefetch(FilterRegistry.get(id + 1));
+        mShaderFilter.prefetch(FilterRegistry.get(id - 1));
     }
 
     private void releaseRenderer(){
 
         if (mRenderThread != null && mRenderThread.isAlive()) {
             mRenderThread.interrupt();
+            try {
+                mRenderThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Interrupted waiting for render thread");
+            }
         }
         CameraFilter.release();
 
@@ -233,85 +470,21 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
 
                                  // Camera related defined methods
 
-    private void openCamera(int desiredWidth, int desiredHeight, int desiredFps) {
+    private void openCamera(int desiredWidth, int desiredHeight, int maxFps) {
 
-        if (mCamera != null) {
+        if (mCameraSource != null) {
             throw new RuntimeException("camera already initialized");
         }
 
-        if (mCamera == null) {
-            Log.d(TAG, "No front-facing camera found; opening default");
-            mCamera = Camera.open(getBackFacingCameraID());    // opens first back-facing camera
-        }
-        if (mCamera == null) { throw new RuntimeException("Unable to open camera"); }
-
-        Camera.Parameters parms = mCamera.getParameters();
-
-        setPreviewSize(parms, desiredWidth, desiredHeight);
-        // Try to set the frame rate to a constant value.
-        mCameraPreviewThousandFps = chooseFixedPreviewFps(parms, desiredFps * 1000);
-        // Give the camera a hint that we're recording video.  This can have a big
-        // impact on frame rate.
-        parms.setRecordingHint(true);
-
-        mCamera.setParameters(parms);
-
-        Camera.Size cameraPreviewSize = parms.getPreviewSize();
-        Log.i(TAG, "Camera config: " + cameraPreviewSize.width + "x" + cameraPreviewSize.height + " @" + (mCameraPreviewThousandFps / 1000.0f) + "fps");
-
-        Display display = ((WindowManager)mContext.getSystemService(WINDOW_SERVICE)).getDefaultDisplay();
-        if(display.getRotation() == Surface.ROTATION_0) {
-            mCamera.setDisplayOrientation(90);
-        } else if(display.getRotation() == Surface.ROTATION_270) {
-            mCamera.setDisplayOrientation(180);
-        }
-
-        Toast.makeText(mContext, "Initialized camera", Toast.LENGTH_SHORT).show();
-
-    }
-    // Get fixed FPS
-    public static int chooseFixedPreviewFps(Camera.Parameters parms, int desiredThousandFps) {
-        List<int[]> supported = parms.getSupportedPreviewFpsRange();
-
-        for (int[] entry : supported) {
-            //Log.d(TAG, "entry: " + entry[0] + " - " + entry[1]);
-            if ((entry[0] == entry[1]) && (entry[0] == desiredThousandFps)) {
-                parms.setPreviewFpsRange(entry[0], entry[1]);
-                return entry[0];
-            }
-        }
-
-        int[] tmp = new int[2];
-        parms.getPreviewFpsRange(tmp);
-        int guess;
-        if (tmp[0] == tmp[1]) {
-            guess = tmp[0];
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mCameraSource = new Camera2Source(mContext);
         } else {
-            guess = tmp[1] / 2;     // shrug
+            mCameraSource = new LegacyCameraSource(mContext);
         }
+        mCameraPreviewThousandFps = mCameraSource.open(desiredWidth, desiredHeight, maxFps);
 
-        Log.d(TAG, "Couldn't find match for " + desiredThousandFps + ", using " + guess);
-        return guess;
-    }
-    public static void setPreviewSize(Camera.Parameters parms, int width, int height) {
-        // We should make sure that the requested MPEG size is less than the preferred
-        // size, and has the same aspect ratio.
-        Camera.Size ppsfv = parms.getPreferredPreviewSizeForVideo();
-        if (ppsfv != null) {
-            Log.d(TAG, "Camera preferred preview size for video is " + ppsfv.width + "x" + ppsfv.height);
-        }
-        for (Camera.Size size : parms.getSupportedPreviewSizes()) {
-            if (size.width == width && size.height == height) {
-                parms.setPreviewSize(width, height);
-                return;
-            }
-        }
+        Toast.makeText(mContext, "Initialized camera", Toast.LENGTH_SHORT).show();
 
-        Log.w(TAG, "Unable to set preview size to " + width + "x" + height);
-        if (ppsfv != null) {
-            parms.setPreviewSize(ppsfv.width, ppsfv.height);
-        }
-        // else use whatever the default size is
     }
 
     // Camera preview init
@@ -320,150 +493,49 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
         // Create texture for camera preview
         mCameraTextureId = MyGLUtils.genTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
         mCameraSurfaceTexture = new SurfaceTexture(mCameraTextureId);
+        mCameraSurfaceTexture.setOnFrameAvailableListener(this);
 
         // Start camera preview
-        try {
-            mCamera.setPreviewTexture(mCameraSurfaceTexture);
-            mCamera.startPreview();
-        } catch (IOException ioe) {}
+        mCameraSource.start(mCameraSurfaceTexture);
 
     }
-    // Get Camera orientation
-    private void setCameraOrientation(){
-
-        Display display = ((WindowManager)mContext.getSystemService(WINDOW_SERVICE)).getDefaultDisplay();
-
-        if(display.getRotation() == Surface.ROTATION_0) {
-            mCamera.setDisplayOrientation(90);
-        } else if(display.getRotation() == Surface.ROTATION_270) {
-            mCamera.setDisplayOrientation(180);
-        } else {
-        }
-
-
-    }
-    // Get front camera id
-    private int getFrontFacingCameraID() {
-        int cameraId = -1;
-        // Search for the front facing camera
-        int numberOfCameras = Camera.getNumberOfCameras();
-        for (int i = 0; i < numberOfCameras; i++) {
-            Camera.CameraInfo info = new Camera.CameraInfo();
-            Camera.getCameraInfo(i, info);
-            if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                cameraId = i;
-                break;
-            }
-        }
-        return cameraId;
-    }
-    // Get back camera id
-    private int getBackFacingCameraID() {
-        int cameraId = -1;
-        //Search for the back facing camera
-        //get the number of cameras
-        int numberOfCameras = Camera.getNumberOfCameras();
-        //for every camera check
-        for (int i = 0; i < numberOfCameras; i++) {
-            Camera.CameraInfo info = new Camera.CameraInfo();
-            Camera.getCameraInfo(i, info);
-            if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
-                cameraId = i;
-                break;
-            }
-        }
-        return cameraId;
-    }
-
     private void releaseCamera(){
 
-        if (mCamera != null) {
-            mCamera.stopPreview();
-            mCamera.release();
-            mCamera = null;
+        if (mCameraSource != null) {
+            mCameraSource.release();
+            mCameraSource = null;
         }
 
     }
 
                             // OpenGL methods
 
-    private void initGL(Surface texture) {
-        egl10 = (EGL10) EGLContext.getEGL();
-
-        eglDisplay = egl10.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-
-        if (eglDisplay == EGL10.EGL_NO_DISPLAY) {
-            throw new RuntimeException("eglGetDisplay failed " + android.opengl.GLUtils.getEGLErrorString(egl10.eglGetError()));
-        }
-
-        int[] version = new int[2];
-        if (!egl10.eglInitialize(eglDisplay, version)) {
-            throw new RuntimeException("eglInitialize failed " + android.opengl.GLUtils.getEGLErrorString(egl10.eglGetError()));
-        }
-
-        int[] configsCount = new int[1];
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] configSpec = {
-                EGL10.EGL_RENDERABLE_TYPE,
-                EGL_OPENGL_ES2_BIT,
-                EGL10.EGL_RED_SIZE, 8,
-                EGL10.EGL_GREEN_SIZE, 8,
-                EGL10.EGL_BLUE_SIZE, 8,
-                EGL10.EGL_ALPHA_SIZE, 8,
-                EGL10.EGL_DEPTH_SIZE, 0,
-                EGL10.EGL_STENCIL_SIZE, 0,
-                EGL10.EGL_NONE
-        };
-
-        EGLConfig eglConfig = null;
-        if (!egl10.eglChooseConfig(eglDisplay, configSpec, configs, 1, configsCount)) {
-            throw new IllegalArgumentException("eglChooseConfig failed " + android.opengl.GLUtils.getEGLErrorString(egl10.eglGetError()));
-        } else if (configsCount[0] > 0) {
-            eglConfig = configs[0];
-        }
-        if (eglConfig == null) {
-            throw new RuntimeException("eglConfig not initialized");
-        }
-
-        int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
-
-        eglContext = egl10.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
-        eglSurface = egl10.eglCreateWindowSurface(eglDisplay, eglConfig, texture, null);
-
-        if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
-            int error = egl10.eglGetError();
-            if (error == EGL10.EGL_BAD_NATIVE_WINDOW) {
-                Log.e(TAG, "eglCreateWindowSurface returned EGL10.EGL_BAD_NATIVE_WINDOW");
-                return;
-            }
-            throw new RuntimeException("eglCreateWindowSurface failed " +
-                    android.opengl.GLUtils.getEGLErrorString(error));
-        }
-
-        if (!egl10.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
-            throw new RuntimeException("eglMakeCurrent failed " +
-                    android.opengl.GLUtils.getEGLErrorString(egl10.eglGetError()));
-        }
+    private void initGL(Surface encoderSurface, SurfaceTexture previewSurface) {
+        mEglCore = new EglCore();
+        // Both outputs share the context, so the filtered frame can be drawn to either.
+        mPreviewEglSurface = mEglCore.createWindowSurface(previewSurface);
+        mEncoderEglSurface = mEglCore.createWindowSurface(encoderSurface);
+        mEglCore.makeCurrent(mEncoderEglSurface);
+        MyGLUtils.GL.invalidate();
     }
 
-    public void releasePreviewEGL() {
-        if (eglDisplay != egl10.EGL_NO_DISPLAY) {
-            // Android is unusual in that it uses a reference-counted EGLDisplay.  So for
-            // every eglInitialize() we need an eglTerminate().
-            egl10.eglMakeCurrent(eglDisplay, egl10.EGL_NO_SURFACE, egl10.EGL_NO_SURFACE, egl10.EGL_NO_CONTEXT);
-            egl10.eglDestroyContext(eglDisplay, eglContext);
-            egl10.eglTerminate(eglDisplay);
-        }
-
-        eglDisplay = egl10.EGL_NO_DISPLAY;
-        eglContext = egl10.EGL_NO_CONTEXT;
+    private void releaseGL() {
+        mEglCore.releaseSurface(mEncoderEglSurface);
+        mEglCore.releaseSurface(mPreviewEglSurface);
+        mEglCore.release();
+        mEglCore = null;
     }
 
+    /**
+     * Selects a filter by its FilterRegistry index.  The render thread switches to it once its
+     * program is ready; until then it keeps drawing the current one.
+     */
     public void setSelectedFilter(@NonNull int id) {
         mSelectedFilterId = id;
-        mSelectedCameraFilter = mCameraFilterList.get(id);
-        if (mSelectedCameraFilter != null)
-            mSelectedCameraFilter.onAttach();
+    }
+
+    private File getJournalDir() {
+        return new File(mContext.getFilesDir(), "journal");
     }
 
     private File createOutputFile(){
@@ -481,6 +553,8 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
         public static final int MSG_FRAME_AVAILABLE = 1;
         public static final int MSG_FILE_SAVE_COMPLETE = 2;
         public static final int MSG_BUFFER_STATUS = 3;
+        public static final int MSG_FILE_SAVE_PROGRESS = 4;
+        public static final int MSG_STREAMING_STATUS = 5;
 
         private WeakReference<CameraRenderer> mWeakActivity;
 
@@ -488,10 +562,16 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
             mWeakActivity = new WeakReference<CameraRenderer>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        // CircularEncoder.Callback, called on writer thread
+        @Override
+        public void fileSaveProgress(File outputFile, int framesWritten, int totalFrames) {
+            sendMessage(obtainMessage(MSG_FILE_SAVE_PROGRESS, framesWritten, totalFrames, outputFile));
+        }
+
+        // CircularEncoder.Callback, called on writer thread
         @Override
-        public void fileSaveComplete(int status) {
-            sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
+        public void fileSaveComplete(File outputFile, int status) {
+            sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, outputFile));
         }
 
         // CircularEncoder.Callback, called on encoder thread
@@ -501,6 +581,12 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
                     (int) (totalTimeMsec >> 32), (int) totalTimeMsec));
         }
 
+        // CircularEncoder.Callback, called on encoder thread
+        @Override
+        public void streamingStatus(int port) {
+            sendMessage(obtainMessage(MSG_STREAMING_STATUS, port, 0));
+        }
+
 
         @Override
         public void handleMessage(Message msg) {
@@ -527,6 +613,17 @@ public class CameraRenderer implements TextureView.SurfaceTextureListener, Runna
                     //TODO Do something
                     break;
                 }
+                case MSG_FILE_SAVE_PROGRESS: {
+                    // During a post-roll the total is an estimate.
+                    File file = (File) msg.obj;
+                    Log.d(TAG, "saving " + file.getName() + ": " + msg.arg1 + " of " +
+                            msg.arg2 + " frames");
+                    break;
+                }
+                case MSG_STREAMING_STATUS: {
+                    activity.onStreamingStatus(msg.arg1);
+                    break;
+                }
                 default:
                     throw new RuntimeException("Unknown message " + msg.what);
             }
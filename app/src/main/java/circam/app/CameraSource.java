@@ -0,0 +1,32 @@
+package circam.app;
+
+import android.graphics.SurfaceTexture;
+
+/**
+ * A camera that streams frames into a SurfaceTexture.
+ * <p>
+ * The renderer only needs frames at a steady rate, so this is all it sees of the camera API.
+ * Call open() from the main thread, then start() once the SurfaceTexture exists; frames are
+ * announced through the SurfaceTexture's OnFrameAvailableListener.
+ */
+public interface CameraSource {
+    /**
+     * Opens the back-facing camera and negotiates its output.
+     *
+     * @param width Wanted frame width.  The nearest size the camera supports is used.
+     * @param height Wanted frame height.
+     * @param maxFps Highest frame rate wanted.
+     * @return The frame rate the camera will deliver, in frames per 1000 seconds.
+     */
+    int open(int width, int height, int maxFps);
+
+    /**
+     * Starts streaming frames into the SurfaceTexture.  May be called from any thread.
+     */
+    void start(SurfaceTexture target);
+
+    /**
+     * Stops streaming and closes the camera.
+     */
+    void release();
+}
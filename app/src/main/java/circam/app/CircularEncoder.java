@@ -16,10 +16,12 @@
 
 package circam.app;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -30,6 +32,13 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Encodes video in a fixed-size circular buffer.
@@ -45,8 +54,21 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we pin the buffered frames so they can't be evicted,
+ * and hand them to a writer thread, which writes them out with {@link Mp4Writer}.  The
+ * encoder thread keeps draining the codec in the meantime.  Several saves, e.g. "the last
+ * 5 seconds" and "the last 20 seconds", can run at once; they all read from the same
+ * buffer.  A save can also have a post-roll, in which case the writer goes on to follow the
+ * encoder and append new frames until the post-roll is over.
+ * <p>
+ * Optionally, the sync frames of GOPs that fall out of the buffer are kept in a "long tail"
+ * (see {@link #enableLongTail(int, int)}).  A save that reaches back past the buffer then
+ * starts with those, one frame per GOP, and carries on at the full frame rate from the
+ * oldest buffered frame.
+ * <p>
+ * The buffer can also be journaled to files as it fills (see {@link #enableJournal}), so
+ * that if the process dies, {@link GopJournal#recover} can rebuild the last stretch of
+ * video on the next start.
  */
 public class CircularEncoder {
     private static final String TAG = "Circular Encoder";
@@ -54,22 +76,48 @@ public class CircularEncoder {
 
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
+    private static final int MAX_CONCURRENT_SAVES = 2;
+    private static final int PROGRESS_INTERVAL = 30;        // frames between progress reports
+    private static final long FOLLOW_POLL_NSEC = 100 * 1000000L;  // post-roll wait, at most
+    private static final long FOLLOW_TIMEOUT_NSEC = 2000 * 1000000L;  // no frames: give up
+    // Take encoder output from MediaCodec callbacks as soon as it's ready, rather than
+    // polling for it when the next frame comes along.  Needs API 23; older devices poll.
+    private static final boolean ASYNC_OUTPUT = true;
+    private static final int LATENCY_REPORT_PACKETS = 300;  // packets between latency logs
+    // Frames the encoder can fall behind by before we lose track of when they went in.
+    private static final int SUBMIT_TIMES = 64;
 
     private EncoderThread mEncoderThread;
+    private ExecutorService mWriterPool;
+    private ExecutorService mFollowerPool;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private File mBufferFile;
+    private final SubmitTimes mSubmitTimes = new SubmitTimes(SUBMIT_TIMES);
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
      */
     public interface Callback {
         /**
-         * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * Called periodically while a save is being written.  Called on a writer thread.
          *
+         * @param outputFile The file passed to saveVideo() or saveRange().
+         * @param framesWritten Frames written so far.
+         * @param totalFrames Frames that will be written in all.  During a post-roll this
+         *     is an estimate.
+         */
+        void fileSaveProgress(File outputFile, int framesWritten, int totalFrames);
+
+        /**
+         * Called some time after saveVideo() or saveRange(), when all data has been written
+         * to the output file.  Called on a writer thread, or on the encoder thread if the
+         * save couldn't be started.
+         *
+         * @param outputFile The file passed to saveVideo() or saveRange().
          * @param status Zero means success, nonzero indicates failure.
          */
-        void fileSaveComplete(int status);
+        void fileSaveComplete(File outputFile, int status);
 
         /**
          * Called occasionally.
@@ -77,6 +125,14 @@ public class CircularEncoder {
          * @param totalTimeMsec Total length, in milliseconds, of buffered video.
          */
         void bufferStatus(long totalTimeMsec);
+
+        /**
+         * Called once streaming, asked for with enableStreaming(), has started or failed to.
+         * Called on the encoder thread.
+         *
+         * @param port The port viewers can connect to, or -1 if it couldn't be opened.
+         */
+        void streamingStatus(int port);
     }
 
     /**
@@ -89,6 +145,17 @@ public class CircularEncoder {
      * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec, Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, null, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param bufferFile If non-null, the circular buffer is kept in a memory-mapped file at
+     *     this location instead of in direct memory.  Use this for long spans.  The file is
+     *     deleted by shutdown().
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec, File bufferFile, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -101,7 +168,13 @@ public class CircularEncoder {
         if (desiredSpanSec < IFRAME_INTERVAL * 2) {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec + " vs. " + (IFRAME_INTERVAL * 2));
         }
-        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec);
+        CircularEncoderBuffer encBuffer;
+        if (bufferFile != null) {
+            encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec, bufferFile);
+            mBufferFile = bufferFile;
+        } else {
+            encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec, true);
+        }
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -114,19 +187,50 @@ public class CircularEncoder {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
+        mWriterPool = Executors.newFixedThreadPool(MAX_CONCURRENT_SAVES);
+        // Saves with a post-roll run until the post-roll is over, so they get threads of
+        // their own rather than holding up the saves queued behind them.
+        mFollowerPool = Executors.newCachedThreadPool();
 
-        // Start the encoder thread last.  That way we're sure it can see all of the state
-        // we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
+        // Start the encoder thread before configuring the codec, since in async mode the
+        // codec's callbacks have to be pointed at the thread's Handler first.  The thread
+        // doesn't touch the codec until a message or callback arrives through that Handler,
+        // and by then the codec has been started.
+        mEncoderThread = new EncoderThread(mEncoder, encBuffer, desiredSpanSec, mWriterPool,
+                mFollowerPool, mSubmitTimes, cb);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
+        try {
+            if (ASYNC_OUTPUT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mEncoderThread.useAsyncOutput();
+            }
 
+            // Configure the encoder with our format.  Get a Surface we can use for input and
+            // wrap it with a class that handles the EGL work.
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mEncoder.createInputSurface();
+            mEncoder.start();
+        } catch (RuntimeException re) {
+            // Nobody will call shutdown() on an object that was never made, so undo what's
+            // been started here.  The thread hasn't touched the codec yet.
+            Log.w(TAG, "unable to start encoder", re);
+            Handler handler = mEncoderThread.getHandler();
+            handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SHUTDOWN));
+            try {
+                mEncoderThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Encoder thread join() was interrupted", ie);
+            }
+            mWriterPool.shutdownNow();
+            mFollowerPool.shutdownNow();
+            if (mInputSurface != null) {
+                mInputSurface.release();
+            }
+            mEncoder.release();
+            deleteBufferFile();
+            throw re;
+        }
     }
 
     /**
@@ -152,16 +256,39 @@ public class CircularEncoder {
             Log.w(TAG, "Encoder thread join() was interrupted", ie);
         }
 
+        // Let any saves in progress finish.  The encoder thread has told post-rolls to stop.
+        mWriterPool.shutdown();
+        mFollowerPool.shutdown();
+        try {
+            mWriterPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            mFollowerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Writer thread join() was interrupted", ie);
+        }
+
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
         }
+        // Nothing reads the ring any more.  The mapping, and so the disk space, lasts until
+        // the buffer is collected, but the file is gone from the app's directory now.
+        deleteBufferFile();
+    }
+
+    private void deleteBufferFile() {
+        if (mBufferFile != null && !mBufferFile.delete()) {
+            Log.w(TAG, "unable to delete " + mBufferFile);
+        }
+        mBufferFile = null;
     }
 
     /**
      * Notifies the encoder thread that a new frame will shortly be provided to the encoder.
      * <p>
+     * In async mode the output is taken as soon as the codec has it, so this only drives
+     * the periodic buffer status and resizing.  Otherwise:
+     * <p>
      * There may or may not yet be data available from the encoder output.  The encoder
      * has a fair mount of latency due to processing, and it may want to accumulate a
      * few additional buffers before producing output.  We just need to drain it regularly
@@ -178,18 +305,204 @@ public class CircularEncoder {
         handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
     }
 
+    /**
+     * Notes that the frame with this presentation time is being handed to the encoder now.
+     * Call just before swapping the input surface's buffers; the encoder's latency is
+     * measured from here.  Doesn't allocate.
+     *
+     * @param ptsNsec The presentation time set on the input surface.
+     */
+    public void frameSubmitted(long ptsNsec) {
+        mSubmitTimes.put(ptsNsec / 1000, System.nanoTime());
+    }
+
+    /**
+     * Lets the circular buffer grow and shrink to hold the requested span at the bit rate
+     * the encoder actually produces, rather than the one we asked for.  Has no effect on a
+     * file-backed buffer.
+     *
+     * @param minBytes Smallest size for the encoded data buffer.
+     * @param maxBytes Largest size for the encoded data buffer.
+     */
+    public void enableAdaptiveSizing(int minBytes, int maxBytes) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_ENABLE_ADAPTIVE_SIZING,
+                minBytes, maxBytes));
+    }
+
+    /**
+     * Keeps the sync frames of GOPs that are evicted from the circular buffer, for a
+     * low-frame-rate history reaching further back than the buffer does.  saveVideo() and
+     * saveRange() include them ahead of the full-rate frames.
+     *
+     * @param maxBytes Memory to set aside for the extra sync frames.
+     * @param maxSpanSec How far back to keep them, in seconds.
+     */
+    public void enableLongTail(int maxBytes, int maxSpanSec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_ENABLE_LONG_TAIL,
+                maxBytes, maxSpanSec / IFRAME_INTERVAL));
+    }
+
+    /**
+     * Starts writing each completed GOP to a journal in dir, which must not hold a journal
+     * that still needs recovering.  The writing happens on a journal thread; the encoder
+     * thread only hands over sequence numbers.  The journal is closed by shutdown().
+     *
+     * @param segmentBytes Size of each journal segment file.
+     * @param maxSegments How many segments to keep.
+     */
+    public void enableJournal(File dir, int segmentBytes, int maxSegments) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_ENABLE_JOURNAL,
+                segmentBytes, maxSegments, dir));
+    }
+
+    /**
+     * Streams the buffer as fragmented MP4 to HTTP clients on the loopback interface, one
+     * fragment per GOP.  New viewers get everything from the oldest sync frame in the
+     * buffer first.  Viewers that can't keep up skip ahead a GOP at a time; the encoder
+     * never waits for them.  Streaming starts once the encoder's output format is known, and
+     * is stopped by shutdown().
+     * <p>
+     * Other apps can reach the loopback interface too, so viewers must ask for /token.
+     * The callback's streamingStatus() says whether it worked.  If it didn't, this can be
+     * called again.
+     *
+     * @param port Loopback port to listen on.
+     * @param token See {@link FragmentedMp4Streamer#newToken()}.
+     */
+    public void enableStreaming(int port, String token) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_ENABLE_STREAMING,
+                port, 0, token));
+    }
+
     /**
      * Initiates saving the currently-buffered frames to the specified output file.  The
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * If the long tail is enabled, the file starts with its sync frames, at their original
+     * presentation times, so the older part plays back as a slide show.
+     * <p>
+     * The file generation is performed on a separate writer thread, so the encoder keeps
+     * draining while it runs.  The encoder never waits for it: if the buffer fills up to the
+     * oldest frame being saved before the save has written it, the frame is overwritten and
+     * the save fails; see {@link CircularEncoderBuffer#getRevokedPinCount()}.
      */
     public void saveVideo(File outputFile) {
+        saveRange(outputFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like saveVideo(File), but keeps recording for a while after the request: once the
+     * buffered frames have been written, the writer follows the encoder and appends each
+     * new frame as it arrives, until postRollMsec after the newest frame buffered at the
+     * time of the request.  The callback's fileSaveComplete() is called when that's done.
+     * <p>
+     * The buffered frames are pinned only until they've been written.  The new frames are
+     * read without pinning; if the writer falls so far behind that the buffer wraps around
+     * on it, the file ends early.  Shutting the encoder down ends it early too, as does the
+     * encoder producing nothing for a couple of seconds.
+     */
+    public void saveVideo(File outputFile, int postRollMsec) {
         Handler handler = mEncoderThread.getHandler();
-        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, Long.MIN_VALUE, Long.MAX_VALUE,
+                        postRollMsec * 1000L)));
+    }
+
+    /**
+     * Initiates saving part of the buffered video to the specified output file.  Like
+     * saveVideo(), the call returns immediately, and the callback will be notified of
+     * progress and completion.
+     * <p>
+     * Times are presentation time stamps, in microseconds.  For Surface input these are on
+     * the System.nanoTime() clock.  The file starts at the sync frame at or before fromUs
+     * (or the oldest one we have) and ends with the last frame at or before toUs.  If that
+     * reaches back into the long tail, only its sync frames are available there.
+     * <p>
+     * Saves may be queued while others are being written; up to MAX_CONCURRENT_SAVES run at
+     * once, not counting saves with a post-roll.  The frames to save are fixed when the
+     * request reaches the encoder thread, but they're only pinned once a writer starts on
+     * them, so if they've been evicted by then the save fails.
+     */
+    public void saveRange(File outputFile, long fromUs, long toUs) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, fromUs, toUs, 0)));
+    }
+
+    /**
+     * A saveRange() or saveVideo() request, on its way to the encoder thread.
+     */
+    private static class SaveRequest {
+        final File mOutputFile;
+        final long mFromUs;
+        final long mToUs;
+        final long mPostRollUs;
+
+        SaveRequest(File outputFile, long fromUs, long toUs, long postRollUs) {
+            mOutputFile = outputFile;
+            mFromUs = fromUs;
+            mToUs = toUs;
+            mPostRollUs = postRollUs;
+        }
+    }
+
+    /**
+     * A range of packets in one buffer, by sequence number, for a SaveTask to pin and write
+     * out.  mPin is the pin handle while the task holds one, or -1.
+     */
+    private static class BufferRange {
+        final CircularEncoderBuffer mBuffer;
+        final long mFirstSeq;
+        final long mLastSeq;
+        int mPin = -1;
+
+        BufferRange(CircularEncoderBuffer buffer, int[] range) {
+            mBuffer = buffer;
+            mFirstSeq = buffer.getSeq(range[0]);
+            mLastSeq = buffer.getSeq(range[1]);
+        }
+    }
+
+    /**
+     * When the last few frames were submitted, by presentation time.  Written by the thread
+     * drawing to the input surface, and read by the encoder thread as their packets come out.
+     */
+    static final class SubmitTimes {
+        private final long[] mPtsUsec;
+        private final long[] mSubmitNsec;
+        private int mNext;
+
+        SubmitTimes(int capacity) {
+            mPtsUsec = new long[capacity];
+            mSubmitNsec = new long[capacity];
+            Arrays.fill(mPtsUsec, Long.MIN_VALUE);
+        }
+
+        synchronized void put(long ptsUsec, long submitNsec) {
+            mPtsUsec[mNext] = ptsUsec;
+            mSubmitNsec[mNext] = submitNsec;
+            mNext = (mNext + 1) % mPtsUsec.length;
+        }
+
+        /**
+         * Returns when the frame with this presentation time was submitted, or -1 if it's
+         * too long ago, or wasn't noted.
+         */
+        synchronized long get(long ptsUsec) {
+            // Newest first; it's most likely one of the last few.
+            for (int i = 1; i <= mPtsUsec.length; i++) {
+                int slot = (mNext - i + mPtsUsec.length) % mPtsUsec.length;
+                if (mPtsUsec[slot] == ptsUsec) {
+                    return mSubmitNsec[slot];
+                }
+            }
+            return -1;
+        }
     }
 
     /**
@@ -200,12 +513,19 @@ public class CircularEncoder {
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
      * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * this thread -- avoids synchronization -- so only finding a range and handing it off to
+     * the writer thread happens here, not the muxing itself.  So, it's best to sleep on an
+     * object and do something appropriate when awakened.
+     * <p>
+     * That's the polled mode.  On API 23+ we normally use async mode instead: the codec
+     * calls us back on this thread's Handler as soon as each output buffer is ready, so
+     * output doesn't sit in the codec until the next frameAvailableSoon().  Either way the
+     * packet goes through the same path into the buffer, and we log how long it took to
+     * get there from when its frame was submitted.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
-     * should be fully started before the thread is created, and not shut down until this
-     * thread has been joined.
+     * should be started before any messages are sent to the thread, and not shut down until
+     * this thread has been joined.
      */
     private static class EncoderThread extends Thread {
         private MediaCodec mEncoder;
@@ -215,15 +535,41 @@ public class CircularEncoder {
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.Callback mCallback;
+        private SubmitTimes mSubmitTimes;
         private int mFrameNum;
+        private int mDesiredSpanSec;
+        private BufferSizingController mSizingController;
+        // Builds resized storage off this thread; see checkResize().
+        private ExecutorService mResizer;
+        private CircularEncoderBuffer.Resize mPendingResize;
+        private ExecutorService mWriterPool;
+        private ExecutorService mFollowerPool;
+        private GopJournal mJournal;
+        private FragmentedMp4Streamer mStreamer;
+        private int mStreamingPort = -1;
+        private String mStreamingToken;
+        private long mGopStartSeq = -1;
+        private final List<SaveTask> mPostRollSaves = new ArrayList<>();
+        private volatile boolean mAsyncOutput;
+
+        // Encode-to-buffer latency, since the last report.
+        private int mLatencyCount;
+        private long mLatencySumUsec;
+        private long mLatencyMaxUsec;
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
         public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
+                             int desiredSpanSec, ExecutorService writerPool,
+                             ExecutorService followerPool, SubmitTimes submitTimes,
                              CircularEncoder.Callback callback) {
             mEncoder = mediaCodec;
             mEncBuffer = encBuffer;
+            mDesiredSpanSec = desiredSpanSec;
+            mWriterPool = writerPool;
+            mFollowerPool = followerPool;
+            mSubmitTimes = submitTimes;
             mCallback = callback;
 
             mBufferInfo = new MediaCodec.BufferInfo();
@@ -281,8 +627,54 @@ public class CircularEncoder {
             return mHandler;
         }
 
+        /**
+         * Switches to async mode: the codec hands us output through callbacks on our
+         * Handler.  Call before the codec is configured.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        void useAsyncOutput() {
+            mAsyncOutput = true;
+            mEncoder.setCallback(new OutputCallback(), mHandler);
+        }
+
+        /**
+         * Receives encoder output in async mode.  Runs on the encoder thread.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        private class OutputCallback extends MediaCodec.Callback {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Input comes from the Surface.
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                    MediaCodec.BufferInfo info) {
+                ByteBuffer encodedData = codec.getOutputBuffer(index);
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+                }
+                addOutput(encodedData, info);
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Log.w(TAG, "reached end of stream unexpectedly");
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                outputFormatChanged(format);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.e(TAG, "encoder error", e);
+            }
+        }
+
         /**
          * Drains all pending output from the decoder, and adds it to the circular buffer.
+         * Polled mode only.
          */
         public void drainEncoder() {
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
@@ -297,13 +689,7 @@ public class CircularEncoder {
                     // not expected for an encoder
                     encoderOutputBuffers = mEncoder.getOutputBuffers();
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Should happen before receiving buffers, and should only happen once.
-                    // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
-                    // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
-                    // rather than extract the codec-specific data and reconstruct a new
-                    // MediaFormat later, we just grab it here and keep it around.
-                    mEncodedFormat = mEncoder.getOutputFormat();
-                    Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+                    outputFormatChanged(mEncoder.getOutputFormat());
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                             encoderStatus);
@@ -315,28 +701,7 @@ public class CircularEncoder {
                                 " was null");
                     }
 
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out when we got the
-                        // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
-                        // a single big blob -- it wants separate csd-0/csd-1 chunks --
-                        // so simply saving this off won't work.
-                        if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        mBufferInfo.size = 0;
-                    }
-
-                    if (mBufferInfo.size != 0) {
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                        mEncBuffer.add(encodedData, mBufferInfo.flags, mBufferInfo.presentationTimeUs);
-
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                    mBufferInfo.presentationTimeUs);
-                        }
-                    }
-
+                    addOutput(encodedData, mBufferInfo);
                     mEncoder.releaseOutputBuffer(encoderStatus, false);
 
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -347,74 +712,301 @@ public class CircularEncoder {
             }
         }
 
+        private void outputFormatChanged(MediaFormat format) {
+            // Should happen before receiving buffers, and should only happen once.
+            // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
+            // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
+            // rather than extract the codec-specific data and reconstruct a new
+            // MediaFormat later, we just grab it here and keep it around.
+            mEncodedFormat = format;
+            Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+            if (mJournal != null) {
+                mJournal.setFormat(mEncodedFormat);
+            }
+            if (mStreamingPort >= 0 && mStreamer == null) {
+                startStreamer();
+            }
+        }
+
+        /**
+         * Adds a buffer of encoder output to the circular buffer, and passes the news on to
+         * the journal, the streamer, and any post-roll saves.
+         */
+        private void addOutput(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // The codec config data was pulled out when we got the
+                // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
+                // a single big blob -- it wants separate csd-0/csd-1 chunks --
+                // so simply saving this off won't work.
+                if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                return;
+            }
+            if (info.size == 0) {
+                return;
+            }
+
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+
+            mEncBuffer.add(encodedData, info.flags, info.presentationTimeUs);
+            recordLatency(info.presentationTimeUs);
+            for (int i = mPostRollSaves.size() - 1; i >= 0; i--) {
+                SaveTask save = mPostRollSaves.get(i);
+                if (save.isFollowing()) {
+                    save.packetAdded();
+                } else {
+                    mPostRollSaves.remove(i);
+                }
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                // A sync frame ends the previous GOP.
+                long seq = mEncBuffer.getHeadSeq() - 1;
+                if (mGopStartSeq >= 0) {
+                    if (mJournal != null) {
+                        mJournal.submitGop(mEncBuffer, mGopStartSeq, seq);
+                    }
+                    if (mStreamer != null) {
+                        mStreamer.onGop(mGopStartSeq, seq);
+                    }
+                }
+                mGopStartSeq = seq;
+            }
+            if (mSizingController != null) {
+                mSizingController.onPacket(info.size, info.presentationTimeUs);
+            }
+
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                        info.presentationTimeUs);
+            }
+        }
+
+        /**
+         * Measures how long a packet took to reach the buffer from when its frame was
+         * submitted (see {@link CircularEncoder#frameSubmitted}): the time spent encoding,
+         * plus the time the output waited for us.  Packets whose frames weren't noted, or
+         * were noted too long ago, aren't counted.
+         */
+        private void recordLatency(long ptsUsec) {
+            long submitNsec = mSubmitTimes.get(ptsUsec);
+            if (submitNsec < 0) {
+                return;
+            }
+            long latencyUsec = (System.nanoTime() - submitNsec) / 1000;
+            mLatencySumUsec += latencyUsec;
+            mLatencyMaxUsec = Math.max(mLatencyMaxUsec, latencyUsec);
+            if (++mLatencyCount == LATENCY_REPORT_PACKETS) {
+                Log.d(TAG, (mAsyncOutput ? "async" : "polled") + " encode-to-buffer latency: " +
+                        "avg " + (mLatencySumUsec / mLatencyCount) / 1000.0 + " ms, max " +
+                        mLatencyMaxUsec / 1000.0 + " ms");
+                mLatencyCount = 0;
+                mLatencySumUsec = 0;
+                mLatencyMaxUsec = 0;
+            }
+        }
+
         /**
-         * Drains the encoder output.
+         * Drains the encoder output, in polled mode, and updates the buffer status.
          * <p>
          * See notes for {@link CircularEncoder#frameAvailableSoon()}.
          */
         void frameAvailableSoon() {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
-            drainEncoder();
+            if (!mAsyncOutput) {
+                drainEncoder();
+            }
 
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
                 mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
+                if (mSizingController != null) {
+                    checkResize();
+                }
+            }
+        }
+
+        /**
+         * Resizes the buffer to what the sizing controller recommends.  Allocating and filling
+         * a ring of up to MAX_BUFFER_BYTES takes far longer than a frame, and this is the
+         * thread that takes the codec's output, so that's done on mResizer.  A later call
+         * swaps the new storage in, copying only the packets that arrived in between.
+         */
+        private void checkResize() {
+            CircularEncoderBuffer.Resize resize = mPendingResize;
+            if (resize != null) {
+                if (!resize.isBuilt()) {
+                    return;
+                }
+                mPendingResize = null;
+                long startNsec = System.nanoTime();
+                boolean done = mEncBuffer.finishResize(resize);
+                Log.d(TAG, (done ? "resized buffer to " : "gave up resizing buffer to ") +
+                        resize.getDataSize() + " bytes: built in " +
+                        resize.getBuildNsec() / 1000000.0 + " ms, swapped in " +
+                        (System.nanoTime() - startNsec) / 1000000.0 + " ms");
+                return;
+            }
+
+            // Don't resize out from under a save or other reader.
+            if (!mEncBuffer.isPinned() && !mEncBuffer.hasReaders() &&
+                    mSizingController.shouldResize(mEncBuffer)) {
+                Log.d(TAG, "resizing buffer for " +
+                        (int) mSizingController.getBytesPerSec() + " bytes/sec, " +
+                        mSizingController.getPacketsPerSec() + " packets/sec");
+                final CircularEncoderBuffer.Resize next = mEncBuffer.prepareResize(
+                        mSizingController.getRecommendedDataSize(),
+                        mSizingController.getRecommendedMetaCount());
+                if (next != null) {
+                    mPendingResize = next;
+                    mResizer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            next.build();
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Starts measuring the encoder output so the buffer can be resized to match.
+         */
+        void enableAdaptiveSizing(int minBytes, int maxBytes) {
+            if (!mEncBuffer.isResizable()) {
+                Log.w(TAG, "buffer can't be resized; ignoring adaptive sizing");
+                return;
+            }
+            mSizingController = new BufferSizingController(mDesiredSpanSec, minBytes, maxBytes);
+            mResizer = Executors.newSingleThreadExecutor();
+        }
+
+        /**
+         * Starts journaling; see {@link CircularEncoder#enableJournal}.
+         */
+        void enableJournal(File dir, int segmentBytes, int maxSegments) {
+            if (mJournal != null) {
+                Log.w(TAG, "journal already enabled");
+                return;
+            }
+            mJournal = new GopJournal(dir, segmentBytes, maxSegments);
+            if (mEncodedFormat != null) {
+                mJournal.setFormat(mEncodedFormat);
+            }
+        }
+
+        /**
+         * Starts streaming; see {@link CircularEncoder#enableStreaming}.
+         */
+        void enableStreaming(int port, String token) {
+            if (mStreamingPort >= 0) {
+                Log.w(TAG, "streaming already enabled");
+                return;
+            }
+            mStreamingPort = port;
+            mStreamingToken = token;
+            if (mEncodedFormat != null) {
+                startStreamer();
+            }
+        }
+
+        private void startStreamer() {
+            try {
+                mStreamer = new FragmentedMp4Streamer(mEncBuffer, mEncodedFormat);
+                mStreamer.start();
+                int port = mStreamer.listen(mStreamingPort, mStreamingToken);
+                Log.d(TAG, "streaming on loopback port " + port);
+                mCallback.streamingStatus(port);
+            } catch (IOException ioe) {
+                Log.w(TAG, "unable to start streaming", ioe);
+                if (mStreamer != null) {
+                    mStreamer.stop();
+                    mStreamer = null;
+                }
+                // So it can be asked for again.
+                mStreamingPort = -1;
+                mStreamingToken = null;
+                mCallback.streamingStatus(-1);
             }
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Keeps evicted sync frames around; see {@link CircularEncoder#enableLongTail}.
+         */
+        void enableLongTail(int maxBytes, int maxFrames) {
+            mEncBuffer.enableLongTail(maxBytes, maxFrames);
+        }
+
+        /**
+         * Saves part of the encoder output to a .mp4 file.
          * <p>
          * We'll drain the encoder to get any lingering data, but we're not going to shut
          * the encoder down or use other tricks to try to "flush" the encoder.  This may
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The requested frames are handed to a writer thread, which pins them when it gets
+         * to them.  Nothing here waits for a writer.  Frames that arrive while the file is
+         * being written aren't included, unless there's a post-roll, in which case the writer
+         * picks up from the newest frame we have now.
          */
-        void saveVideo(File outputFile) {
-            if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
-
-            int index = mEncBuffer.getFirstIndex();
-            if (index < 0) {
-                Log.w(TAG, "Unable to get first index");
-                mCallback.fileSaveComplete(1);
-                return;
+        void saveRange(SaveRequest request) {
+            if (VERBOSE) {
+                Log.d(TAG, "saveRange " + request.mOutputFile + " " + request.mFromUs + " - " +
+                        request.mToUs);
             }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
+            int[] range = mEncBuffer.indexRange(request.mFromUs, request.mToUs);
 
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
+            // The long tail only has what's older than the buffer, so if the request reaches
+            // back that far, we start there and continue with the buffer.
+            CircularEncoderBuffer longTail = mEncBuffer.getLongTail();
+            int[] tailRange = null;
+            if (longTail != null) {
+                long bufferStartUs = Long.MAX_VALUE;
+                int firstIndex = mEncBuffer.getFirstIndex();
+                if (firstIndex >= 0) {
+                    mEncBuffer.getChunkInfo(firstIndex, mBufferInfo);
+                    bufferStartUs = mBufferInfo.presentationTimeUs;
+                }
+                if (request.mFromUs < bufferStartUs) {
+                    tailRange = longTail.indexRange(request.mFromUs,
+                            Math.min(request.mToUs, bufferStartUs - 1));
                 }
             }
+            long followFromSeq = -1;
+            long postRollEndUs = Long.MIN_VALUE;
+            if (request.mPostRollUs > 0) {
+                followFromSeq = mEncBuffer.getHeadSeq();
+                int lastIndex = mEncBuffer.getLastIndex();
+                if (lastIndex >= 0) {
+                    mEncBuffer.getChunkInfo(lastIndex, mBufferInfo);
+                    postRollEndUs = mBufferInfo.presentationTimeUs + request.mPostRollUs;
+                }
+            }
+            if (range == null && tailRange == null && followFromSeq < 0) {
+                Log.w(TAG, "Nothing to save in range");
+                mCallback.fileSaveComplete(request.mOutputFile, 1);
+                return;
+            }
 
-            if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+            BufferRange[] ranges = new BufferRange[(range != null ? 1 : 0) +
+                    (tailRange != null ? 1 : 0)];
+            int i = 0;
+            if (tailRange != null) {
+                ranges[i++] = new BufferRange(longTail, tailRange);
+            }
+            if (range != null) {
+                ranges[i] = new BufferRange(mEncBuffer, range);
+            }
+            SaveTask save = new SaveTask(request.mOutputFile, mEncodedFormat, ranges, mCallback);
+            if (followFromSeq >= 0) {
+                save.setPostRoll(mEncBuffer, followFromSeq, postRollEndUs, request.mPostRollUs);
+                mPostRollSaves.add(save);
+                mFollowerPool.execute(save);
+            } else {
+                mWriterPool.execute(save);
             }
-            mCallback.fileSaveComplete(result);
         }
 
         /**
@@ -422,6 +1014,28 @@ public class CircularEncoder {
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            if (mJournal != null) {
+                // Journal the GOP in progress too; it's playable as far as it goes.
+                if (mGopStartSeq >= 0) {
+                    mJournal.submitGop(mEncBuffer, mGopStartSeq, mEncBuffer.getHeadSeq());
+                }
+                mJournal.close();
+                mJournal = null;
+            }
+            if (mStreamer != null) {
+                mStreamer.stop();
+                mStreamer = null;
+            }
+            if (mResizer != null) {
+                // A build in progress finishes on its own, and is dropped.
+                mResizer.shutdown();
+                mPendingResize = null;
+            }
+            // No more frames are coming, so post-rolls end with what they have.
+            for (SaveTask save : mPostRollSaves) {
+                save.stopFollowing();
+            }
+            mPostRollSaves.clear();
             Looper.myLooper().quit();
         }
 
@@ -435,6 +1049,10 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_ENABLE_ADAPTIVE_SIZING = 4;
+            public static final int MSG_ENABLE_LONG_TAIL = 5;
+            public static final int MSG_ENABLE_JOURNAL = 6;
+            public static final int MSG_ENABLE_STREAMING = 7;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -465,15 +1083,435 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveRange((SaveRequest) msg.obj);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_ENABLE_ADAPTIVE_SIZING:
+                        encoderThread.enableAdaptiveSizing(msg.arg1, msg.arg2);
+                        break;
+                    case MSG_ENABLE_LONG_TAIL:
+                        encoderThread.enableLongTail(msg.arg1, msg.arg2);
+                        break;
+                    case MSG_ENABLE_JOURNAL:
+                        encoderThread.enableJournal((File) msg.obj, msg.arg1, msg.arg2);
+                        break;
+                    case MSG_ENABLE_STREAMING:
+                        encoderThread.enableStreaming(msg.arg1, (String) msg.obj);
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
             }
         }
     }
+
+    /**
+     * Writes ranges of the circular buffer (and its long tail) to a .mp4 file.  Runs on a
+     * writer thread.
+     * <p>
+     * Each range is pinned when the task starts, and the pin is moved past each GOP once
+     * it's in the file, so the encoder gets the space back as we go.  The encoder never
+     * waits for us: if it has to evict a packet we haven't written yet, it revokes the pin,
+     * and the save fails rather than writing whatever overwrote the packet.
+     * <p>
+     * Normally the file is written by Mp4Writer, with gathering writes straight from the
+     * ring.  If it can't handle the stream (e.g. presentation times that aren't in decode
+     * order), we fall back to MediaMuxer.  Packets are read in place there too, so concurrent
+     * saves of overlapping ranges don't copy the buffer; only a packet that wraps around the
+     * end of the ring is stitched together in the task's own scratch buffer.
+     * <p>
+     * With a post-roll, the pins are released as soon as the ranges are in the file, and the
+     * task then follows the encoder, copying each new packet out with a Reader and
+     * appending it.  The encoder thread wakes us when it adds a packet.
+     */
+    private static class SaveTask implements Runnable {
+        private final File mOutputFile;
+        private final MediaFormat mEncodedFormat;
+        private final BufferRange[] mRanges;
+        private final CircularEncoder.Callback mCallback;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private int mTotalFrames;
+
+        // Post-roll.  mFollowFromSeq is -1 if there isn't one.
+        private CircularEncoderBuffer mFollowBuffer;
+        private long mFollowFromSeq = -1;
+        private long mPostRollEndUs;
+        private long mPostRollUs;
+        private volatile boolean mFollowing;
+        private volatile boolean mStopFollowing;
+        private volatile Thread mWriterThread;
+
+        /**
+         * @param ranges Ranges to write, oldest first.  Their presentation times must not
+         *     overlap.
+         */
+        SaveTask(File outputFile, MediaFormat encodedFormat, BufferRange[] ranges,
+                 CircularEncoder.Callback callback) {
+            mOutputFile = outputFile;
+            mEncodedFormat = encodedFormat;
+            mRanges = ranges;
+            mCallback = callback;
+        }
+
+        /**
+         * After the ranges, appends packets from buffer as the encoder adds them,
+         * starting with sequence number fromSeq, up to endUs.  Call before the task is run.
+         *
+         * @param endUs Last presentation time to include, or Long.MIN_VALUE to go on for
+         *     postRollUs after the first packet.
+         */
+        void setPostRoll(CircularEncoderBuffer buffer, long fromSeq, long endUs,
+                long postRollUs) {
+            mFollowBuffer = buffer;
+            mFollowFromSeq = fromSeq;
+            mPostRollEndUs = endUs;
+            mPostRollUs = postRollUs;
+            mFollowing = true;
+        }
+
+        /**
+         * Returns false once the post-roll is over.  May be called from any thread.
+         */
+        boolean isFollowing() {
+            return mFollowing;
+        }
+
+        /**
+         * Tells the task a packet has been added.  Called on the encoder thread; doesn't
+         * block.
+         */
+        void packetAdded() {
+            Thread writer = mWriterThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        /**
+         * Ends the post-roll after the packets already added.  May be called from any thread.
+         */
+        void stopFollowing() {
+            mStopFollowing = true;
+            packetAdded();
+        }
+
+        @Override  // runs on writer thread
+        public void run() {
+            for (BufferRange range : mRanges) {
+                mTotalFrames += (int) (range.mLastSeq - range.mFirstSeq + 1);
+            }
+            mWriterThread = Thread.currentThread();
+            int result;
+            try {
+                if (!pinRanges()) {
+                    result = 3;
+                } else {
+                    result = writeDirect();
+                    if (result < 0) {
+                        // Start again from the top; writeDirect() moved the pins along.
+                        releasePins();
+                        result = pinRanges() ? writeWithMuxer() : 3;
+                    }
+                }
+            } finally {
+                releasePins();
+                mFollowing = false;
+                mWriterThread = null;
+            }
+
+            if (VERBOSE) {
+                Log.d(TAG, "save finished, result=" + result);
+            }
+            mCallback.fileSaveComplete(mOutputFile, result);
+        }
+
+        /**
+         * Pins the start of each range.  If one can't be pinned, releases the rest and
+         * returns false.
+         */
+        private boolean pinRanges() {
+            for (BufferRange range : mRanges) {
+                range.mPin = range.mBuffer.pin(range.mFirstSeq);
+                if (range.mPin < 0) {
+                    if (range.mBuffer.getTailSeq() > range.mFirstSeq) {
+                        Log.w(TAG, "frames to save were evicted before the save started");
+                    } else {
+                        Log.w(TAG, "Too many saves in progress");
+                    }
+                    releasePins();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Releases a range's pin, if we still hold it.
+         *
+         * @return false if the pin had been revoked.
+         */
+        private static boolean releasePin(BufferRange range) {
+            if (range.mPin < 0) {
+                return true;
+            }
+            boolean held = range.mBuffer.unpin(range.mPin);
+            range.mPin = -1;
+            return held;
+        }
+
+        private void releasePins() {
+            for (BufferRange range : mRanges) {
+                releasePin(range);
+            }
+        }
+
+        /**
+         * Returns true if any of our pins has been revoked.
+         */
+        private boolean wasOvertaken() {
+            for (BufferRange range : mRanges) {
+                if (range.mPin >= 0 && range.mBuffer.isPinRevoked(range.mPin)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Logs that the encoder evicted packets before we'd written them, and returns the
+         * status for it.
+         */
+        private static int overtaken() {
+            Log.w(TAG, "save fell behind the encoder; frames were overwritten before they " +
+                    "could be written");
+            return 4;
+        }
+
+        private boolean isSyncFrame(CircularEncoderBuffer buffer, int index) {
+            buffer.getChunkInfo(index, mInfo);
+            return (mInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        }
+
+        private void reportProgress(int framesWritten) {
+            if (framesWritten % PROGRESS_INTERVAL == 0 && framesWritten < mTotalFrames) {
+                mCallback.fileSaveProgress(mOutputFile, framesWritten, mTotalFrames);
+            }
+        }
+
+        /**
+         * Appends the post-roll, as the encoder produces it, to whichever of writer and muxer
+         * isn't null.  The ranges must all have been written.
+         *
+         * @return The number of frames written, including framesWritten from before.
+         */
+        private int writePostRoll(Mp4Writer writer, MediaMuxer muxer, int track,
+                int framesWritten) throws IOException {
+            // The ranges are in the file; let the encoder have the ring back.
+            releasePins();
+
+            CircularEncoderBuffer.Reader reader = mFollowBuffer.new Reader();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer packet = ByteBuffer.allocateDirect(64 * 1024);
+            long firstPtsUsec = -1;
+            int postRollFrames = 0;
+            long seq = mFollowFromSeq;
+            long lastPacketNsec = System.nanoTime();
+            try {
+                while (true) {
+                    // Anything added before we were told to stop is visible after.
+                    boolean stopping = mStopFollowing;
+                    int size = reader.peek(seq, info);
+                    if (size == CircularEncoderBuffer.READ_NOT_READY) {
+                        if (stopping) {
+                            break;
+                        }
+                        if (System.nanoTime() - lastPacketNsec > FOLLOW_TIMEOUT_NSEC) {
+                            // The encoder has stopped without telling us; don't hang on.
+                            Log.w(TAG, "no frames for the post-roll; ending it early");
+                            break;
+                        }
+                        LockSupport.parkNanos(this, FOLLOW_POLL_NSEC);
+                        continue;
+                    }
+                    lastPacketNsec = System.nanoTime();
+                    if (size >= 0 && packet.capacity() < size) {
+                        packet = ByteBuffer.allocateDirect(
+                                CircularEncoderBuffer.roundUpPowerOfTwo(size));
+                    }
+                    packet.clear();
+                    if (size < 0 || reader.read(seq, packet, info) < 0) {
+                        Log.w(TAG, "post-roll fell behind the encoder; ending it early");
+                        break;
+                    }
+                    seq++;
+                    if (firstPtsUsec < 0) {
+                        if (framesWritten == 0 &&
+                                (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                            continue;       // the file has to start with a sync frame
+                        }
+                        firstPtsUsec = info.presentationTimeUs;
+                        if (mPostRollEndUs == Long.MIN_VALUE) {
+                            mPostRollEndUs = firstPtsUsec + mPostRollUs;
+                        }
+                    }
+                    if (info.presentationTimeUs > mPostRollEndUs) {
+                        break;
+                    }
+
+                    if (writer != null) {
+                        writer.addSample(packet, info);
+                    } else {
+                        muxer.writeSampleData(track, packet, info);
+                    }
+                    framesWritten++;
+                    postRollFrames++;
+                    // We don't know how many are coming, so guess from the rate so far.
+                    long elapsedUsec = info.presentationTimeUs - firstPtsUsec;
+                    if (elapsedUsec > 0) {
+                        mTotalFrames = framesWritten + (int) ((mPostRollEndUs -
+                                info.presentationTimeUs) * (postRollFrames - 1) / elapsedUsec);
+                    }
+                    reportProgress(framesWritten);
+                }
+            } catch (IllegalArgumentException iae) {
+                // The ranges can't be rewritten now, so keep what we have.
+                Log.w(TAG, "can't write post-roll frame, ending it early: " + iae.getMessage());
+            } finally {
+                reader.close();
+                mFollowing = false;
+            }
+            return framesWritten;
+        }
+
+        /**
+         * Writes the file with Mp4Writer.
+         *
+         * @return Zero on success, 1 if there was nothing to write, 2 on an I/O error, 4 if
+         *     the encoder overtook us, or -1 if the stream isn't one Mp4Writer can handle.
+         */
+        private int writeDirect() {
+            long startNsec = System.nanoTime();
+            Mp4Writer writer = null;
+            int framesWritten = 0;
+            try {
+                writer = new Mp4Writer(mOutputFile, mEncodedFormat);
+                for (BufferRange range : mRanges) {
+                    CircularEncoderBuffer buffer = range.mBuffer;
+                    for (long seq = range.mFirstSeq; seq <= range.mLastSeq; seq++) {
+                        int index = buffer.getIndex(seq);
+                        if (seq > range.mFirstSeq && isSyncFrame(buffer, index)) {
+                            // The GOP before this one is in the file.
+                            writer.flush();
+                            if (!buffer.movePin(range.mPin, seq)) {
+                                return overtaken();
+                            }
+                        }
+                        writer.addSample(buffer, index);
+                        reportProgress(++framesWritten);
+                    }
+                    writer.flush();
+                    if (!releasePin(range)) {
+                        return overtaken();
+                    }
+                }
+                if (mFollowFromSeq >= 0) {
+                    writer.flush();
+                    framesWritten = writePostRoll(writer, null, 0, framesWritten);
+                    if (framesWritten == 0) {
+                        Log.w(TAG, "no frames arrived for the post-roll");
+                        return 1;
+                    }
+                }
+                writer.finish();
+                writer = null;
+            } catch (IllegalArgumentException iae) {
+                if (wasOvertaken()) {
+                    // It was reading packets as they were overwritten.
+                    return overtaken();
+                }
+                Log.w(TAG, "can't write directly, using MediaMuxer: " + iae.getMessage());
+                return -1;
+            } catch (IOException ioe) {
+                Log.w(TAG, "write failed", ioe);
+                return 2;
+            } finally {
+                if (writer != null) {
+                    writer.release();
+                }
+            }
+            if (VERBOSE) {
+                Log.d(TAG, "wrote " + framesWritten + " frames in " +
+                        (System.nanoTime() - startNsec) / 1000000 + " ms");
+            }
+            return 0;
+        }
+
+        /**
+         * Writes the file with MediaMuxer.
+         *
+         * @return Zero on success, 2 on an I/O error, or 4 if the encoder overtook us.
+         */
+        private int writeWithMuxer() {
+            CircularEncoderBuffer.Reader[] readers =
+                    new CircularEncoderBuffer.Reader[mRanges.length];
+            for (int i = 0; i < mRanges.length; i++) {
+                readers[i] = mRanges[i].mBuffer.new Reader();
+            }
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int framesWritten = 0;
+            MediaMuxer muxer = null;
+            int result = -1;
+            try {
+                muxer = new MediaMuxer(mOutputFile.getPath(),
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                int videoTrack = muxer.addTrack(mEncodedFormat);
+                muxer.start();
+
+                for (int i = 0; i < mRanges.length; i++) {
+                    BufferRange range = mRanges[i];
+                    CircularEncoderBuffer buffer = range.mBuffer;
+                    for (long seq = range.mFirstSeq; seq <= range.mLastSeq; seq++) {
+                        int index = buffer.getIndex(seq);
+                        if (seq > range.mFirstSeq && isSyncFrame(buffer, index) &&
+                                !buffer.movePin(range.mPin, seq)) {
+                            return overtaken();
+                        }
+                        ByteBuffer buf = readers[i].getChunk(index, info);
+                        if (VERBOSE) {
+                            Log.d(TAG, "SAVE " + index + " flags=0x" +
+                                    Integer.toHexString(info.flags));
+                        }
+                        muxer.writeSampleData(videoTrack, buf, info);
+                        reportProgress(++framesWritten);
+                    }
+                    if (!releasePin(range)) {
+                        return overtaken();
+                    }
+                }
+                if (mFollowFromSeq >= 0) {
+                    // MediaMuxer copies what it's given, so the readers are done with the
+                    // ranges.
+                    for (CircularEncoderBuffer.Reader reader : readers) {
+                        reader.close();
+                    }
+                    framesWritten = writePostRoll(null, muxer, videoTrack, framesWritten);
+                }
+                result = 0;
+            } catch (IOException ioe) {
+                Log.w(TAG, "muxer failed", ioe);
+                result = 2;
+            } finally {
+                for (CircularEncoderBuffer.Reader reader : readers) {
+                    reader.close();
+                }
+                if (muxer != null) {
+                    muxer.stop();
+                    muxer.release();
+                }
+            }
+            return result;
+        }
+    }
 }
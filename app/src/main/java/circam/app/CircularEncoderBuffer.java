@@ -16,10 +16,25 @@
 
 package circam.app;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Holds encoded video data in a circular buffer.
@@ -27,7 +42,16 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * One thread adds data; it owns everything except pins and the {@link Reader} API, and
+ * nothing but those may be used from other threads.  Readers come in two flavors:
+ * <ul>
+ * <li>Another thread can pin a range of packets and read it in place.  add() never waits
+ * for a pin: if it has to evict a pinned packet, it revokes the pin, and the reader is told
+ * when it next moves or releases the pin.
+ * <li>Any number of threads can copy packets out by sequence number without any locking.
+ * The copy is checked after the fact, and if the packet was evicted while it was being
+ * read the reader is told so, rather than being handed corrupt data.
+ * </ul>
  */
 public class CircularEncoderBuffer {
     private static final String TAG = "CircularEncoder Buffer";
@@ -41,12 +65,26 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    // The ring can live on the Java heap (a wrapped byte[]) or in direct memory.  At the
+    // default 6Mbps / 20 sec that's a 16MB block, which we'd rather keep out of the heap and
+    // away from the GC, so CircularEncoder asks for direct memory.  For spans of minutes
+    // that's still too much RAM, so the ring can also be a MappedByteBuffer over a
+    // preallocated file, which costs page cache instead.  In every case the capacity
+    // is a power of two, so wrapping an offset is a mask rather than an integer modulus (not
+    // all ARM CPUs support the latter in hardware).
+    //
+    // We never hand out mDataBuffer itself.  Writes go through mWriteView and reads through
+    // mReadView / mSplitViews, all created once up front, so changing position and limit
+    // doesn't allocate.  When a packet straddles the end of the buffer, getChunk() copies it
+    // into mScratchBuffer, which is grown in add() (on the encoder thread) to fit the
+    // largest packet we've seen, so a file save never allocates.
+    private ByteBuffer mDataBuffer;
+    private ByteBuffer mWriteView;
+    private ByteBuffer mReadView;
+    private final ByteBuffer[] mSplitViews = new ByteBuffer[2];
+    private ByteBuffer mScratchBuffer;
+    private int mDataMask;
+    private boolean mFileBacked;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -54,37 +92,512 @@ public class CircularEncoderBuffer {
     private long[] mPacketPtsUsec;
     private int[] mPacketStart;
     private int[] mPacketLength;
+    private int mMetaMask;
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // When we run out of room we normally evict the whole GOP at the tail in one step, so
+    // the tail always sits on a sync frame and the cost of an add() doesn't depend on how
+    // many packets have to go.  The old packet-at-a-time eviction is kept for comparison
+    // (see the :bench module).  Evictions are counted for telemetry.
+    private boolean mEvictWholeGops = true;
+    private long mEvictedBytes;
+    private long mEvictedPackets;
+    private int mEvictedGops;
+
+    // Optional "long tail": when a GOP is evicted, its sync frame is copied into this second,
+    // smaller buffer and the rest of the GOP is dropped.  Every packet in it is a sync frame,
+    // so it evicts one frame at a time and any of them can start a file.  That gives us
+    // several minutes of low-frame-rate history, older than anything in this buffer, for a
+    // few extra MB.  mRetireInfo is scratch for the copy.
+    private CircularEncoderBuffer mLongTail;
+    private MediaCodec.BufferInfo mRetireInfo;
+
+    // Index of the sync frames currently in the buffer, oldest first: the meta-data index of
+    // each one and its PTS.  Maintained by add() and the eviction code with the same head/tail
+    // scheme as the meta-data.  It's the same size as the meta-data arrays, so it can't
+    // overflow even if every packet is a sync frame.  PTS values from the encoder increase
+    // monotonically, so we can binary search on them.
+    private int[] mSyncIndex;
+    private long[] mSyncPtsUsec;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Pinned packets, by sequence number; PIN_FREE marks a free slot.  A save running on
+    // another thread pins the first packet it's going to read, and moves the pin along as it
+    // writes.  While the pin holds, nothing from the pinned packet on has been evicted, so
+    // the save can read it in place.  mPinCount lets add() skip the lock when nothing is
+    // pinned.
+    //
+    // Eviction never waits for a pin, since that would stall the encoder.  It revokes any pin
+    // on a packet it evicts, and counts it; the save finds out when it moves or releases the
+    // pin, and gives up.  Eviction bumps mTailSeq before it looks at the pins, and pin()
+    // takes its slot before it looks at mTailSeq, so if the two race at least one of them
+    // sees the other.
+    private static final int MAX_PINS = 8;
+    private static final long PIN_FREE = -1;
+    private static final long PIN_REVOKED = -2;
+    private final Object mPinLock = new Object();
+    private final long[] mPins = new long[MAX_PINS];
+    private volatile int mPinCount;
+    private int mRevokedPinCount;
+
+    // Lock-free reads.  Every packet gets a sequence number, one more than the previous
+    // packet's, and lives in meta-data slot (seq & mMetaMask).  Readers ask for packets by
+    // sequence number.
+    //
+    // The adding thread publishes a packet by storing its data and meta-data, then the
+    // packet's sequence number in mSlotSeq, then bumping mHeadSeq.  It evicts a packet by
+    // bumping mTailSeq before it overwrites any of the packet's data.  A reader checks that
+    // tail <= seq < head and that the slot holds seq, copies the meta-data and data, and
+    // then checks tail and slot again.  If they still agree, nothing was overwritten while
+    // it was copying.  (This is a seqlock, with mTailSeq and the slot as the sequence.)
+    //
+    // The second check of mTailSeq is a read-modify-write rather than a plain volatile read:
+    // a volatile read doesn't stop the data reads before it from being reordered after it.
+    // Eviction bumps it with a read-modify-write too.  A plain volatile store doesn't stop
+    // the overwrites after it from moving ahead of it, and a reader's check that lands
+    // between a get() and a set() would have no happens-before edge with them.  With both
+    // sides RMWs on the same variable, they're totally ordered: a reader's check either
+    // comes before the bump, so its copy came before the overwrite, or sees it.
+    //
+    // resize() replaces all of the storage, which this can't cope with, so it won't run
+    // while any Readers are open.  mPinLock guards mReaderCount against resize().
+    private volatile long mHeadSeq;
+    private final AtomicLong mTailSeq = new AtomicLong();
+    private AtomicLongArray mSlotSeq;
+    private final AtomicInteger mReaderCount = new AtomicInteger();
+    private boolean mResizing;
+
+    /** Reader result: the packet has been evicted, or was while we were reading it. */
+    public static final int READ_OVERWRITTEN = -1;
+    /** Reader result: the packet hasn't been added yet. */
+    public static final int READ_NOT_READY = -2;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * Allocates the circular buffers we use for encoded data and meta-data, keeping the
+     * encoded data on the Java heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
-        // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        this(bitRate, frameRate, desiredSpanSec, false);
+    }
 
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param direct If set, the encoded data is held in direct (off-heap) memory.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec, boolean direct) {
+        // For the encoded data, we assume the encoded bit rate is close to what we request.
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
-        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        this(allocateData(roundUpPowerOfTwo((long) bitRate * desiredSpanSec / 8), direct),
+                frameRate * desiredSpanSec * 2);
+
+        if (VERBOSE) {
+            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
+                    " desiredSpan=" + desiredSpanSec + " direct=" + direct +
+                    ": dataBufferSize=" + mDataBuffer.capacity() +
+                    " metaBufferCount=" + mPacketStart.length);
+        }
+    }
+
+    /**
+     * Allocates a circular buffer whose encoded data lives in a memory-mapped file, for
+     * spans too long to hold in RAM.  The file is created (or truncated) and its blocks
+     * allocated, to the ring size; this fails if there isn't room.  Meta-data is still held in memory, so the file contents are only
+     * meaningful while this object is alive.
+     *
+     * @param backingFile File to map.  Should be on local storage.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            File backingFile) throws IOException {
+        this(mapData(backingFile, roundUpPowerOfTwo((long) bitRate * desiredSpanSec / 8)),
+                frameRate * desiredSpanSec * 2);
+        mFileBacked = true;
+
+        if (VERBOSE) {
+            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
+                    " desiredSpan=" + desiredSpanSec + " file=" + backingFile +
+                    ": dataBufferSize=" + mDataBuffer.capacity() +
+                    " metaBufferCount=" + mPacketStart.length);
+        }
+    }
+
+    /**
+     * Wraps an existing block of storage.  The capacity of dataBuffer must be a power of two;
+     * metaBufferCount is rounded up to one.
+     */
+    CircularEncoderBuffer(ByteBuffer dataBuffer, int metaBufferCount) {
+        setStorage(dataBuffer, metaBufferCount);
+        Arrays.fill(mPins, PIN_FREE);
+    }
+
+    /**
+     * Switches to new (empty) storage.
+     */
+    private void setStorage(ByteBuffer dataBuffer, int metaBufferCount) {
+        final int dataLen = dataBuffer.capacity();
+        if (dataLen <= 0 || (dataLen & (dataLen - 1)) != 0) {
+            throw new IllegalArgumentException("Data buffer size must be a power of two: " +
+                    dataLen);
+        }
+        mDataBuffer = dataBuffer;
+        mDataMask = dataLen - 1;
+        mWriteView = dataBuffer.duplicate();
+        mReadView = dataBuffer.duplicate();
+        mSplitViews[0] = dataBuffer.duplicate();
+        mSplitViews[1] = dataBuffer.duplicate();
+
+        metaBufferCount = roundUpPowerOfTwo(metaBufferCount);
+        mMetaMask = metaBufferCount - 1;
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
+        mSyncPtsUsec = new long[metaBufferCount];
+        mSlotSeq = new AtomicLongArray(metaBufferCount);
+        for (int i = 0; i < metaBufferCount; i++) {
+            mSlotSeq.set(i, -1);
+        }
+    }
+
+    /**
+     * Rounds a positive size up to the next power of two.
+     */
+    static int roundUpPowerOfTwo(long size) {
+        if (size <= 1) {
+            return 1;
+        }
+        if (size > (1 << 30)) {
+            throw new IllegalArgumentException("Buffer too large: " + size);
+        }
+        return Integer.highestOneBit((int) size - 1) << 1;
+    }
+
+    private static ByteBuffer allocateData(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.wrap(new byte[size]);
+    }
+
+    private static ByteBuffer mapData(File backingFile, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(backingFile, "rw");
+        try {
+            // Allocate every block now, so a full disk is an IOException here rather than a
+            // SIGBUS on a store into the mapping mid-capture.  setLength() alone would leave
+            // a sparse file.
+            raf.setLength(0);
+            if (!(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                    fallocate(raf.getFD(), size))) {
+                writeZeros(raf.getChannel(), size);
+            }
+            // The mapping stays valid after the channel is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ioe) {
+            // Don't leave however much we managed to allocate lying around.
+            backingFile.delete();
+            throw ioe;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Allocates size bytes of disk for the file.
+     *
+     * @return false if the filesystem can't, so it has to be written instead.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean fallocate(FileDescriptor fd, int size) throws IOException {
+        try {
+            Os.posix_fallocate(fd, 0, size);
+            return true;
+        } catch (ErrnoException ee) {
+            if (ee.errno == OsConstants.EOPNOTSUPP || ee.errno == OsConstants.ENOSYS) {
+                return false;
+            }
+            throw new IOException("Unable to allocate " + size + " bytes", ee);
+        }
+    }
+
+    private static void writeZeros(FileChannel channel, int size) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+        long pos = 0;
+        while (pos < size) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), size - pos));
+            pos += channel.write(zeros, pos);
+        }
+    }
+
+    /**
+     * Returns the size, in bytes, of the encoded data ring.
+     */
+    public int getDataCapacity() {
+        return mDataBuffer.capacity();
+    }
+
+    /**
+     * Returns the number of packets the meta-data ring can describe.
+     */
+    public int getMetaCapacity() {
+        return mPacketStart.length;
+    }
+
+    /**
+     * Returns true if resize() can be used.  A file-backed ring has a fixed size.
+     */
+    public boolean isResizable() {
+        return !mFileBacked;
+    }
+
+    /**
+     * Moves the buffered data into newly-allocated storage of (roughly) the requested size,
+     * in the same kind of memory as before.  Sizes are rounded up to a power of two.
+     * <p>
+     * We keep as many whole GOPs, newest first, as will fit.  The newest GOP is always kept;
+     * if it doesn't fit, the new storage is made large enough to hold it.  Packets older
+     * than the oldest kept sync frame are dropped, since they can't be decoded anyway.
+     * <p>
+     * This allocates and copies the whole ring on the calling thread, so it's not something
+     * to do every frame, or on a thread that mustn't stall; see prepareResize() for doing
+     * the work elsewhere.  Indices handed out before the call are invalid afterward;
+     * sequence numbers are not affected.
+     *
+     * @return false, having done nothing, if packets are pinned or any Readers are open.
+     */
+    public boolean resize(int dataSize, int metaBufferCount) {
+        Resize resize = prepareResize(dataSize, metaBufferCount);
+        if (resize == null) {
+            return false;
+        }
+        resize.build();
+        return finishResize(resize);
+    }
+
+    /**
+     * Starts a resize (see resize()) whose storage can be allocated and filled on another
+     * thread, so the adding thread only has to copy what it added meanwhile.  Decides
+     * what to keep, and how big the new storage is, but allocates nothing.  Call on the
+     * adding thread, then {@link Resize#build()} on any thread, then finishResize() back
+     * here.
+     *
+     * @return null if packets are pinned or any Readers are open.
+     */
+    public Resize prepareResize(int dataSize, int metaBufferCount) {
+        if (!isResizable()) {
+            throw new IllegalStateException("Can't resize a file-backed buffer");
+        }
+        synchronized (mPinLock) {
+            if (mPinCount > 0 || mReaderCount.get() > 0) {
+                return null;
+            }
+        }
+        dataSize = roundUpPowerOfTwo(dataSize);
+        metaBufferCount = roundUpPowerOfTwo(metaBufferCount);
+
+        // Walk back from the head to find the oldest sync frame whose GOPs fit.  Each packet
+        // takes its length plus the one-byte gap getHeadStart() leaves, and one meta-data
+        // slot; the head slot must stay free.
+        int keepFrom = -1;
+        int keepCount = 0;
+        int keepBytes = 0;
+        int count = 0;
+        long bytes = 0;
+        int index = mMetaHead;
+        while (index != mMetaTail) {
+            index = (index - 1) & mMetaMask;
+            count++;
+            bytes += mPacketLength[index] + 1;
+            boolean fits = bytes < dataSize && count < metaBufferCount;
+            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                if (fits || keepFrom < 0) {
+                    keepFrom = index;
+                    keepCount = count;
+                    keepBytes = (int) bytes;
+                }
+                if (!fits) {
+                    break;
+                }
+            }
+        }
+        if (keepFrom >= 0) {
+            // Grow past the request if the newest GOP needs it.
+            dataSize = Math.max(dataSize, roundUpPowerOfTwo(keepBytes + 1));
+            metaBufferCount = Math.max(metaBufferCount, roundUpPowerOfTwo(keepCount + 1));
+        }
 
         if (VERBOSE) {
-            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
-                    " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+            Log.d(TAG, "resize: data " + mDataBuffer.capacity() + " -> " + dataSize +
+                    ", meta " + mPacketStart.length + " -> " + metaBufferCount +
+                    ", keeping " + keepCount + " packets / " + keepBytes + " bytes");
+        }
+        return new Resize(dataSize, metaBufferCount, mHeadSeq - keepCount,
+                mDataBuffer.isDirect());
+    }
+
+    /**
+     * Switches to the storage built for a resize.  Copies in whatever was added since it was
+     * built, and retires the GOPs it doesn't keep to the long tail, as eviction would.  Call
+     * on the adding thread.
+     *
+     * @return false, having done nothing, if packets are pinned or any Readers are open,
+     *     or the build failed, or more packets have been evicted (or would have to be) than
+     *     the new storage allows for.  Start again with prepareResize().
+     */
+    public boolean finishResize(Resize resize) {
+        if (!resize.mBuilt || !resize.mOk || resize.mFromSeq < mTailSeq.get()) {
+            // Evicted packets are in the long tail, so they mustn't be in the ring too.
+            return false;
+        }
+        synchronized (mPinLock) {
+            if (mPinCount > 0 || mReaderCount.get() > 0) {
+                return false;
+            }
+            mResizing = true;
+        }
+        try {
+            // Catch up.  It's only what arrived during the build, so it's quick.
+            CircularEncoderBuffer next = resize.mNext;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (long seq = resize.mEndSeq; seq < mHeadSeq; seq++) {
+                ByteBuffer buf = getChunk((int) seq & mMetaMask, info);
+                buf.position(info.offset);
+                buf.limit(info.offset + info.size);
+                next.add(buf, info.flags, info.presentationTimeUs);
+            }
+            if (next.mEvictedPackets > 0) {
+                Log.w(TAG, "resize: new storage filled up while it was built; dropping it");
+                return false;
+            }
+
+            // Anything we're not keeping goes the same way as an eviction.
+            while (mSyncHead != mSyncTail &&
+                    mSlotSeq.get(mSyncIndex[mSyncTail]) < resize.mFromSeq) {
+                retireSyncFrame(mSyncIndex[mSyncTail]);
+                mSyncTail = (mSyncTail + 1) & mMetaMask;
+            }
+
+            mDataBuffer = next.mDataBuffer;
+            mDataMask = next.mDataMask;
+            mWriteView = next.mWriteView;
+            mReadView = next.mReadView;
+            mSplitViews[0] = next.mSplitViews[0];
+            mSplitViews[1] = next.mSplitViews[1];
+            if (mScratchBuffer == null || (next.mScratchBuffer != null &&
+                    next.mScratchBuffer.capacity() > mScratchBuffer.capacity())) {
+                mScratchBuffer = next.mScratchBuffer;
+            }
+            mPacketFlags = next.mPacketFlags;
+            mPacketPtsUsec = next.mPacketPtsUsec;
+            mPacketStart = next.mPacketStart;
+            mPacketLength = next.mPacketLength;
+            mMetaMask = next.mMetaMask;
+            mMetaHead = next.mMetaHead;
+            mMetaTail = next.mMetaTail;
+            mSyncIndex = next.mSyncIndex;
+            mSyncPtsUsec = next.mSyncPtsUsec;
+            mSyncHead = next.mSyncHead;
+            mSyncTail = next.mSyncTail;
+            mSlotSeq = next.mSlotSeq;
+            mTailSeq.set(resize.mFromSeq);
+            return true;
+        } finally {
+            synchronized (mPinLock) {
+                mResizing = false;
+                mPinLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * New storage for a resize, from prepareResize().  Holds the packets from the oldest
+     * one kept onward, under the same sequence numbers.
+     */
+    public final class Resize {
+        private final int mDataSize;
+        private final int mMetaCount;
+        private final long mFromSeq;
+        private final boolean mDirect;
+        private CircularEncoderBuffer mNext;
+        private long mEndSeq;
+        private boolean mOk;
+        private long mBuildNsec;
+        private volatile boolean mBuilt;
+
+        private Resize(int dataSize, int metaCount, long fromSeq, boolean direct) {
+            mDataSize = dataSize;
+            mMetaCount = metaCount;
+            mFromSeq = fromSeq;
+            mDirect = direct;
+        }
+
+        /**
+         * Allocates the new storage and copies the kept packets into it, reading them the
+         * way a {@link Reader} does, so the adding thread carries on meanwhile.  May be
+         * called on any thread, once.
+         *
+         * @return false if packets we wanted were evicted before we could copy them.
+         */
+        public boolean build() {
+            long startNsec = System.nanoTime();
+            CircularEncoderBuffer next =
+                    new CircularEncoderBuffer(allocateData(mDataSize, mDirect), mMetaCount);
+            next.mHeadSeq = mFromSeq;
+            next.mTailSeq.set(mFromSeq);
+            next.mMetaHead = next.mMetaTail = (int) mFromSeq & next.mMetaMask;
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer packet = null;
+            long seq = mFromSeq;
+            boolean ok = true;
+            Reader reader = new Reader();
+            try {
+                for (; seq < mHeadSeq; seq++) {
+                    int size = reader.peek(seq, info);
+                    if (size < 0) {
+                        ok = false;
+                        break;
+                    }
+                    if (packet == null || packet.capacity() < size) {
+                        packet = ByteBuffer.allocateDirect(roundUpPowerOfTwo(size));
+                    }
+                    packet.clear();
+                    if (reader.read(seq, packet, info) < 0) {
+                        ok = false;
+                        break;
+                    }
+                    packet.flip();
+                    next.add(packet, info.flags, info.presentationTimeUs);
+                }
+            } finally {
+                reader.close();
+            }
+            mNext = next;
+            mEndSeq = seq;
+            mOk = ok && next.mEvictedPackets == 0;
+            mBuildNsec = System.nanoTime() - startNsec;
+            mBuilt = true;
+            return mOk;
+        }
+
+        /** Returns true once build() has returned. */
+        public boolean isBuilt() {
+            return mBuilt;
+        }
+
+        /** Returns the size of the new data ring. */
+        public int getDataSize() {
+            return mDataSize;
+        }
+
+        /** Returns how long build() took, in nanoseconds. */
+        public long getBuildNsec() {
+            return mBuildNsec;
         }
     }
 
@@ -93,15 +606,13 @@ public class CircularEncoderBuffer {
      * time stamps.
      */
     public long computeTimeSpanUsec() {
-        final int metaLen = mPacketStart.length;
-
         if (mMetaHead == mMetaTail) {
             // empty list
             return 0;
         }
 
         // head points to the next available node, so grab the previous one
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
+        int beforeHead = (mMetaHead - 1) & mMetaMask;
         return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail];
     }
 
@@ -120,11 +631,15 @@ public class CircularEncoderBuffer {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) + " pts=" + ptsUsec);
         }
         while (!canAdd(size)) {
-            removeTail();
+            if (mEvictWholeGops) {
+                removeTailGop();
+            } else {
+                removeTail();
+            }
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        final int dataLen = mDataMask + 1;
+        final long seq = mHeadSeq;
         int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
@@ -132,18 +647,40 @@ public class CircularEncoderBuffer {
         mPacketLength[mMetaHead] = size;
 
         // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
+        ByteBuffer view = mWriteView;
+        view.clear();
+        if (packetStart + size <= dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            view.position(packetStart);
+            view.put(buf);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            int end = buf.limit();
+            buf.limit(buf.position() + firstSize);
+            view.position(packetStart);
+            view.put(buf);
+            buf.limit(end);
+            view.position(0);
+            view.put(buf);
+
+            // getChunk() will need to stitch this one together.
+            if (mScratchBuffer == null || mScratchBuffer.capacity() < size) {
+                mScratchBuffer = ByteBuffer.allocateDirect(roundUpPowerOfTwo(size));
+            }
         }
 
-        mMetaHead = (mMetaHead + 1) % metaLen;
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncPtsUsec[mSyncHead] = ptsUsec;
+            mSyncHead = (mSyncHead + 1) & mMetaMask;
+        }
+
+        // Publish it to lock-free readers.
+        mSlotSeq.set(mMetaHead, seq);
+        mMetaHead = (mMetaHead + 1) & mMetaMask;
+        mHeadSeq = seq + 1;
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
@@ -160,29 +697,98 @@ public class CircularEncoderBuffer {
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+        return mSyncIndex[mSyncTail];
+    }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
+    /**
+     * Returns the index of the newest sync frame with a PTS at or before ptsUsec, or -1 if
+     * there isn't one.  Valid until the next add().
+     */
+    public int findSyncAtOrBefore(long ptsUsec) {
+        int pos = findSyncPosition(ptsUsec);
+        return pos < 0 ? -1 : mSyncIndex[(mSyncTail + pos) & mMetaMask];
+    }
+
+    /**
+     * Finds the packets to save for the time window [fromUs, toUs].  Valid until the next
+     * add().
+     * <p>
+     * The range starts at the sync frame at or before fromUs (or the oldest sync frame, if
+     * fromUs is further back than the buffer goes), and ends at the last packet with a PTS
+     * at or before toUs.  Walk it with getNextIndex() until the last index is reached.
+     *
+     * @return {first, last} meta-data indices, inclusive, or null if no decodable packets
+     *     fall in the window.
+     */
+    public int[] indexRange(long fromUs, long toUs) {
+        if (mSyncHead == mSyncTail || fromUs > toUs) {
+            return null;
+        }
+        int pos = findSyncPosition(fromUs);
+        if (pos < 0) {
+            pos = 0;
+        }
+        int first = mSyncIndex[(mSyncTail + pos) & mMetaMask];
+        if (mPacketPtsUsec[first] > toUs) {
+            return null;
+        }
+
+        // Binary search the meta-data between first and head for the last PTS <= toUs.
+        // We know the packet at "first" qualifies.
+        int lo = 0;
+        int hi = ((mMetaHead - first) & mMetaMask) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mPacketPtsUsec[(first + mid) & mMetaMask] <= toUs) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
             }
-            index = (index + 1) % metaLen;
         }
+        return new int[] { first, (first + lo) & mMetaMask };
+    }
 
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+    /**
+     * Returns the position, relative to the sync tail, of the newest sync frame with a PTS
+     * at or before ptsUsec, or -1 if they're all later.
+     */
+    private int findSyncPosition(long ptsUsec) {
+        int lo = 0;
+        int hi = ((mSyncHead - mSyncTail) & mMetaMask) - 1;
+        if (hi < 0 || mSyncPtsUsec[mSyncTail] > ptsUsec) {
+            return -1;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mSyncPtsUsec[(mSyncTail + mid) & mMetaMask] <= ptsUsec) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the index of the newest packet, or -1 if the buffer is empty.  Valid until the
+     * next add().
+     */
+    public int getLastIndex() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
         }
-        return index;
+        return (mMetaHead - 1) & mMetaMask;
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
     public int getNextIndex(int index) {
-        final int metaLen = mPacketStart.length;
-        int next = (index + 1) % metaLen;
+        int next = (index + 1) & mMetaMask;
         if (next == mMetaHead) {
             next = -1;
         }
@@ -190,14 +796,207 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Returns the index of the next packet, or -1 if index is lastIndex.  Unlike
+     * getNextIndex(int) this doesn't look at the head, so it's safe to use from a thread
+     * reading a pinned range.
+     */
+    public int getNextIndex(int index, int lastIndex) {
+        if (index == lastIndex) {
+            return -1;
+        }
+        return (index + 1) & mMetaMask;
+    }
+
+    /**
+     * Returns the sequence number the next packet added will get.  Every packet before it
+     * has been published.  May be called from any thread.
+     */
+    public long getHeadSeq() {
+        return mHeadSeq;
+    }
+
+    /**
+     * Returns the sequence number of the oldest packet in the buffer (equal to the head if
+     * it's empty).  May be called from any thread, though by the time the caller looks at
+     * the result, more packets may have been evicted.
+     */
+    public long getTailSeq() {
+        return mTailSeq.get();
+    }
+
+    /**
+     * Returns true if any Readers are open.
+     */
+    public boolean hasReaders() {
+        return mReaderCount.get() > 0;
+    }
+
+    /**
+     * Returns the number of packets from first to last, inclusive.
+     */
+    public int countPackets(int first, int last) {
+        return ((last - first) & mMetaMask) + 1;
+    }
+
+    /**
+     * Returns the sequence number of the packet at index.  Valid until the next add().
+     */
+    public long getSeq(int index) {
+        return mSlotSeq.get(index);
+    }
+
+    /**
+     * Returns the meta-data index of the packet with sequence number seq.  Only meaningful
+     * while the packet is in the buffer, e.g. while it's pinned.
+     */
+    public int getIndex(long seq) {
+        return (int) seq & mMetaMask;
+    }
+
+    /**
+     * Pins a packet, and so everything after it, so it can be read in place.  May be called
+     * from any thread.  The pin holds until one of the pinned packets is evicted; see
+     * movePin() and unpin().
+     *
+     * @return A handle to pass to movePin() and unpin(), or -1 if the packet isn't in the
+     *     buffer (it has already been evicted), or too many packets are already pinned.
+     */
+    public int pin(long seq) {
+        synchronized (mPinLock) {
+            awaitResizeLocked();
+            for (int i = 0; i < MAX_PINS; i++) {
+                if (mPins[i] == PIN_FREE) {
+                    mPins[i] = seq;
+                    mPinCount++;
+                    // Only now look at the tail; see the notes on mPins.
+                    if (seq < mTailSeq.get() || seq >= mHeadSeq) {
+                        mPins[i] = PIN_FREE;
+                        mPinCount--;
+                        return -1;
+                    }
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves a pin forward to seq, letting go of the packets before it.  May be called from
+     * any thread.
+     *
+     * @return false if the pin has been revoked, i.e. a pinned packet was evicted.  Anything
+     *     read in place since the pin was taken or last moved may be corrupt.  The pin stays
+     *     where it was, and must still be released with unpin().
+     */
+    public boolean movePin(int handle, long seq) {
+        synchronized (mPinLock) {
+            checkPinHeldLocked(handle);
+            if (mPins[handle] == PIN_REVOKED) {
+                return false;
+            }
+            if (seq < mPins[handle]) {
+                throw new IllegalArgumentException("Pin " + handle + " can't move back to " +
+                        seq + " from " + mPins[handle]);
+            }
+            mPins[handle] = seq;
+            return true;
+        }
+    }
+
+    /**
+     * Releases a pin.  May be called from any thread.
+     *
+     * @return false if the pin had been revoked; see movePin().
+     */
+    public boolean unpin(int handle) {
+        synchronized (mPinLock) {
+            checkPinHeldLocked(handle);
+            boolean held = mPins[handle] != PIN_REVOKED;
+            mPins[handle] = PIN_FREE;
+            mPinCount--;
+            return held;
+        }
+    }
+
+    /**
+     * Returns true if a pin has been revoked; see movePin().  May be called from any thread.
+     */
+    public boolean isPinRevoked(int handle) {
+        synchronized (mPinLock) {
+            checkPinHeldLocked(handle);
+            return mPins[handle] == PIN_REVOKED;
+        }
+    }
+
+    /**
+     * Returns true if anything is pinned.
+     */
+    public boolean isPinned() {
+        return mPinCount > 0;
+    }
+
+    /**
+     * Returns the number of pins add() has revoked because it had to evict a pinned packet.
+     */
+    public int getRevokedPinCount() {
+        synchronized (mPinLock) {
+            return mRevokedPinCount;
+        }
+    }
+
+    private void checkPinHeldLocked(int handle) {
+        if (mPins[handle] == PIN_FREE) {
+            throw new IllegalStateException("Pin " + handle + " not held");
+        }
+    }
+
+    /**
+     * Revokes any pins on packets that are no longer in the buffer.  Call after moving the
+     * tail, and before overwriting anything.
+     */
+    private void revokePins() {
+        long tailSeq = mTailSeq.get();
+        synchronized (mPinLock) {
+            for (int i = 0; i < MAX_PINS; i++) {
+                if (mPins[i] >= 0 && mPins[i] < tailSeq) {
+                    Log.w(TAG, "evicting pinned packet " + mPins[i] + "; revoking the pin");
+                    mPins[i] = PIN_REVOKED;
+                    mRevokedPinCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a resize in progress to finish.  Call with mPinLock held.
+     */
+    private void awaitResizeLocked() {
+        boolean interrupted = false;
+        while (mResizing) {
+            try {
+                mPinLock.wait();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a reference to a ByteBuffer with the data, and fills in the BufferInfo.
+     * <p>
+     * A packet stored in one piece is returned in place, with info.offset pointing at it.
+     * A packet that wraps around the end of the ring is copied into a scratch buffer that
+     * is reused by the next call, so consume the data before asking for another chunk.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataMask + 1;
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -208,18 +1007,68 @@ public class CircularEncoderBuffer {
 
         if (packetStart + length <= dataLen) {
             // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
+            mReadView.clear();
+            return mReadView;
         } else {
             // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            getChunkViews(index, mSplitViews);
+            ByteBuffer tempBuf = mScratchBuffer;
+            tempBuf.clear();
+            tempBuf.put(mSplitViews[0]);
+            tempBuf.put(mSplitViews[1]);
+            tempBuf.flip();
             info.offset = 0;
             return tempBuf;
         }
     }
 
+    /**
+     * Sets up views onto the packet data without copying it.  On return, each of the first
+     * N views has position and limit bracketing one piece of the packet, where N (1 or 2) is
+     * the return value.  views must hold at least two entries; a null entry is replaced
+     * with a new duplicate of the ring, which the caller should keep for next time.
+     * <p>
+     * The caller must not modify the contents of the views.
+     */
+    public int getChunkViews(int index, ByteBuffer[] views) {
+        final int dataLen = mDataMask + 1;
+        int packetStart = mPacketStart[index];
+        int length = mPacketLength[index];
+
+        ByteBuffer first = views[0];
+        if (first == null) {
+            first = views[0] = mDataBuffer.duplicate();
+        }
+        first.clear();
+        if (packetStart + length <= dataLen) {
+            first.position(packetStart);
+            first.limit(packetStart + length);
+            return 1;
+        }
+
+        ByteBuffer second = views[1];
+        if (second == null) {
+            second = views[1] = mDataBuffer.duplicate();
+        }
+        int firstSize = dataLen - packetStart;
+        first.position(packetStart);
+        second.clear();
+        second.limit(length - firstSize);
+        return 2;
+    }
+
+    /**
+     * Fills in the BufferInfo for a packet without touching its data.  info.offset is set to
+     * zero; use getChunkViews() to find the data.  Like getChunkViews(), this may be used on
+     * another thread for a pinned packet.
+     */
+    public void getChunkInfo(int index, MediaCodec.BufferInfo info) {
+        info.offset = 0;
+        info.size = mPacketLength[index];
+        info.presentationTimeUs = mPacketPtsUsec[index];
+        info.flags = mPacketFlags[index];
+    }
+
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p>
@@ -231,11 +1080,8 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
-
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
+        int beforeHead = (mMetaHead - 1) & mMetaMask;
+        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) & mDataMask;
     }
 
     /**
@@ -245,8 +1091,7 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        final int dataLen = mDataMask + 1;
 
         if (size > dataLen) {
             throw new RuntimeException("Enormous packet: " + size + " vs. buffer " +
@@ -258,7 +1103,7 @@ public class CircularEncoderBuffer {
         }
 
         // Make sure we can advance head without stepping on the tail.
-        int nextHead = (mMetaHead + 1) % metaLen;
+        int nextHead = (mMetaHead + 1) & mMetaMask;
         if (nextHead == mMetaTail) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
@@ -270,8 +1115,10 @@ public class CircularEncoderBuffer {
         // "head" will store its data.
         int headStart = getHeadStart();
         int tailStart = mPacketStart[mMetaTail];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        // getHeadStart() leaves a one-byte gap after each packet, so a packet that exactly
+        // fills the free space would push the next head start past the tail.
+        int freeSpace = (tailStart - headStart) & mDataMask;
+        if (size >= freeSpace) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
                     " req=" + size + " free=" + freeSpace + ")");
@@ -281,7 +1128,7 @@ public class CircularEncoderBuffer {
 
         if (VERBOSE) {
             Log.v(TAG, "OK: size=" + size + " free=" + freeSpace + " metaFree=" +
-                    ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
+                    (((mMetaTail - mMetaHead) & mMetaMask) - 1));
         }
 
         return true;
@@ -294,7 +1141,290 @@ public class CircularEncoderBuffer {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
-        final int metaLen = mPacketStart.length;
-        mMetaTail = (mMetaTail + 1) % metaLen;
+        // Tell lock-free readers and pin holders before anything gets overwritten.
+        mTailSeq.addAndGet(1);
+        if (mPinCount > 0) {
+            revokePins();
+        }
+        mEvictedPackets++;
+        mEvictedBytes += mPacketLength[mMetaTail] + 1;
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            retireSyncFrame(mMetaTail);
+            mSyncTail = (mSyncTail + 1) & mMetaMask;
+            mEvictedGops++;
+        }
+        mMetaTail = (mMetaTail + 1) & mMetaMask;
+    }
+
+    /**
+     * Removes everything up to the second sync frame, i.e. the GOP at the tail, in one step.
+     * If the tail isn't on a sync frame (we started mid-GOP, or the buffer is too small for
+     * a whole GOP), removes everything up to the first one instead.  If there's no sync
+     * frame to stop at, the buffer is emptied.
+     */
+    private void removeTailGop() {
+        if (mMetaHead == mMetaTail) {
+            throw new RuntimeException("Can't removeTailGop() in empty buffer");
+        }
+
+        int newTail;
+        int syncsRemoved;
+        int syncCount = (mSyncHead - mSyncTail) & mMetaMask;
+        if (syncCount > 0 && mSyncIndex[mSyncTail] != mMetaTail) {
+            // Partial GOP at the tail.
+            newTail = mSyncIndex[mSyncTail];
+            syncsRemoved = 0;
+        } else if (syncCount > 1) {
+            newTail = mSyncIndex[(mSyncTail + 1) & mMetaMask];
+            syncsRemoved = 1;
+        } else {
+            Log.w(TAG, "buffer too small for the GOP being added; emptying it");
+            newTail = mMetaHead;
+            syncsRemoved = syncCount;
+        }
+
+        int count = (newTail - mMetaTail) & mMetaMask;
+        // Tell lock-free readers and pin holders before anything gets overwritten.
+        mTailSeq.addAndGet(count);
+        if (mPinCount > 0) {
+            revokePins();
+        }
+
+        // Space freed, including the gaps between packets.
+        int endStart = newTail == mMetaHead ? getHeadStart() : mPacketStart[newTail];
+        int freed = (endStart - mPacketStart[mMetaTail]) & mDataMask;
+        if (freed == 0) {
+            // Only possible if we just emptied a completely full ring.
+            freed = mDataMask + 1;
+        }
+        mEvictedBytes += freed;
+        mEvictedPackets += count;
+        mEvictedGops += syncsRemoved;
+
+        for (int i = 0; i < syncsRemoved; i++) {
+            retireSyncFrame(mSyncIndex[mSyncTail]);
+            mSyncTail = (mSyncTail + 1) & mMetaMask;
+        }
+        mMetaTail = newTail;
+    }
+
+    /**
+     * Copies a sync frame that's about to be evicted into the long tail, if there is one.
+     * Must be called before anything overwrites it.
+     */
+    private void retireSyncFrame(int index) {
+        if (mLongTail == null) {
+            return;
+        }
+        ByteBuffer buf = getChunk(index, mRetireInfo);
+        buf.position(mRetireInfo.offset);
+        buf.limit(mRetireInfo.offset + mRetireInfo.size);
+        mLongTail.add(buf, mRetireInfo.flags, mRetireInfo.presentationTimeUs);
+    }
+
+    /**
+     * Keeps the sync frames of evicted GOPs in a second buffer, rather than discarding them.
+     * See {@link #getLongTail()}.  Call on the adding thread.
+     *
+     * @param dataSize Size of the long tail's data buffer; rounded up to a power of two.
+     * @param maxFrames Most sync frames to keep (rounded up, like the meta-data count).
+     *     With one sync frame a second, this is roughly the number of seconds of extra
+     *     history.  Whichever of this and dataSize runs out first is the limit.
+     */
+    public void enableLongTail(int dataSize, int maxFrames) {
+        if (mLongTail != null) {
+            throw new IllegalStateException("Long tail already enabled");
+        }
+        // +1 because the head slot is always empty.
+        mLongTail = new CircularEncoderBuffer(
+                allocateData(roundUpPowerOfTwo(dataSize), mDataBuffer.isDirect()),
+                maxFrames + 1);
+        mRetireInfo = new MediaCodec.BufferInfo();
+    }
+
+    /**
+     * Returns the long tail, or null if it isn't enabled.  It holds only sync frames, all
+     * older than the oldest frame in this buffer, and it's filled as this buffer evicts, so
+     * it has the same threading rules: use it on the adding thread, and pin or use a
+     * {@link Reader} elsewhere.
+     */
+    public CircularEncoderBuffer getLongTail() {
+        return mLongTail;
+    }
+
+    /**
+     * Selects whole-GOP eviction (the default) or the old one-packet-at-a-time eviction.
+     */
+    public void setEvictWholeGops(boolean evictWholeGops) {
+        mEvictWholeGops = evictWholeGops;
+    }
+
+    /**
+     * Returns the total number of bytes of ring space freed by eviction, including the
+     * one-byte gaps between packets.
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    /**
+     * Returns the total number of packets evicted.
+     */
+    public long getEvictedPackets() {
+        return mEvictedPackets;
+    }
+
+    /**
+     * Returns the total number of GOPs (sync frames) evicted.
+     */
+    public int getEvictedGops() {
+        return mEvictedGops;
+    }
+
+    /**
+     * Reads packets on behalf of a thread other than the one adding data.  Each thread needs
+     * its own Reader, and must close() it when done; the buffer can't be resized while any
+     * Readers are open.
+     * <p>
+     * getChunk() reads a pinned range in place; only read packets in a range that's pinned
+     * for you, and walk it with getNextIndex(int, int).  peek() and read() work on any
+     * packet by sequence number, without pinning, and copy it out.
+     */
+    public class Reader implements Closeable {
+        private final ByteBuffer[] mViews = new ByteBuffer[2];
+        private final ByteBuffer mCopyView;
+        private ByteBuffer mSource;
+        private ByteBuffer mScratch;
+        private boolean mClosed;
+
+        public Reader() {
+            synchronized (mPinLock) {
+                awaitResizeLocked();
+                mReaderCount.incrementAndGet();
+            }
+            mCopyView = mDataBuffer.duplicate();
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mReaderCount.decrementAndGet();
+            }
+        }
+
+        /**
+         * Like {@link CircularEncoderBuffer#getChunk}, but split packets are copied into a
+         * scratch buffer owned by this Reader.
+         */
+        public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+            if (mSource != mDataBuffer) {
+                // First use, or the buffer was resized since.
+                mSource = mDataBuffer;
+                mViews[0] = mViews[1] = null;
+            }
+
+            info.flags = mPacketFlags[index];
+            info.offset = mPacketStart[index];
+            info.presentationTimeUs = mPacketPtsUsec[index];
+            info.size = mPacketLength[index];
+
+            if (getChunkViews(index, mViews) == 1) {
+                return mViews[0];
+            }
+
+            if (mScratch == null || mScratch.capacity() < info.size) {
+                mScratch = ByteBuffer.allocateDirect(roundUpPowerOfTwo(info.size));
+            }
+            mScratch.clear();
+            mScratch.put(mViews[0]);
+            mScratch.put(mViews[1]);
+            mScratch.flip();
+            info.offset = 0;
+            return mScratch;
+        }
+
+        /**
+         * Fills in the BufferInfo for a packet, without copying its data.  info.offset is
+         * set to zero.
+         *
+         * @return The packet size, READ_OVERWRITTEN, or READ_NOT_READY.
+         */
+        public int peek(long seq, MediaCodec.BufferInfo info) {
+            return read(seq, null, info);
+        }
+
+        /**
+         * Copies a packet into dst, at its position, and fills in the BufferInfo.  On
+         * success dst's position is advanced past the packet and info.offset is where it
+         * starts; otherwise dst is left as it was.
+         *
+         * @param dst Destination, or null to just read the meta-data.
+         * @return The packet size, READ_OVERWRITTEN, or READ_NOT_READY.
+         * @throws IllegalArgumentException if dst isn't big enough.
+         */
+        public int read(long seq, ByteBuffer dst, MediaCodec.BufferInfo info) {
+            if (seq >= mHeadSeq) {
+                return READ_NOT_READY;
+            }
+            if (seq < mTailSeq.get()) {
+                return READ_OVERWRITTEN;
+            }
+            final int dataLen = mDataMask + 1;
+            final int index = (int) seq & mMetaMask;
+            if (mSlotSeq.get(index) != seq) {
+                return READ_OVERWRITTEN;
+            }
+
+            int flags = mPacketFlags[index];
+            long ptsUsec = mPacketPtsUsec[index];
+            int packetStart = mPacketStart[index];
+            int length = mPacketLength[index];
+
+            int dstStart = 0;
+            if (dst != null) {
+                // If the packet was overwritten mid-read, start and length could be anything.
+                if (packetStart < 0 || packetStart >= dataLen || length < 0 || length > dataLen) {
+                    return READ_OVERWRITTEN;
+                }
+                if (length > dst.remaining()) {
+                    if (!isStillValid(seq, index)) {
+                        return READ_OVERWRITTEN;
+                    }
+                    throw new IllegalArgumentException("Packet of " + length +
+                            " bytes doesn't fit in " + dst.remaining());
+                }
+
+                dstStart = dst.position();
+                int firstSize = Math.min(length, dataLen - packetStart);
+                ByteBuffer src = mCopyView;
+                src.clear();
+                src.position(packetStart);
+                src.limit(packetStart + firstSize);
+                dst.put(src);
+                if (firstSize < length) {
+                    src.clear();
+                    src.limit(length - firstSize);
+                    dst.put(src);
+                }
+            }
+
+            if (!isStillValid(seq, index)) {
+                if (dst != null) {
+                    dst.position(dstStart);
+                }
+                return READ_OVERWRITTEN;
+            }
+            info.offset = dstStart;
+            info.size = length;
+            info.presentationTimeUs = ptsUsec;
+            info.flags = flags;
+            return length;
+        }
+
+        private boolean isStillValid(long seq, int index) {
+            // See the notes on mTailSeq for why this is an RMW.
+            return mTailSeq.getAndAdd(0) <= seq && mSlotSeq.get(index) == seq;
+        }
     }
 }
@@ -0,0 +1,236 @@
+package circam.app;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * EGL state for the render thread: display, config, context, and the window surfaces drawn
+ * with them.
+ * <p>
+ * The config is chosen with EGL_RECORDABLE_ANDROID, so a surface made from it on the
+ * encoder's input Surface hands frames to the encoder in a format it can take directly.
+ * Without it, many GPUs add a colour conversion copy in front of the encoder.  Every surface
+ * shares the one context, so a frame rendered offscreen can be drawn to each of them.
+ * <p>
+ * A second EglCore can share GL objects with the first, for loading shaders and textures on
+ * another thread.  It draws to a small pbuffer rather than a window.
+ * <p>
+ * We ask for GLES 3 where there is one, and settle for 2.  The shaders are all GLES 2, but
+ * a GLES 3 context can hand back linked programs to keep; see ProgramBinaryCache.
+ * <p>
+ * Not thread-safe; use it on the thread that created it.
+ */
+public class EglCore {
+    private static final String TAG = "EglCore";
+
+    // Android-specific extension.
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    // From EGL_KHR_create_context; EGL14 doesn't have it.
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x0040;
+
+    private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig mEGLConfig;
+    private int mGlVersion;
+
+    /**
+     * Makes a GLES 3 or 2 context with a recordable RGB888 config.
+     */
+    public EglCore() {
+        this(null);
+    }
+
+    /**
+     * Makes a GLES 3 or 2 context.
+     *
+     * @param sharedWith If not null, the new context shares programs, textures and buffers
+     *     with this one, is the same GLES version if it can be, and its config is for
+     *     pbuffers rather than the encoder.
+     */
+    public EglCore(EglCore sharedWith) {
+        mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("unable to get EGL14 display");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mEGLDisplay, version, 0, version, 1)) {
+            mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+            throw new RuntimeException("unable to initialize EGL14");
+        }
+
+        if (sharedWith == null || sharedWith.mGlVersion == 3) {
+            tryContext(3, sharedWith);
+        }
+        if (mEGLContext == EGL14.EGL_NO_CONTEXT) {
+            tryContext(2, sharedWith);
+        }
+        if (mEGLContext == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("unable to make GLES context" +
+                    (sharedWith == null ? " (recordable)" : " (pbuffer)"));
+        }
+        Log.d(TAG, "GLES " + mGlVersion + " context");
+    }
+
+    /**
+     * Makes a context of the given GLES version, if there's a config for it.
+     */
+    private void tryContext(int version, EglCore sharedWith) {
+        // No alpha: the encoder can't use it, and some drivers won't make a recordable
+        // config with it.
+        int[] attribList = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE,
+                version == 3 ? EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        if (sharedWith != null) {
+            attribList[8] = EGL14.EGL_SURFACE_TYPE;
+            attribList[9] = EGL14.EGL_PBUFFER_BIT;
+        }
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
+                numConfigs, 0) || numConfigs[0] == 0) {
+            Log.w(TAG, "no RGB888 GLES " + version + " EGL config");
+            return;
+        }
+
+        int[] contextAttribs = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, version,
+                EGL14.EGL_NONE
+        };
+        EGLContext context = EGL14.eglCreateContext(mEGLDisplay, configs[0],
+                sharedWith != null ? sharedWith.mEGLContext : EGL14.EGL_NO_CONTEXT,
+                contextAttribs, 0);
+        int error = EGL14.eglGetError();
+        if (context == null || context == EGL14.EGL_NO_CONTEXT || error != EGL14.EGL_SUCCESS) {
+            Log.w(TAG, "eglCreateContext GLES " + version + ": EGL error: 0x" +
+                    Integer.toHexString(error));
+            return;
+        }
+        mEGLConfig = configs[0];
+        mEGLContext = context;
+        mGlVersion = version;
+    }
+
+    /**
+     * Returns the GLES version of the context, 2 or 3.
+     */
+    public int getGlVersion() {
+        return mGlVersion;
+    }
+
+    /**
+     * Discards all resources held by this class, notably the EGL context.  Surfaces should
+     * have been released already.
+     */
+    public void release() {
+        if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+            // Android is unusual in that it uses a reference-counted EGLDisplay.  So for
+            // every eglInitialize() we need an eglTerminate().
+            EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mEGLDisplay);
+        }
+
+        mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+        mEGLContext = EGL14.EGL_NO_CONTEXT;
+        mEGLConfig = null;
+    }
+
+    /**
+     * Creates a window surface on a Surface or SurfaceTexture.
+     */
+    public EGLSurface createWindowSurface(Object surface) {
+        if (!(surface instanceof Surface) && !(surface instanceof SurfaceTexture)) {
+            throw new RuntimeException("invalid surface: " + surface);
+        }
+
+        int[] surfaceAttribs = {
+                EGL14.EGL_NONE
+        };
+        EGLSurface eglSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, surface,
+                surfaceAttribs, 0);
+        checkEglError("eglCreateWindowSurface");
+        if (eglSurface == null) {
+            throw new RuntimeException("surface was null");
+        }
+        return eglSurface;
+    }
+
+    /**
+     * Creates an offscreen surface, for a context that only loads things.
+     */
+    public EGLSurface createOffscreenSurface(int width, int height) {
+        int[] surfaceAttribs = {
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
+        };
+        EGLSurface eglSurface = EGL14.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig,
+                surfaceAttribs, 0);
+        checkEglError("eglCreatePbufferSurface");
+        if (eglSurface == null) {
+            throw new RuntimeException("surface was null");
+        }
+        return eglSurface;
+    }
+
+    /**
+     * Destroys the specified surface.  The EGLSurface reference must not be used again.
+     */
+    public void releaseSurface(EGLSurface eglSurface) {
+        EGL14.eglDestroySurface(mEGLDisplay, eglSurface);
+    }
+
+    /**
+     * Makes our context current, drawing to and reading from the surface.
+     */
+    public void makeCurrent(EGLSurface eglSurface) {
+        if (!EGL14.eglMakeCurrent(mEGLDisplay, eglSurface, eglSurface, mEGLContext)) {
+            throw new RuntimeException("eglMakeCurrent failed");
+        }
+    }
+
+    /**
+     * Calls eglSwapBuffers.  Use this to "publish" the current frame.
+     *
+     * @return false on failure
+     */
+    public boolean swapBuffers(EGLSurface eglSurface) {
+        return EGL14.eglSwapBuffers(mEGLDisplay, eglSurface);
+    }
+
+    /**
+     * Sends the presentation time stamp to EGL.  For the encoder this is the frame's
+     * timestamp in the video; for the display, when it should be shown.
+     *
+     * @param nsecs Timestamp, in nanoseconds.
+     */
+    public void setPresentationTime(EGLSurface eglSurface, long nsecs) {
+        EGLExt.eglPresentationTimeANDROID(mEGLDisplay, eglSurface, nsecs);
+    }
+
+    /**
+     * Checks for EGL errors.  Throws an exception if an error has been raised.
+     */
+    private void checkEglError(String msg) {
+        int error;
+        if ((error = EGL14.eglGetError()) != EGL14.EGL_SUCCESS) {
+            Log.e(TAG, msg + ": EGL error: 0x" + Integer.toHexString(error));
+            throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
+        }
+    }
+}
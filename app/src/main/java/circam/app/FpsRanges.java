@@ -0,0 +1,60 @@
+package circam.app;
+
+import java.util.List;
+
+/**
+ * Picks the camera frame rate range to ask for.
+ * <p>
+ * The encoder and the ring buffer are sized for a frame rate, and the render scheduler's
+ * deadlines assume it, so a fixed range (min == max) is best: auto-exposure can't slow the
+ * camera down in dim light.  We take the highest fixed range that's allowed.  Failing that,
+ * the variable range with the highest minimum, since the minimum is the rate we can count on.
+ */
+final class FpsRanges {
+    private FpsRanges() {}
+
+    /**
+     * @param ranges Supported {min, max} ranges, in frames per 1000 seconds.
+     * @param maxThousandFps Highest rate wanted, in the same units.
+     * @return The chosen range, or null if there are none.
+     */
+    static int[] chooseRange(List<int[]> ranges, int maxThousandFps) {
+        int[] bestFixed = null;
+        int[] bestVariable = null;
+        for (int[] range : ranges) {
+            if (range[0] > maxThousandFps) {
+                continue;
+            }
+            if (range[0] == range[1]) {
+                if (bestFixed == null || range[0] > bestFixed[0]) {
+                    bestFixed = range;
+                }
+            } else if (bestVariable == null || range[0] > bestVariable[0] ||
+                    (range[0] == bestVariable[0] && range[1] > bestVariable[1])) {
+                bestVariable = range;
+            }
+        }
+        if (bestFixed != null) {
+            return bestFixed;
+        }
+        if (bestVariable != null) {
+            return bestVariable;
+        }
+        // Everything is faster than we asked for; take the slowest.
+        int[] slowest = null;
+        for (int[] range : ranges) {
+            if (slowest == null || range[0] < slowest[0]) {
+                slowest = range;
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * Returns the frame rate to expect from a range chosen by chooseRange(), in frames
+     * per 1000 seconds.
+     */
+    static int expectedThousandFps(int[] range, int maxThousandFps) {
+        return Math.max(range[0], Math.min(range[1], maxThousandFps));
+    }
+}
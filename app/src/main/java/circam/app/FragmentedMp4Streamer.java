@@ -0,0 +1,724 @@
+package circam.app;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static circam.app.Mp4Boxes.TIMESCALE;
+import static circam.app.Mp4Boxes.endBox;
+import static circam.app.Mp4Boxes.startBox;
+import static circam.app.Mp4Boxes.startFullBox;
+import static circam.app.Mp4Boxes.usecToTicks;
+
+/**
+ * Streams the contents of a CircularEncoderBuffer as fragmented MP4, to any number of
+ * viewers on sockets.
+ * <p>
+ * Each viewer gets an init segment (ftyp + moov), then one fragment (moof + mdat) per GOP.
+ * A new viewer starts with a catch-up burst of everything from the oldest sync frame in the
+ * buffer, and then gets each GOP as the encoder finishes it.  The encoder thread just tells
+ * us where GOPs start and end, by sequence number; a streamer thread copies them out with a
+ * lock-free {@link CircularEncoderBuffer.Reader} and writes to the viewers with non-blocking
+ * I/O, so nothing a viewer does can hold up the encoder.
+ * <p>
+ * Every viewer has its own cursor: the sequence number of the next GOP to send it.  A viewer
+ * that reads too slowly falls behind until the GOP at its cursor is overwritten, and is then
+ * skipped ahead to the oldest whole GOP that's still there.  Fragments are built once and
+ * shared by every viewer that's at the same place, and only the small moof box, which holds
+ * the viewer's own timeline, is built per viewer.  Each viewer's timeline starts at zero.
+ * <p>
+ * Viewers can be handed over as connected SocketChannels, or the streamer can listen for
+ * HTTP connections on the loopback interface (see {@link #listen(int, String)}), e.g. for a
+ * local player.  Any app on the device can connect there, so only a GET for the path with
+ * the session's token gets the stream; anything else gets a 404 and is hung up on.
+ */
+public class FragmentedMp4Streamer {
+    private static final String TAG = "FragmentedMp4Streamer";
+    private static final boolean VERBOSE = false;
+
+    // GOPs we remember.  Far more than the buffer holds, at one GOP a second.
+    private static final int MAX_GOPS = 256;
+    // Fragments kept around for viewers that are at the same place.
+    private static final int MAX_CACHED_FRAGMENTS = 4;
+    private static final byte[] HTTP_RESPONSE = ("HTTP/1.0 200 OK\r\n" +
+            "Content-Type: video/mp4\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "\r\n").getBytes();
+    private static final byte[] HTTP_NOT_FOUND = ("HTTP/1.0 404 Not Found\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n").getBytes();
+    // Longest request line we'll wait for.
+    private static final int MAX_REQUEST_LINE = 1024;
+    private static final int TOKEN_BYTES = 16;
+
+    private final CircularEncoderBuffer mBuffer;
+    private final ByteBuffer mInitSegment;
+    private final Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    // GOPs, by sequence number, oldest first.  Added on the encoder thread.
+    private final Object mGopLock = new Object();
+    private final long[] mGopStart = new long[MAX_GOPS];
+    private final long[] mGopEnd = new long[MAX_GOPS];
+    private long mGopCount;
+
+    // Connections waiting to be registered with the selector on the streamer thread.
+    private final List<SocketChannel> mNewViewers = new ArrayList<>();
+    private final List<Boolean> mNewViewersHttp = new ArrayList<>();
+    private ServerSocketChannel mServer;
+    private volatile byte[] mPath;              // "/" + token, as sent by viewers
+
+    // Streamer thread state.
+    private final List<Viewer> mViewers = new ArrayList<>();
+    private final Fragment[] mCache = new Fragment[MAX_CACHED_FRAGMENTS];
+    private int mCacheNext;
+    private final List<Fragment> mFreeFragments = new ArrayList<>();
+    private final Mp4Boxes.NalScanner mScanner = new Mp4Boxes.NalScanner();
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer mPacket = ByteBuffer.allocateDirect(256 * 1024);
+
+    private volatile int mGopsSkipped;
+    private volatile int mFragmentsSent;
+
+    /**
+     * One GOP, converted to MP4 samples.  Immutable once built, until it's recycled.
+     */
+    private static class Fragment {
+        long mFirstSeq;
+        long mFirstPtsUsec;
+        int mSampleCount;
+        int[] mSizes = new int[64];
+        int[] mDurations = new int[64];
+        int[] mFlags = new int[64];
+        ByteBuffer mPayload = ByteBuffer.allocate(256 * 1024);
+        int mUsers;
+        boolean mCached;
+    }
+
+    /**
+     * A connected viewer, and where it's got to.
+     */
+    private static class Viewer {
+        final SocketChannel mChannel;
+        final SelectionKey mKey;
+        final boolean mHttp;
+        ByteBuffer mRequest;            // HTTP request line, until it's been checked
+        boolean mStarted;
+        long mNextSeq = -1;             // start of the next GOP to send; -1 until the first
+        long mBasePtsUsec;              // PTS at time zero
+        int mSequence;                  // fragment sequence number
+        ByteBuffer mHeader = ByteBuffer.allocate(4096);
+        final ByteBuffer[] mPending = new ByteBuffer[2];
+        Fragment mFragment;             // being sent
+
+        Viewer(SocketChannel channel, SelectionKey key, boolean http) {
+            mChannel = channel;
+            mKey = key;
+            mHttp = http;
+            if (http) {
+                mRequest = ByteBuffer.allocate(MAX_REQUEST_LINE);
+            }
+        }
+    }
+
+    /**
+     * @param format The encoder's output format, with csd-0 (SPS) and csd-1 (PPS).
+     */
+    public FragmentedMp4Streamer(CircularEncoderBuffer buffer, MediaFormat format)
+            throws IOException {
+        this(buffer, format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT), format.getByteBuffer("csd-0"),
+                format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * @param sps Sequence parameter set, with or without a start code.
+     * @param pps Picture parameter set, with or without a start code.
+     */
+    public FragmentedMp4Streamer(CircularEncoderBuffer buffer, int width, int height,
+            ByteBuffer sps, ByteBuffer pps) throws IOException {
+        if (sps == null || pps == null) {
+            throw new IllegalArgumentException("Need both SPS and PPS");
+        }
+        mBuffer = buffer;
+        mInitSegment = buildInitSegment(width, height, Mp4Boxes.stripStartCode(sps),
+                Mp4Boxes.stripStartCode(pps));
+        mSelector = Selector.open();
+    }
+
+    /**
+     * Starts the streamer thread.
+     */
+    public void start() {
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the streamer thread and disconnects every viewer.  Does not return until the
+     * thread has stopped.
+     */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Streamer thread join() was interrupted", ie);
+        }
+        Log.d(TAG, mFragmentsSent + " fragments sent, " + mGopsSkipped + " GOPs skipped");
+    }
+
+    /**
+     * Returns a new random token for {@link #listen(int, String)}, hard to guess and safe in
+     * a URL path.
+     */
+    public static String newToken() {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : random) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16));
+            token.append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Accepts HTTP connections on the loopback interface, streaming to those that ask for
+     * /token.  Call once, after start().
+     *
+     * @param port Port to listen on, or 0 to pick one.
+     * @param token The path viewers must ask for, without the slash; see {@link #newToken()}.
+     * @return The port we're listening on.
+     */
+    public int listen(int port, String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("Need a token");
+        }
+        mPath = ("/" + token).getBytes(StandardCharsets.US_ASCII);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        server.configureBlocking(false);
+        synchronized (mNewViewers) {
+            mServer = server;
+        }
+        mSelector.wakeup();
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Starts streaming to a connected socket, raw: no HTTP response header.  May be called
+     * from any thread.
+     */
+    public void addViewer(SocketChannel channel) {
+        addViewer(channel, false);
+    }
+
+    private void addViewer(SocketChannel channel, boolean http) {
+        synchronized (mNewViewers) {
+            mNewViewers.add(channel);
+            mNewViewersHttp.add(http);
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Tells the streamer that the packets with sequence numbers [firstSeq, endSeq) make up
+     * a GOP.  Call on the thread that adds to the buffer, in order, when the sync frame that
+     * ends the GOP has been added.
+     */
+    public void onGop(long firstSeq, long endSeq) {
+        synchronized (mGopLock) {
+            int slot = (int) (mGopCount % MAX_GOPS);
+            mGopStart[slot] = firstSeq;
+            mGopEnd[slot] = endSeq;
+            mGopCount++;
+        }
+        mSelector.wakeup();
+    }
+
+    /** Returns the number of GOPs viewers have missed by reading too slowly. */
+    public int getGopsSkipped() {
+        return mGopsSkipped;
+    }
+
+    /** Returns the number of fragments sent, over all viewers. */
+    public int getFragmentsSent() {
+        return mFragmentsSent;
+    }
+
+    /**
+     * Streamer thread main loop.
+     */
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                mSelector.selectedKeys().clear();
+                registerNewViewers();
+                acceptConnections();
+
+                for (int i = mViewers.size() - 1; i >= 0; i--) {
+                    Viewer viewer = mViewers.get(i);
+                    try {
+                        service(viewer);
+                    } catch (IOException ioe) {
+                        if (VERBOSE) Log.d(TAG, "viewer gone: " + ioe);
+                        dropViewer(viewer);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "streamer failed", ioe);
+        } finally {
+            for (int i = mViewers.size() - 1; i >= 0; i--) {
+                dropViewer(mViewers.get(i));
+            }
+            try {
+                if (mServer != null) {
+                    mServer.close();
+                }
+                mSelector.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "close failed", ioe);
+            }
+        }
+    }
+
+    private void registerNewViewers() throws IOException {
+        synchronized (mNewViewers) {
+            if (mServer != null && mServer.keyFor(mSelector) == null) {
+                mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+            }
+            for (int i = 0; i < mNewViewers.size(); i++) {
+                SocketChannel channel = mNewViewers.get(i);
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(mSelector, 0);
+                mViewers.add(new Viewer(channel, key, mNewViewersHttp.get(i)));
+            }
+            mNewViewers.clear();
+            mNewViewersHttp.clear();
+        }
+    }
+
+    private void acceptConnections() throws IOException {
+        if (mServer == null) {
+            return;
+        }
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            Log.d(TAG, "viewer connected from " + channel.socket().getRemoteSocketAddress());
+            addViewer(channel, true);
+        }
+        registerNewViewers();
+    }
+
+    private void dropViewer(Viewer viewer) {
+        releaseFragment(viewer);
+        viewer.mKey.cancel();
+        try {
+            viewer.mChannel.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "close failed", ioe);
+        }
+        mViewers.remove(viewer);
+    }
+
+    /**
+     * Sends a viewer as much as it will take without blocking.  An HTTP viewer gets nothing
+     * until its request has arrived and asked for the right path.
+     */
+    private void service(Viewer viewer) throws IOException {
+        if (viewer.mRequest != null && !readRequest(viewer)) {
+            viewer.mKey.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        while (true) {
+            if (viewer.mPending[1] == null || !viewer.mPending[1].hasRemaining()) {
+                releaseFragment(viewer);
+                if (!prepareNext(viewer)) {
+                    viewer.mKey.interestOps(0);
+                    return;
+                }
+            }
+            viewer.mChannel.write(viewer.mPending);
+            if (viewer.mPending[1].hasRemaining()) {
+                // Socket's full; wait until it isn't.
+                viewer.mKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads as much of an HTTP viewer's request as has arrived, and checks its request line.
+     * The headers, if any, are ignored.
+     *
+     * @return false if the request line isn't all here yet.
+     * @throws IOException if the viewer hung up, or asked for something else, in which case
+     *     it has been told so.
+     */
+    private boolean readRequest(Viewer viewer) throws IOException {
+        ByteBuffer request = viewer.mRequest;
+        if (viewer.mChannel.read(request) < 0) {
+            throw new IOException("viewer hung up before asking for anything");
+        }
+        int lineEnd = -1;
+        for (int i = 0; i < request.position(); i++) {
+            if (request.get(i) == '\r' || request.get(i) == '\n') {
+                lineEnd = i;
+                break;
+            }
+        }
+        if (lineEnd < 0 && request.hasRemaining()) {
+            return false;
+        }
+
+        // "GET /token HTTP/1.1".  Compared in constant time, so the token can't be guessed a
+        // byte at a time.
+        boolean ok = false;
+        if (lineEnd >= 0) {
+            String[] parts = new String(request.array(), 0, lineEnd,
+                    StandardCharsets.US_ASCII).split(" ");
+            ok = parts.length == 3 && parts[0].equals("GET") && MessageDigest.isEqual(mPath,
+                    parts[1].getBytes(StandardCharsets.US_ASCII));
+        }
+        if (!ok) {
+            Log.w(TAG, "refusing viewer from " +
+                    viewer.mChannel.socket().getRemoteSocketAddress());
+            // Short enough to go in one write on a new connection; if not, too bad.
+            viewer.mChannel.write(ByteBuffer.wrap(HTTP_NOT_FOUND));
+            throw new IOException("viewer asked for the wrong thing");
+        }
+        viewer.mRequest = null;
+        return true;
+    }
+
+    private void releaseFragment(Viewer viewer) {
+        Fragment fragment = viewer.mFragment;
+        if (fragment != null) {
+            viewer.mFragment = null;
+            if (--fragment.mUsers == 0 && !fragment.mCached) {
+                mFreeFragments.add(fragment);
+            }
+        }
+        viewer.mPending[0] = viewer.mPending[1] = null;
+    }
+
+    /**
+     * Sets up the next thing to send to a viewer: the init segment, or the next GOP.
+     *
+     * @return false if there's nothing to send yet.
+     */
+    private boolean prepareNext(Viewer viewer) {
+        if (!viewer.mStarted) {
+            viewer.mStarted = true;
+            ByteBuffer header = viewer.mHeader;
+            header.clear();
+            if (viewer.mHttp) {
+                header.put(HTTP_RESPONSE);
+            }
+            header.flip();
+            viewer.mPending[0] = header;
+            viewer.mPending[1] = mInitSegment.duplicate();
+            return true;
+        }
+
+        while (true) {
+            long firstSeq;
+            long endSeq;
+            long tailSeq = mBuffer.getTailSeq();
+            synchronized (mGopLock) {
+                // Oldest GOP at or after the cursor.
+                long gop = Math.max(0, mGopCount - MAX_GOPS);
+                while (gop < mGopCount && mGopStart[(int) (gop % MAX_GOPS)] < viewer.mNextSeq) {
+                    gop++;
+                }
+                if (gop == mGopCount) {
+                    return false;
+                }
+                firstSeq = mGopStart[(int) (gop % MAX_GOPS)];
+                endSeq = mGopEnd[(int) (gop % MAX_GOPS)];
+            }
+
+            Fragment fragment = null;
+            if (firstSeq >= tailSeq) {
+                fragment = getFragment(firstSeq, endSeq);
+            }
+            if (fragment == null) {
+                // Overwritten.  Before the first fragment that's just the catch-up looking
+                // for the oldest GOP that's still there; otherwise the viewer is too slow.
+                if (viewer.mSequence > 0) {
+                    mGopsSkipped++;
+                    Log.w(TAG, "viewer fell behind, skipping GOP " + firstSeq);
+                }
+                viewer.mNextSeq = endSeq;
+                continue;
+            }
+
+            if (viewer.mSequence == 0) {
+                viewer.mBasePtsUsec = fragment.mFirstPtsUsec;
+            }
+            viewer.mSequence++;
+            fragment.mUsers++;
+            viewer.mFragment = fragment;
+            viewer.mNextSeq = endSeq;
+            viewer.mPending[0] = buildFragmentHeader(viewer, fragment);
+            viewer.mPending[1] = fragment.mPayload.duplicate();
+            mFragmentsSent++;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the fragment for a GOP, from the cache or newly built, or null if it has been
+     * overwritten.
+     */
+    private Fragment getFragment(long firstSeq, long endSeq) {
+        for (Fragment cached : mCache) {
+            if (cached != null && cached.mFirstSeq == firstSeq) {
+                return cached;
+            }
+        }
+
+        Fragment fragment = mFreeFragments.isEmpty() ? new Fragment() :
+                mFreeFragments.remove(mFreeFragments.size() - 1);
+        if (!buildFragment(fragment, firstSeq, endSeq)) {
+            mFreeFragments.add(fragment);
+            return null;
+        }
+
+        Fragment evicted = mCache[mCacheNext];
+        if (evicted != null) {
+            evicted.mCached = false;
+            if (evicted.mUsers == 0) {
+                mFreeFragments.add(evicted);
+            }
+        }
+        fragment.mCached = true;
+        mCache[mCacheNext] = fragment;
+        mCacheNext = (mCacheNext + 1) % MAX_CACHED_FRAGMENTS;
+        return fragment;
+    }
+
+    /**
+     * Copies a GOP out of the buffer and converts it to MP4 samples.
+     *
+     * @return false if any of it was overwritten.
+     */
+    private boolean buildFragment(Fragment fragment, long firstSeq, long endSeq) {
+        int count = (int) (endSeq - firstSeq);
+        fragment.mFirstSeq = firstSeq;
+        fragment.mSampleCount = 0;
+        if (fragment.mSizes.length < count) {
+            fragment.mSizes = new int[count];
+            fragment.mDurations = new int[count];
+            fragment.mFlags = new int[count];
+        }
+        ByteBuffer payload = fragment.mPayload;
+        payload.clear();
+
+        long prevPtsUsec = 0;
+        CircularEncoderBuffer.Reader reader = mBuffer.new Reader();
+        try {
+            for (long seq = firstSeq; seq < endSeq; seq++) {
+                int size = reader.peek(seq, mInfo);
+                if (size < 0) {
+                    return false;
+                }
+                if (mPacket.capacity() < size) {
+                    mPacket = ByteBuffer.allocateDirect(
+                            CircularEncoderBuffer.roundUpPowerOfTwo(size));
+                }
+                mPacket.clear();
+                if (reader.read(seq, mPacket, mInfo) < 0) {
+                    return false;
+                }
+                mPacket.flip();
+
+                // Length-prefixed NAL units, rather than start codes.
+                int nalCount = mScanner.scan(mPacket, null);
+                if (payload.remaining() < size + nalCount * 4) {
+                    payload = growPayload(fragment, size + nalCount * 4);
+                }
+                int sampleStart = payload.position();
+                for (int i = 0; i < nalCount; i++) {
+                    int start = mScanner.getStart(i);
+                    int end = mScanner.getEnd(i);
+                    payload.putInt(end - start);
+                    mPacket.limit(end);
+                    mPacket.position(start);
+                    payload.put(mPacket);
+                    mPacket.limit(size);
+                }
+
+                int n = fragment.mSampleCount++;
+                fragment.mSizes[n] = payload.position() - sampleStart;
+                fragment.mFlags[n] = (mInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 ?
+                        0x02000000 :        // depends on nothing
+                        0x01010000;         // depends on others, not a sync sample
+                if (n == 0) {
+                    fragment.mFirstPtsUsec = mInfo.presentationTimeUs;
+                } else {
+                    fragment.mDurations[n - 1] = durationTicks(fragment.mFirstPtsUsec,
+                            prevPtsUsec, mInfo.presentationTimeUs);
+                }
+                prevPtsUsec = mInfo.presentationTimeUs;
+            }
+
+            // The last one lasts until the sync frame that ends the GOP, if we can see it,
+            // or as long as the one before it.
+            int last = fragment.mSampleCount - 1;
+            if (reader.peek(endSeq, mInfo) >= 0) {
+                fragment.mDurations[last] = durationTicks(fragment.mFirstPtsUsec,
+                        prevPtsUsec, mInfo.presentationTimeUs);
+            } else {
+                fragment.mDurations[last] = last > 0 ? fragment.mDurations[last - 1] :
+                        (int) usecToTicks(33333, TIMESCALE);
+            }
+        } finally {
+            reader.close();
+        }
+        payload.flip();
+        if (VERBOSE) {
+            Log.d(TAG, "built fragment " + firstSeq + ": " + count + " samples, " +
+                    payload.limit() + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the duration of a sample, rounding times rather than durations so the error
+     * doesn't accumulate.
+     */
+    private static int durationTicks(long baseUsec, long ptsUsec, long nextPtsUsec) {
+        return (int) (usecToTicks(nextPtsUsec - baseUsec, TIMESCALE) -
+                usecToTicks(ptsUsec - baseUsec, TIMESCALE));
+    }
+
+    private static ByteBuffer growPayload(Fragment fragment, int needed) {
+        ByteBuffer old = fragment.mPayload;
+        ByteBuffer bigger = ByteBuffer.allocate(
+                CircularEncoderBuffer.roundUpPowerOfTwo(old.position() + needed));
+        old.flip();
+        bigger.put(old);
+        fragment.mPayload = bigger;
+        return bigger;
+    }
+
+    /**
+     * Builds the moof box and mdat header that go ahead of a fragment's payload, in the
+     * viewer's header buffer.
+     */
+    private static ByteBuffer buildFragmentHeader(Viewer viewer, Fragment fragment) {
+        int needed = 256 + fragment.mSampleCount * 12;
+        if (viewer.mHeader.capacity() < needed) {
+            viewer.mHeader = ByteBuffer.allocate(CircularEncoderBuffer.roundUpPowerOfTwo(needed));
+        }
+        ByteBuffer buf = viewer.mHeader;
+        buf.clear();
+
+        int moof = startBox(buf, "moof");
+        int mfhd = startFullBox(buf, "mfhd", 0, 0);
+        buf.putInt(viewer.mSequence);
+        endBox(buf, mfhd);
+
+        int traf = startBox(buf, "traf");
+        int tfhd = startFullBox(buf, "tfhd", 0, 0x020000);     // default-base-is-moof
+        buf.putInt(1);                                          // track ID
+        endBox(buf, tfhd);
+        int tfdt = startFullBox(buf, "tfdt", 1, 0);
+        buf.putLong(usecToTicks(fragment.mFirstPtsUsec - viewer.mBasePtsUsec, TIMESCALE));
+        endBox(buf, tfdt);
+
+        // Data offset, and per-sample duration, size and flags.
+        int trun = startFullBox(buf, "trun", 0, 0x000701);
+        buf.putInt(fragment.mSampleCount);
+        int dataOffset = buf.position();
+        buf.putInt(0);
+        for (int i = 0; i < fragment.mSampleCount; i++) {
+            buf.putInt(fragment.mDurations[i]);
+            buf.putInt(fragment.mSizes[i]);
+            buf.putInt(fragment.mFlags[i]);
+        }
+        endBox(buf, trun);
+        endBox(buf, traf);
+        endBox(buf, moof);
+
+        // The data starts right after the mdat header, relative to the moof.
+        buf.putInt(dataOffset, buf.position() - moof + 8);
+        buf.putInt(8 + fragment.mPayload.limit());
+        Mp4Boxes.putFourCC(buf, "mdat");
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Builds the ftyp and moov boxes that start every stream.  The moov has an empty sample
+     * table; the samples are all in fragments.
+     */
+    private static ByteBuffer buildInitSegment(int width, int height, byte[] sps, byte[] pps) {
+        ByteBuffer buf = ByteBuffer.allocate(1024 + sps.length + pps.length);
+        Mp4Boxes.putFileType(buf, "iso5", "iso6", "avc1", "mp41");
+
+        int moov = startBox(buf, "moov");
+        Mp4Boxes.putMovieHeader(buf, 0);
+        int trak = startBox(buf, "trak");
+        Mp4Boxes.putTrackHeader(buf, 0, width, height);
+        int mdia = startBox(buf, "mdia");
+        Mp4Boxes.putMediaHeaders(buf, 0);
+        int minf = startBox(buf, "minf");
+        Mp4Boxes.putVideoMediaInfo(buf);
+        int stbl = startBox(buf, "stbl");
+        Mp4Boxes.putSampleDescription(buf, width, height, sps, pps);
+        for (String type : new String[] { "stts", "stsc", "stco" }) {
+            int box = startFullBox(buf, type, 0, 0);
+            buf.putInt(0);                      // no entries
+            endBox(buf, box);
+        }
+        int stsz = startFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        endBox(buf, stsz);
+        endBox(buf, stbl);
+        endBox(buf, minf);
+        endBox(buf, mdia);
+        endBox(buf, trak);
+
+        int mvex = startBox(buf, "mvex");
+        int trex = startFullBox(buf, "trex", 0, 0);
+        buf.putInt(1);                          // track ID
+        buf.putInt(1);                          // sample description index
+        buf.putInt(0);                          // default duration, size, flags
+        buf.putInt(0);
+        buf.putInt(0);
+        endBox(buf, trex);
+        endBox(buf, mvex);
+        endBox(buf, moov);
+        buf.flip();
+        return buf;
+    }
+}
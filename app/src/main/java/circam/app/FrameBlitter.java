@@ -0,0 +1,72 @@
+package circam.app;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+/**
+ * Copies a finished frame from a RenderBuffer to whatever surface is current, scaling it to
+ * the viewport.
+ * <p>
+ * GLES 2.0 has no glBlitFramebuffer(), so this draws a quad with a pass-through shader: one
+ * texture fetch per pixel, which is cheap next to the filters.  The filter chain renders each
+ * camera frame once into a RenderBuffer, and this puts it on each output.
+ */
+public class FrameBlitter {
+    private static final float SQUARE_COORDS[] = {
+            1.0f, -1.0f,
+            -1.0f, -1.0f,
+            1.0f, 1.0f,
+            -1.0f, 1.0f,
+    };
+    private static final float TEXTURE_COORDS[] = {
+            1.0f, 0.0f,
+            0.0f, 0.0f,
+            1.0f, 1.0f,
+            0.0f, 1.0f,
+    };
+
+    private final int mVertexVbo;
+    private final int mTextureCoordVbo;
+    private final ShaderProgram mProgram;
+    private final int mPositionLocation;
+    private final int mTexCoordLocation;
+    private final int mChannelUniform;
+
+    /**
+     * Builds the shader.  Call with the GL context current.
+     */
+    public FrameBlitter(Context context) {
+        mVertexVbo = MyGLUtils.createVertexBuffer(SQUARE_COORDS);
+        mTextureCoordVbo = MyGLUtils.createVertexBuffer(TEXTURE_COORDS);
+
+        mProgram = new ShaderProgram(MyGLUtils.GL,
+                MyGLUtils.buildProgram(context, R.raw.vertext, R.raw.original));
+        mPositionLocation = mProgram.attribute("vPosition");
+        mTexCoordLocation = mProgram.attribute("vTexCoord");
+        mChannelUniform = mProgram.uniform("iChannel0");
+    }
+
+    /**
+     * Draws the frame into the default framebuffer of the current surface.
+     */
+    public void blit(RenderBuffer frame, int viewportWidth, int viewportHeight) {
+        MyGLUtils.GL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        MyGLUtils.GL.glViewport(0, 0, viewportWidth, viewportHeight);
+        mProgram.use();
+
+        MyGLUtils.GL.glActiveTexture(GLES20.GL_TEXTURE0);
+        MyGLUtils.GL.glBindTexture(GLES20.GL_TEXTURE_2D, frame.getTexId());
+        mProgram.set1i(mChannelUniform, 0);
+
+        mProgram.setAttribute(mPositionLocation, 2, mVertexVbo);
+        mProgram.setAttribute(mTexCoordLocation, 2, mTextureCoordVbo);
+
+        // Every pixel is covered, so there's nothing to clear.
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    public void release() {
+        GLES20.glDeleteProgram(mProgram.getProgram());
+        GLES20.glDeleteBuffers(2, new int[] { mVertexVbo, mTextureCoordVbo }, 0);
+    }
+}
@@ -0,0 +1,169 @@
+package circam.app;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+
+/**
+ * The GLES 2.0 calls the renderer makes per frame, behind an interface so tests can stand in
+ * for GL.  {@link #GLES} goes straight to GLES20; production code goes through
+ * {@link MyGLUtils#GL}, which skips calls that wouldn't change anything.
+ */
+public interface GlApi {
+    GlApi GLES = new Gles20();
+
+    void glUseProgram(int program);
+
+    int glGetProgrami(int program, int pname);
+
+    /**
+     * Returns the name of an active uniform, with its array size in sizeType[0] and its type
+     * in sizeType[1].
+     */
+    String glGetActiveUniform(int program, int index, int[] sizeType);
+
+    /**
+     * Returns the name of an active attribute, with its array size in sizeType[0] and its
+     * type in sizeType[1].
+     */
+    String glGetActiveAttrib(int program, int index, int[] sizeType);
+
+    int glGetUniformLocation(int program, String name);
+
+    int glGetAttribLocation(int program, String name);
+
+    void glUniform1i(int location, int x);
+
+    void glUniform1f(int location, float x);
+
+    void glUniform2f(int location, float x, float y);
+
+    void glUniform3f(int location, float x, float y, float z);
+
+    void glUniform3fv(int location, int count, float[] v, int offset);
+
+    void glEnableVertexAttribArray(int index);
+
+    /** Client-side vertex data; GL_ARRAY_BUFFER must be 0. */
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+            Buffer ptr);
+
+    /** Vertex data at offset in the bound GL_ARRAY_BUFFER. */
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+            int offset);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glActiveTexture(int texture);
+
+    void glBindTexture(int target, int texture);
+
+    void glBindFramebuffer(int target, int framebuffer);
+
+    void glViewport(int x, int y, int width, int height);
+
+    /**
+     * GlApi on android.opengl.GLES20.
+     */
+    class Gles20 implements GlApi {
+        private final int[] mParam = new int[1];
+
+        @Override
+        public void glUseProgram(int program) {
+            GLES20.glUseProgram(program);
+        }
+
+        @Override
+        public int glGetProgrami(int program, int pname) {
+            GLES20.glGetProgramiv(program, pname, mParam, 0);
+            return mParam[0];
+        }
+
+        @Override
+        public String glGetActiveUniform(int program, int index, int[] sizeType) {
+            return GLES20.glGetActiveUniform(program, index, sizeType, 0, sizeType, 1);
+        }
+
+        @Override
+        public String glGetActiveAttrib(int program, int index, int[] sizeType) {
+            return GLES20.glGetActiveAttrib(program, index, sizeType, 0, sizeType, 1);
+        }
+
+        @Override
+        public int glGetUniformLocation(int program, String name) {
+            return GLES20.glGetUniformLocation(program, name);
+        }
+
+        @Override
+        public int glGetAttribLocation(int program, String name) {
+            return GLES20.glGetAttribLocation(program, name);
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            GLES20.glUniform1i(location, x);
+        }
+
+        @Override
+        public void glUniform1f(int location, float x) {
+            GLES20.glUniform1f(location, x);
+        }
+
+        @Override
+        public void glUniform2f(int location, float x, float y) {
+            GLES20.glUniform2f(location, x, y);
+        }
+
+        @Override
+        public void glUniform3f(int location, float x, float y, float z) {
+            GLES20.glUniform3f(location, x, y, z);
+        }
+
+        @Override
+        public void glUniform3fv(int location, int count, float[] v, int offset) {
+            GLES20.glUniform3fv(location, count, v, offset);
+        }
+
+        @Override
+        public void glEnableVertexAttribArray(int index) {
+            GLES20.glEnableVertexAttribArray(index);
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, Buffer ptr) {
+            GLES20.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, int offset) {
+            GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+        }
+
+        @Override
+        public void glBindBuffer(int target, int buffer) {
+            GLES20.glBindBuffer(target, buffer);
+        }
+
+        @Override
+        public void glActiveTexture(int texture) {
+            GLES20.glActiveTexture(texture);
+        }
+
+        @Override
+        public void glBindTexture(int target, int texture) {
+            GLES20.glBindTexture(target, texture);
+        }
+
+        @Override
+        public void glBindFramebuffer(int target, int framebuffer) {
+            GLES20.glBindFramebuffer(target, framebuffer);
+        }
+
+        @Override
+        public void glViewport(int x, int y, int width, int height) {
+            GLES20.glViewport(x, y, width, height);
+        }
+    }
+}
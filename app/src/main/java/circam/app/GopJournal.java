@@ -0,0 +1,568 @@
+package circam.app;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Appends completed GOPs from a CircularEncoderBuffer to a set of rotating segment files,
+ * so the buffered video survives the process being killed.
+ * <p>
+ * The encoder thread just tells us where each GOP starts and ends, by sequence number (see
+ * {@link CircularEncoderBuffer#getHeadSeq()}).  A journal thread copies the GOP out with a
+ * lock-free {@link CircularEncoderBuffer.Reader}, so it never pins anything and never makes
+ * the encoder wait.  If it falls so far behind that the GOP has been overwritten, the GOP is
+ * dropped and counted.  Each GOP is laid out in memory and written with a single
+ * FileChannel write.  Once write() returns the data is in the kernel, which is all it takes
+ * to survive the process dying; segments are only fsync'ed when we rotate away from them.
+ * <p>
+ * Segment files are named journal-NNNNNN.seg.  Each starts with a header holding the output
+ * MediaFormat, so it can be played back on its own, followed by GOP records:
+ * <pre>
+ *   int magic, int bodyLength, int crc32(body)
+ *   body: int packetCount, then per packet: long ptsUsec, int flags, int size, data
+ * </pre>
+ * A record that was cut short by a crash fails its length or CRC check, and recovery stops
+ * there.  When a segment reaches its size limit we start a new one, and delete the oldest
+ * once there are more than maxSegments.
+ */
+public class GopJournal {
+    private static final String TAG = "GopJournal";
+    private static final boolean VERBOSE = false;
+
+    private static final int SEGMENT_MAGIC = 0x434a4e4c;    // "CJNL"
+    private static final int SEGMENT_VERSION = 1;
+    private static final int GOP_MAGIC = 0x474f5021;        // "GOP!"
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int PACKET_HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    private final ExecutorService mJournalThread;
+
+    // Owned by the journal thread.
+    private byte[] mFormatRecord = new byte[0];
+    private ByteBuffer mBatch = ByteBuffer.allocate(256 * 1024);
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final CRC32 mCrc = new CRC32();
+    private FileChannel mChannel;
+    private long mSegmentSize;
+    private int mNextSegment;
+
+    // Overhead.  mSubmitNsec is time on the encoder thread; the rest is on the journal thread.
+    private long mSubmitNsec;
+    private volatile long mWriteNsec;
+    private volatile long mBytesWritten;
+    private volatile int mGopsWritten;
+    private volatile int mGopsDropped;
+
+    /**
+     * Receives the contents of a journal; see {@link #scan(File, Sink)}.
+     */
+    interface Sink {
+        /** Called with the format record at the start of each segment; may be empty. */
+        void format(byte[] formatRecord);
+
+        /** Called for each packet, oldest first.  The data is valid until the next call. */
+        void packet(ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+
+    /**
+     * Prepares a journal in dir.  Any segments left there are deleted, so recover them with
+     * {@link #recover(File, File)} first.
+     *
+     * @param segmentBytes Size at which we move on to a new segment.
+     * @param maxSegments How many segments to keep.  The journal should cover at least the
+     *     span of the circular buffer, so segmentBytes * (maxSegments - 1) should hold it.
+     */
+    public GopJournal(File dir, int segmentBytes, int maxSegments) {
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("Need at least two segments: " + maxSegments);
+        }
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = maxSegments;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + dir);
+        }
+        File[] old = listSegments(dir);
+        if (old.length > 0) {
+            Log.w(TAG, "discarding " + old.length + " old journal segments");
+            clear(dir);
+        }
+        mJournalThread = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Records the encoder's output format, which goes at the start of every segment.  Call
+     * on the encoder thread when the format changes.
+     */
+    public void setFormat(MediaFormat format) {
+        final byte[] record;
+        try {
+            record = encodeFormat(format);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);    // can't happen with a ByteArrayOutputStream
+        }
+        mJournalThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mFormatRecord = record;
+                // Start a fresh segment, so the format applies to everything in it.
+                closeSegment();
+            }
+        });
+    }
+
+    /**
+     * Queues the packets with sequence numbers [firstSeq, endSeq) for writing.  Call on the
+     * thread that adds to the buffer; returns without doing any I/O.
+     */
+    public void submitGop(final CircularEncoderBuffer buffer, final long firstSeq,
+            final long endSeq) {
+        long startNsec = System.nanoTime();
+        mJournalThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeGop(buffer, firstSeq, endSeq);
+            }
+        });
+        mSubmitNsec += System.nanoTime() - startNsec;
+    }
+
+    /**
+     * Finishes writing whatever has been submitted, and closes the journal.  The segments are
+     * left in place.
+     */
+    public void close() {
+        mJournalThread.shutdown();
+        try {
+            mJournalThread.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Journal thread join() was interrupted", ie);
+        }
+        closeSegment();
+        Log.d(TAG, "journal closed: " + mGopsWritten + " GOPs / " + mBytesWritten + " bytes, " +
+                mGopsDropped + " dropped; " + (mWriteNsec / 1000000) + " ms writing, " +
+                (mSubmitNsec / 1000) + " us on the encoder thread");
+    }
+
+    /** Returns the number of bytes written to segment files. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Returns the time the journal thread has spent copying and writing, in nanoseconds. */
+    public long getWriteNsec() {
+        return mWriteNsec;
+    }
+
+    /**
+     * Returns the time the encoder thread has spent in submitGop(), in nanoseconds.  Only
+     * read this from the encoder thread.
+     */
+    public long getSubmitNsec() {
+        return mSubmitNsec;
+    }
+
+    /** Returns the number of GOPs written. */
+    public int getGopsWritten() {
+        return mGopsWritten;
+    }
+
+    /** Returns the number of GOPs that were overwritten before we could write them. */
+    public int getGopsDropped() {
+        return mGopsDropped;
+    }
+
+    /**
+     * Copies a GOP out of the buffer and appends it to the current segment.  Runs on the
+     * journal thread.
+     */
+    private void writeGop(CircularEncoderBuffer buffer, long firstSeq, long endSeq) {
+        long startNsec = System.nanoTime();
+        int count = (int) (endSeq - firstSeq);
+        if (count <= 0) {
+            return;
+        }
+
+        // Lay the record out in mBatch.  The record header is filled in at the end.
+        ByteBuffer batch = mBatch;
+        batch.clear();
+        batch.position(RECORD_HEADER_SIZE);
+        batch.putInt(count);
+        CircularEncoderBuffer.Reader reader = buffer.new Reader();
+        try {
+            for (long seq = firstSeq; seq < endSeq; seq++) {
+                int size = reader.peek(seq, mInfo);
+                if (size < 0) {
+                    dropGop(firstSeq, size);
+                    return;
+                }
+                if (batch.remaining() < PACKET_HEADER_SIZE + size) {
+                    batch = growBatch(PACKET_HEADER_SIZE + size);
+                }
+                int packetHeader = batch.position();
+                batch.position(packetHeader + PACKET_HEADER_SIZE);
+                size = reader.read(seq, batch, mInfo);
+                if (size < 0) {
+                    dropGop(firstSeq, size);
+                    return;
+                }
+                batch.putLong(packetHeader, mInfo.presentationTimeUs);
+                batch.putInt(packetHeader + 8, mInfo.flags);
+                batch.putInt(packetHeader + 12, size);
+            }
+        } finally {
+            reader.close();
+        }
+
+        int bodyLength = batch.position() - RECORD_HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(batch.array(), batch.arrayOffset() + RECORD_HEADER_SIZE, bodyLength);
+        batch.putInt(0, GOP_MAGIC);
+        batch.putInt(4, bodyLength);
+        batch.putInt(8, (int) mCrc.getValue());
+        batch.flip();
+
+        try {
+            if (mChannel != null && mSegmentSize + batch.remaining() > mSegmentBytes) {
+                closeSegment();
+            }
+            if (mChannel == null) {
+                openSegment();
+            }
+            int length = batch.remaining();
+            while (batch.hasRemaining()) {
+                mChannel.write(batch);
+            }
+            mSegmentSize += length;
+            mBytesWritten += length;
+            mGopsWritten++;
+        } catch (IOException ioe) {
+            Log.w(TAG, "journal write failed", ioe);
+            closeSegment();
+        }
+        mWriteNsec += System.nanoTime() - startNsec;
+        if (VERBOSE) {
+            Log.d(TAG, "wrote GOP " + firstSeq + " (" + count + " packets, " + bodyLength +
+                    " bytes) in " + (System.nanoTime() - startNsec) / 1000 + " us");
+        }
+    }
+
+    private void dropGop(long firstSeq, int status) {
+        Log.w(TAG, "journal fell behind, dropping GOP " + firstSeq + " (" + status + ")");
+        mGopsDropped++;
+    }
+
+    private ByteBuffer growBatch(int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(
+                CircularEncoderBuffer.roundUpPowerOfTwo(mBatch.position() + needed));
+        mBatch.flip();
+        bigger.put(mBatch);
+        mBatch = bigger;
+        return bigger;
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(mDir, String.format("%s%06d%s", SEGMENT_PREFIX, mNextSegment++,
+                SEGMENT_SUFFIX));
+        mChannel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(12 + mFormatRecord.length);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(SEGMENT_VERSION);
+        header.putInt(mFormatRecord.length);
+        header.put(mFormatRecord);
+        header.flip();
+        while (header.hasRemaining()) {
+            mChannel.write(header);
+        }
+        mSegmentSize = header.limit();
+
+        // Drop the oldest segments.
+        File[] segments = listSegments(mDir);
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            if (VERBOSE) Log.d(TAG, "deleting " + segments[i]);
+            if (!segments[i].delete()) {
+                Log.w(TAG, "Unable to delete " + segments[i]);
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.force(false);
+            mChannel.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "journal close failed", ioe);
+        }
+        mChannel = null;
+    }
+
+    /**
+     * Returns the segment files in dir, oldest first.
+     */
+    private static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // The numbers are zero-padded, so name order is age order.
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Returns true if dir holds journal segments, e.g. from a run that was killed.
+     */
+    public static boolean hasSegments(File dir) {
+        return listSegments(dir).length > 0;
+    }
+
+    /**
+     * Deletes all journal segments in dir.
+     */
+    public static void clear(File dir) {
+        for (File file : listSegments(dir)) {
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads every intact GOP in dir, oldest first.  Each segment is read up to its first
+     * damaged or incomplete record.  Packets before the first sync frame, or with a PTS that
+     * doesn't follow on from the previous packet's, are skipped.
+     *
+     * @return The number of packets passed to the sink.
+     */
+    static int scan(File dir, Sink sink) throws IOException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        CRC32 crc = new CRC32();
+        ByteBuffer record = ByteBuffer.allocate(256 * 1024);
+        long lastPtsUsec = Long.MIN_VALUE;
+        boolean synced = false;
+        int count = 0;
+
+        for (File file : listSegments(dir)) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long fileSize = channel.size();
+
+                ByteBuffer header = ByteBuffer.allocate(12);
+                if (!readFully(channel, header) || header.getInt(0) != SEGMENT_MAGIC ||
+                        header.getInt(4) != SEGMENT_VERSION) {
+                    Log.w(TAG, "bad segment header in " + file);
+                    continue;
+                }
+                int formatLength = header.getInt(8);
+                if (formatLength < 0 || formatLength > fileSize) {
+                    Log.w(TAG, "bad format record in " + file);
+                    continue;
+                }
+                ByteBuffer format = ByteBuffer.allocate(formatLength);
+                if (!readFully(channel, format)) {
+                    continue;
+                }
+                sink.format(format.array());
+
+                while (true) {
+                    header.clear();
+                    if (!readFully(channel, header)) {
+                        break;
+                    }
+                    int bodyLength = header.getInt(4);
+                    if (header.getInt(0) != GOP_MAGIC || bodyLength < 4 ||
+                            bodyLength > fileSize - channel.position()) {
+                        Log.w(TAG, "incomplete record in " + file);
+                        break;
+                    }
+                    if (record.capacity() < bodyLength) {
+                        record = ByteBuffer.allocate(
+                                CircularEncoderBuffer.roundUpPowerOfTwo(bodyLength));
+                    }
+                    record.clear();
+                    record.limit(bodyLength);
+                    if (!readFully(channel, record)) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(record.array(), record.arrayOffset(), bodyLength);
+                    if ((int) crc.getValue() != header.getInt(8)) {
+                        Log.w(TAG, "damaged record in " + file);
+                        break;
+                    }
+
+                    record.flip();
+                    int packets = record.getInt();
+                    for (int i = 0; i < packets; i++) {
+                        long ptsUsec = record.getLong();
+                        int flags = record.getInt();
+                        int size = record.getInt();
+                        int start = record.position();
+                        synced |= (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                        if (synced && ptsUsec > lastPtsUsec) {
+                            info.offset = start;
+                            info.size = size;
+                            info.presentationTimeUs = ptsUsec;
+                            info.flags = flags;
+                            sink.packet(record, info);
+                            lastPtsUsec = ptsUsec;
+                            count++;
+                        }
+                        record.limit(bodyLength);
+                        record.position(start + size);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        return count;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds a playable .mp4 from the journal in dir, e.g. at startup after a crash.  The
+     * segments are left in place.
+     *
+     * @return The number of frames written, or -1 if there was nothing usable.
+     */
+    public static int recover(File dir, File outputFile) {
+        // The muxer is only made once there's a packet for it: stopping one that has no
+        // samples throws, and a journal cut off in its first GOP has a format but no packets.
+        final byte[][] formatRecord = new byte[1][];
+        final MediaMuxer[] muxer = new MediaMuxer[1];
+        final int[] track = new int[1];
+        final int[] written = new int[1];
+        final String path = outputFile.getPath();
+        int count;
+        try {
+            count = scan(dir, new Sink() {
+                @Override
+                public void format(byte[] record) {
+                    if (formatRecord[0] == null && record.length != 0) {
+                        formatRecord[0] = record;
+                    }
+                }
+
+                @Override
+                public void packet(ByteBuffer data, MediaCodec.BufferInfo info) {
+                    if (formatRecord[0] == null) {
+                        return;
+                    }
+                    if (muxer[0] == null) {
+                        try {
+                            muxer[0] = new MediaMuxer(path,
+                                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                            track[0] = muxer[0].addTrack(decodeFormat(formatRecord[0]));
+                            muxer[0].start();
+                        } catch (IOException ioe) {
+                            throw new RuntimeException(ioe);
+                        }
+                    }
+                    muxer[0].writeSampleData(track[0], data, info);
+                    written[0]++;
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "journal recovery failed", e);
+            count = -1;
+        }
+        if (muxer[0] != null) {
+            if (written[0] > 0) {
+                try {
+                    muxer[0].stop();
+                } catch (IllegalStateException ise) {
+                    Log.w(TAG, "unable to finish " + outputFile, ise);
+                    written[0] = 0;
+                }
+            }
+            muxer[0].release();
+        }
+        if (written[0] == 0 || count <= 0) {
+            Log.w(TAG, "nothing to recover from " + dir);
+            if (muxer[0] != null) {
+                outputFile.delete();
+            }
+            return -1;
+        }
+        Log.d(TAG, "recovered " + written[0] + " frames to " + outputFile);
+        return written[0];
+    }
+
+    private static byte[] encodeFormat(MediaFormat format) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(format.getString(MediaFormat.KEY_MIME));
+        out.writeInt(format.getInteger(MediaFormat.KEY_WIDTH));
+        out.writeInt(format.getInteger(MediaFormat.KEY_HEIGHT));
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            if (csd == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] data = new byte[csd.remaining()];
+                csd.duplicate().get(data);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static MediaFormat decodeFormat(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        MediaFormat format = MediaFormat.createVideoFormat(in.readUTF(), in.readInt(),
+                in.readInt());
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                format.setByteBuffer(key, ByteBuffer.wrap(data));
+            }
+        }
+        return format;
+    }
+}
@@ -0,0 +1,122 @@
+package circam.app;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.util.Log;
+import android.view.Display;
+import android.view.Surface;
+import android.view.WindowManager;
+
+import java.io.IOException;
+
+import static android.content.Context.WINDOW_SERVICE;
+
+/**
+ * CameraSource on the original android.hardware.Camera API, for devices older than
+ * Lollipop.
+ */
+@SuppressWarnings("deprecation")
+public class LegacyCameraSource implements CameraSource {
+    private static final String TAG = "LegacyCameraSource";
+
+    private final Context mContext;
+    private Camera mCamera;
+
+    public LegacyCameraSource(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public int open(int width, int height, int maxFps) {
+        if (mCamera != null) {
+            throw new RuntimeException("camera already initialized");
+        }
+
+        mCamera = Camera.open(getBackFacingCameraID());    // opens first back-facing camera
+        if (mCamera == null) { throw new RuntimeException("Unable to open camera"); }
+
+        Camera.Parameters parms = mCamera.getParameters();
+
+        setPreviewSize(parms, width, height);
+        // Try to set the frame rate to a constant value.
+        int[] range = FpsRanges.chooseRange(parms.getSupportedPreviewFpsRange(), maxFps * 1000);
+        parms.setPreviewFpsRange(range[0], range[1]);
+        int thousandFps = FpsRanges.expectedThousandFps(range, maxFps * 1000);
+        // Give the camera a hint that we're recording video.  This can have a big
+        // impact on frame rate.
+        parms.setRecordingHint(true);
+
+        mCamera.setParameters(parms);
+
+        Camera.Size cameraPreviewSize = parms.getPreviewSize();
+        Log.i(TAG, "Camera config: " + cameraPreviewSize.width + "x" + cameraPreviewSize.height +
+                " @" + (range[0] / 1000.0f) + "-" + (range[1] / 1000.0f) + "fps");
+
+        Display display = ((WindowManager) mContext.getSystemService(WINDOW_SERVICE)).getDefaultDisplay();
+        if (display.getRotation() == Surface.ROTATION_0) {
+            mCamera.setDisplayOrientation(90);
+        } else if (display.getRotation() == Surface.ROTATION_270) {
+            mCamera.setDisplayOrientation(180);
+        }
+        return thousandFps;
+    }
+
+    @Override
+    public void start(SurfaceTexture target) {
+        try {
+            mCamera.setPreviewTexture(target);
+            mCamera.startPreview();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCamera != null) {
+            mCamera.stopPreview();
+            mCamera.release();
+            mCamera = null;
+        }
+    }
+
+    private static void setPreviewSize(Camera.Parameters parms, int width, int height) {
+        // We should make sure that the requested MPEG size is less than the preferred
+        // size, and has the same aspect ratio.
+        Camera.Size ppsfv = parms.getPreferredPreviewSizeForVideo();
+        if (ppsfv != null) {
+            Log.d(TAG, "Camera preferred preview size for video is " + ppsfv.width + "x" + ppsfv.height);
+        }
+        for (Camera.Size size : parms.getSupportedPreviewSizes()) {
+            if (size.width == width && size.height == height) {
+                parms.setPreviewSize(width, height);
+                return;
+            }
+        }
+
+        Log.w(TAG, "Unable to set preview size to " + width + "x" + height);
+        if (ppsfv != null) {
+            parms.setPreviewSize(ppsfv.width, ppsfv.height);
+        }
+        // else use whatever the default size is
+    }
+
+    // Get back camera id
+    private static int getBackFacingCameraID() {
+        int cameraId = -1;
+        //Search for the back facing camera
+        //get the number of cameras
+        int numberOfCameras = Camera.getNumberOfCameras();
+        //for every camera check
+        for (int i = 0; i < numberOfCameras; i++) {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(i, info);
+            if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                cameraId = i;
+                break;
+            }
+        }
+        return cameraId;
+    }
+}
@@ -0,0 +1,275 @@
+package circam.app;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Box-writing helpers shared by Mp4Writer and FragmentedMp4Streamer.  Boxes are built in a
+ * ByteBuffer: startBox() leaves room for the size, and endBox() fills it in.
+ */
+final class Mp4Boxes {
+    // Media time scale, in ticks per second.  The usual one for video.
+    static final int TIMESCALE = 90000;
+    static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int[] MATRIX = {
+            0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+    };
+
+    private Mp4Boxes() {}
+
+    static int startBox(ByteBuffer buf, String type) {
+        int start = buf.position();
+        buf.putInt(0);
+        putFourCC(buf, type);
+        return start;
+    }
+
+    static int startFullBox(ByteBuffer buf, String type, int version, int flags) {
+        int start = startBox(buf, type);
+        buf.putInt((version << 24) | flags);
+        return start;
+    }
+
+    static void endBox(ByteBuffer buf, int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+
+    static void putFourCC(ByteBuffer buf, String type) {
+        for (int i = 0; i < 4; i++) {
+            buf.put((byte) type.charAt(i));
+        }
+    }
+
+    static long usecToTicks(long usec, int timescale) {
+        return (usec * timescale + 500000) / 1000000;
+    }
+
+    /**
+     * Writes an ftyp box with the given brands; the first is the major brand.
+     */
+    static void putFileType(ByteBuffer buf, String... brands) {
+        int ftyp = startBox(buf, "ftyp");
+        putFourCC(buf, brands[0]);
+        buf.putInt(0x200);
+        for (String brand : brands) {
+            putFourCC(buf, brand);
+        }
+        endBox(buf, ftyp);
+    }
+
+    static void putMovieHeader(ByteBuffer buf, long duration) {
+        int mvhd = startFullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);                          // creation time
+        buf.putInt(0);                          // modification time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt((int) duration);
+        buf.putInt(0x00010000);                 // rate 1.0
+        buf.putShort((short) 0x0100);           // volume 1.0
+        buf.put(new byte[10]);                  // reserved
+        putMatrix(buf);
+        buf.put(new byte[24]);                  // pre_defined
+        buf.putInt(2);                          // next track ID
+        endBox(buf, mvhd);
+    }
+
+    static void putTrackHeader(ByteBuffer buf, long duration, int width, int height) {
+        int tkhd = startFullBox(buf, "tkhd", 0, 3);    // enabled, in movie
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(1);                          // track ID
+        buf.putInt(0);                          // reserved
+        buf.putInt((int) duration);
+        buf.put(new byte[8]);                   // reserved
+        buf.putShort((short) 0);                // layer
+        buf.putShort((short) 0);                // alternate group
+        buf.putShort((short) 0);                // volume
+        buf.putShort((short) 0);                // reserved
+        putMatrix(buf);
+        buf.putInt(width << 16);
+        buf.putInt(height << 16);
+        endBox(buf, tkhd);
+    }
+
+    /**
+     * Writes the mdhd and hdlr boxes of a video track's mdia box.
+     */
+    static void putMediaHeaders(ByteBuffer buf, long duration) {
+        int mdhd = startFullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(TIMESCALE);
+        buf.putInt((int) duration);
+        buf.putShort((short) 0x55c4);           // language "und"
+        buf.putShort((short) 0);
+        endBox(buf, mdhd);
+
+        int hdlr = startFullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        putFourCC(buf, "vide");
+        buf.put(new byte[12]);
+        for (char c : "VideoHandle".toCharArray()) {
+            buf.put((byte) c);
+        }
+        buf.put((byte) 0);
+        endBox(buf, hdlr);
+    }
+
+    /**
+     * Writes the vmhd and dinf boxes of a video track's minf box.
+     */
+    static void putVideoMediaInfo(ByteBuffer buf) {
+        int vmhd = startFullBox(buf, "vmhd", 0, 1);
+        buf.put(new byte[8]);                   // graphics mode, op color
+        endBox(buf, vmhd);
+        int dinf = startBox(buf, "dinf");
+        int dref = startFullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        int url = startFullBox(buf, "url ", 0, 1);      // data is in this file
+        endBox(buf, url);
+        endBox(buf, dref);
+        endBox(buf, dinf);
+    }
+
+    /**
+     * Writes an stsd box with a single avc1 entry.
+     */
+    static void putSampleDescription(ByteBuffer buf, int width, int height, byte[] sps,
+            byte[] pps) {
+        int stsd = startFullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        int avc1 = startBox(buf, "avc1");
+        buf.put(new byte[6]);                   // reserved
+        buf.putShort((short) 1);                // data reference index
+        buf.put(new byte[16]);                  // pre_defined, reserved
+        buf.putShort((short) width);
+        buf.putShort((short) height);
+        buf.putInt(0x00480000);                 // 72 dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);                          // reserved
+        buf.putShort((short) 1);                // frame count
+        buf.put(new byte[32]);                  // compressor name
+        buf.putShort((short) 0x0018);           // depth
+        buf.putShort((short) -1);               // pre_defined
+
+        int avcC = startBox(buf, "avcC");
+        buf.put((byte) 1);                      // configuration version
+        buf.put(sps[1]);                        // profile
+        buf.put(sps[2]);                        // profile compatibility
+        buf.put(sps[3]);                        // level
+        buf.put((byte) 0xff);                   // 4-byte NAL lengths
+        buf.put((byte) 0xe1);                   // one SPS
+        buf.putShort((short) sps.length);
+        buf.put(sps);
+        buf.put((byte) 1);                      // one PPS
+        buf.putShort((short) pps.length);
+        buf.put(pps);
+        endBox(buf, avcC);
+
+        endBox(buf, avc1);
+        endBox(buf, stsd);
+    }
+
+    private static void putMatrix(ByteBuffer buf) {
+        for (int value : MATRIX) {
+            buf.putInt(value);
+        }
+    }
+
+    /**
+     * Returns the contents of an SPS or PPS, without its start code if it has one.
+     */
+    static byte[] stripStartCode(ByteBuffer buf) {
+        ByteBuffer src = buf.duplicate();
+        if (src.remaining() >= 4 && src.getInt(src.position()) == 1) {
+            src.position(src.position() + 4);
+        } else if (src.remaining() >= 3 && src.get(src.position()) == 0 &&
+                src.get(src.position() + 1) == 0 && src.get(src.position() + 2) == 1) {
+            src.position(src.position() + 3);
+        }
+        byte[] data = new byte[src.remaining()];
+        src.get(data);
+        return data;
+    }
+
+    /**
+     * Finds the NAL units in an Annex B packet, in place.  The packet may be in two pieces,
+     * as CircularEncoderBuffer.getChunkViews() returns it.  MP4 wants each NAL unit
+     * prefixed with its length rather than a start code.  Reuses its arrays, so scanning
+     * doesn't allocate once they're big enough.
+     */
+    static final class NalScanner {
+        private ByteBuffer mFirst;
+        private ByteBuffer mSecond;
+        private int mFirstSize;
+        private int mCount;
+        private int[] mStart = new int[16];
+        private int[] mEnd = new int[16];
+
+        /**
+         * Scans a packet.  Start and end offsets are relative to the start of the packet.
+         * A packet without a start code at the front is taken to be a single NAL unit.
+         *
+         * @param first The packet, or its first piece, between position and limit.
+         * @param second The second piece, or null.
+         * @return The number of NAL units.
+         */
+        int scan(ByteBuffer first, ByteBuffer second) {
+            mFirst = first;
+            mSecond = second;
+            mFirstSize = first.remaining();
+            int size = mFirstSize + (second != null ? second.remaining() : 0);
+
+            mCount = 0;
+            int i = 0;
+            int prevStart = -1;
+            while (i + 2 < size) {
+                // If byte i+2 is more than 1, no start code can include it, so we can skip
+                // ahead three.  This keeps the scan well under one compare per byte.
+                int b2 = byteAt(i + 2);
+                if (b2 > 1) {
+                    i += 3;
+                } else if (b2 == 1 && byteAt(i) == 0 && byteAt(i + 1) == 0) {
+                    // Include the leading zero of a 4-byte start code.
+                    int codeStart = (i > 0 && byteAt(i - 1) == 0) ? i - 1 : i;
+                    add(prevStart >= 0 ? prevStart : 0, codeStart);
+                    prevStart = i + 3;
+                    i += 3;
+                } else {
+                    i++;
+                }
+            }
+            add(prevStart >= 0 ? prevStart : 0, size);
+            mFirst = mSecond = null;
+            return mCount;
+        }
+
+        int getStart(int i) {
+            return mStart[i];
+        }
+
+        int getEnd(int i) {
+            return mEnd[i];
+        }
+
+        private void add(int start, int end) {
+            if (end <= start) {
+                return;
+            }
+            if (mCount == mStart.length) {
+                mStart = Arrays.copyOf(mStart, mCount * 2);
+                mEnd = Arrays.copyOf(mEnd, mCount * 2);
+            }
+            mStart[mCount] = start;
+            mEnd[mCount] = end;
+            mCount++;
+        }
+
+        private int byteAt(int offset) {
+            if (offset < mFirstSize) {
+                return mFirst.get(mFirst.position() + offset) & 0xff;
+            }
+            return mSecond.get(mSecond.position() + offset - mFirstSize) & 0xff;
+        }
+    }
+}
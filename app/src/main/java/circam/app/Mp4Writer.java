@@ -0,0 +1,422 @@
+package circam.app;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static circam.app.Mp4Boxes.MOVIE_TIMESCALE;
+import static circam.app.Mp4Boxes.TIMESCALE;
+import static circam.app.Mp4Boxes.endBox;
+import static circam.app.Mp4Boxes.putFourCC;
+import static circam.app.Mp4Boxes.startBox;
+import static circam.app.Mp4Boxes.startFullBox;
+import static circam.app.Mp4Boxes.usecToTicks;
+
+/**
+ * Writes an H.264 video track from a CircularEncoderBuffer to an .mp4 (ISO BMFF) file.
+ * <p>
+ * MediaMuxer takes one packet per writeSampleData() call, and a packet that wraps around
+ * the end of the ring has to be stitched together first.  Here the sample data is written
+ * with gathering writes straight from the ring's memory: each sample is a list of views
+ * onto the ring, so a save is a handful of large FileChannel writes and nothing is copied on
+ * our side.  The sample table is built from the buffer's meta-data as we go, and the moov
+ * box is written at the end.
+ * <p>
+ * The encoder produces Annex B packets (NAL units separated by start codes), and MP4 wants
+ * each NAL unit prefixed with its length.  We find the start codes in place, and write a
+ * 4-byte length ahead of each NAL unit instead of its start code.
+ * <p>
+ * Samples must arrive in decode order with increasing presentation times, which is what
+ * our encoder configuration (no B-frames) produces; there's no composition offset table.
+ * Packets are referenced rather than copied until they're written, so they must stay
+ * pinned until {@link #flush()} or {@link #finish()} returns.  Packets that have been
+ * copied out of the ring, e.g. by a {@link CircularEncoderBuffer.Reader}, can be added too;
+ * those are written before addSample() returns.  Not thread-safe.
+ * <p>
+ * Layout: ftyp, mdat (with a 64-bit size, patched at the end), moov.
+ */
+public class Mp4Writer {
+    private static final String TAG = "Mp4Writer";
+    private static final boolean VERBOSE = false;
+
+    // Sample duration to use when there's nothing to measure it from.
+    private static final long DEFAULT_DURATION_USEC = 33333;
+    // Buffers per gathering write.  Linux's IOV_MAX is 1024.
+    private static final int MAX_GATHER = 1024;
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mSps;
+    private final byte[] mPps;
+    private final FileChannel mChannel;
+    private final long mMdatStart;
+    private long mMdatSize;
+
+    // Gathering write in progress.  The views onto the ring are duplicates of it, made once
+    // and reused; the NAL length prefixes come from mLengthBuffer.
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+    private int mGatherCount;
+    private ByteBuffer[] mViewPool = new ByteBuffer[MAX_GATHER];
+    private int mViewCount;
+    private final ByteBuffer mLengthBuffer = ByteBuffer.allocateDirect(MAX_GATHER * 4);
+    private final ByteBuffer[] mLengthViews = new ByteBuffer[MAX_GATHER];
+    private int mLengthCount;
+    // The ring or copied packet the view pool is looking at.
+    private Object mSource;
+    private final ByteBuffer[] mPacketViews = new ByteBuffer[2];
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    private final Mp4Boxes.NalScanner mScanner = new Mp4Boxes.NalScanner();
+
+    // Sample table.
+    private int mSampleCount;
+    private int[] mSampleSizes = new int[1024];
+    private long[] mSamplePtsUsec = new long[1024];
+    private int mSyncCount;
+    private int[] mSyncSamples = new int[64];
+
+    /**
+     * Creates the file and writes the header.
+     *
+     * @param format The encoder's output format, with csd-0 (SPS) and csd-1 (PPS).
+     */
+    public Mp4Writer(File outputFile, MediaFormat format) throws IOException {
+        this(outputFile, format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT), format.getByteBuffer("csd-0"),
+                format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Creates the file and writes the header.
+     *
+     * @param sps Sequence parameter set, with or without a start code.
+     * @param pps Picture parameter set, with or without a start code.
+     */
+    public Mp4Writer(File outputFile, int width, int height, ByteBuffer sps, ByteBuffer pps)
+            throws IOException {
+        if (sps == null || pps == null) {
+            throw new IllegalArgumentException("Need both SPS and PPS");
+        }
+        mWidth = width;
+        mHeight = height;
+        mSps = Mp4Boxes.stripStartCode(sps);
+        mPps = Mp4Boxes.stripStartCode(pps);
+        if (mSps.length < 4) {
+            throw new IllegalArgumentException("SPS too short: " + mSps.length);
+        }
+        for (int i = 0; i < MAX_GATHER; i++) {
+            mLengthBuffer.limit(i * 4 + 4).position(i * 4);
+            mLengthViews[i] = mLengthBuffer.slice();
+        }
+
+        mChannel = new FileOutputStream(outputFile).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(64);
+        Mp4Boxes.putFileType(header, "isom", "iso2", "avc1", "mp41");
+        mMdatStart = header.position();
+        // 64-bit size, filled in by finish().
+        header.putInt(1);
+        putFourCC(header, "mdat");
+        header.putLong(0);
+        header.flip();
+        writeFully(header);
+    }
+
+    /**
+     * Adds a packet to the file.  The packet must stay pinned until finish() returns.
+     *
+     * @throws IllegalArgumentException if the packet's PTS isn't after the previous one's.
+     */
+    public void addSample(CircularEncoderBuffer buffer, int index) throws IOException {
+        buffer.getChunkInfo(index, mInfo);
+        checkPts(mInfo.presentationTimeUs);
+        setSource(buffer);
+        int pieces = buffer.getChunkViews(index, mPacketViews);
+        addPacket(pieces, mInfo);
+    }
+
+    /**
+     * Adds a packet that isn't in the ring, and writes it out.  The caller may reuse data
+     * once this returns.
+     *
+     * @param data The packet is at info.offset, for info.size bytes.
+     * @throws IllegalArgumentException if the packet's PTS isn't after the previous one's.
+     */
+    public void addSample(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+        checkPts(info.presentationTimeUs);
+        setSource(data);
+        ByteBuffer packet = mPacketViews[0];
+        if (packet == null) {
+            packet = mPacketViews[0] = data.duplicate();
+        }
+        packet.clear();
+        packet.position(info.offset);
+        packet.limit(info.offset + info.size);
+        mPacketViews[1] = null;
+        addPacket(1, info);
+        flush();
+    }
+
+    private void checkPts(long ptsUsec) {
+        if (mSampleCount > 0 && ptsUsec <= mSamplePtsUsec[mSampleCount - 1]) {
+            throw new IllegalArgumentException("PTS out of order: " +
+                    ptsUsec + " after " + mSamplePtsUsec[mSampleCount - 1]);
+        }
+    }
+
+    private void setSource(Object source) throws IOException {
+        if (source != mSource) {
+            // Somewhere else; the views we have are no good for it.
+            flush();
+            mSource = source;
+            mPacketViews[0] = mPacketViews[1] = null;
+            Arrays.fill(mViewPool, null);
+        }
+    }
+
+    /**
+     * Adds the packet in mPacketViews to the gathering write and the sample table.
+     */
+    private void addPacket(int pieces, MediaCodec.BufferInfo info) throws IOException {
+        int nalCount = mScanner.scan(mPacketViews[0], pieces == 2 ? mPacketViews[1] : null);
+
+        // Each NAL unit takes a length and up to two views.
+        if (nalCount * 3 > MAX_GATHER) {
+            throw new IllegalArgumentException("Too many NAL units in packet: " + nalCount);
+        }
+        if (mGatherCount + nalCount * 3 > MAX_GATHER) {
+            flush();
+        }
+        int sampleSize = 0;
+        for (int i = 0; i < nalCount; i++) {
+            int start = mScanner.getStart(i);
+            int end = mScanner.getEnd(i);
+            ByteBuffer length = mLengthViews[mLengthCount++];
+            length.clear();
+            length.putInt(0, end - start);
+            mGather[mGatherCount++] = length;
+            addViews(start, end);
+            sampleSize += 4 + end - start;
+        }
+
+        if (mSampleCount == mSampleSizes.length) {
+            mSampleSizes = Arrays.copyOf(mSampleSizes, mSampleCount * 2);
+            mSamplePtsUsec = Arrays.copyOf(mSamplePtsUsec, mSampleCount * 2);
+        }
+        mSampleSizes[mSampleCount] = sampleSize;
+        mSamplePtsUsec[mSampleCount] = info.presentationTimeUs;
+        mSampleCount++;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            if (mSyncCount == mSyncSamples.length) {
+                mSyncSamples = Arrays.copyOf(mSyncSamples, mSyncCount * 2);
+            }
+            mSyncSamples[mSyncCount++] = mSampleCount;     // 1-based
+        }
+        mMdatSize += sampleSize;
+    }
+
+    /**
+     * Writes out the remaining samples and the moov box, and closes the file.
+     */
+    public void finish() throws IOException {
+        try {
+            flush();
+            if (mSampleCount == 0) {
+                throw new IllegalStateException("No samples");
+            }
+
+            ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(0, MDAT_HEADER_SIZE + mMdatSize);
+            while (size.hasRemaining()) {
+                mChannel.write(size, mMdatStart + 8 + size.position());
+            }
+
+            ByteBuffer moov = buildMoov();
+            writeFully(moov);
+            if (VERBOSE) {
+                Log.d(TAG, "wrote " + mSampleCount + " samples, " + mMdatSize + " bytes");
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Closes the file without finishing it, e.g. after an error.
+     */
+    public void release() {
+        try {
+            mChannel.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "close failed", ioe);
+        }
+    }
+
+    /**
+     * Adds views onto bytes [start, end) of the current packet to the gathering write.
+     */
+    private void addViews(int start, int end) {
+        ByteBuffer first = mPacketViews[0];
+        int firstSize = first.remaining();
+        if (start < firstSize) {
+            int pieceEnd = Math.min(end, firstSize);
+            addView(first.position() + start, first.position() + pieceEnd);
+        }
+        if (end > firstSize) {
+            ByteBuffer second = mPacketViews[1];
+            int pieceStart = Math.max(start, firstSize) - firstSize;
+            addView(second.position() + pieceStart, second.position() + end - firstSize);
+        }
+    }
+
+    private void addView(int start, int end) {
+        ByteBuffer view = mViewPool[mViewCount];
+        if (view == null) {
+            view = mViewPool[mViewCount] = mPacketViews[0].duplicate();
+        }
+        mViewCount++;
+        view.clear();
+        view.position(start);
+        view.limit(end);
+        mGather[mGatherCount++] = view;
+    }
+
+    /**
+     * Writes out the samples added so far.  Once this returns, their packets no longer need
+     * to be pinned.
+     */
+    public void flush() throws IOException {
+        if (mGatherCount == 0) {
+            return;
+        }
+        ByteBuffer last = mGather[mGatherCount - 1];
+        int offset = 0;
+        while (last.hasRemaining()) {
+            mChannel.write(mGather, offset, mGatherCount - offset);
+            while (offset < mGatherCount && !mGather[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "flushed " + mGatherCount + " buffers");
+        Arrays.fill(mGather, 0, mGatherCount, null);
+        mGatherCount = 0;
+        mViewCount = 0;
+        mLengthCount = 0;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    /**
+     * Builds the moov box from the sample table.
+     */
+    private ByteBuffer buildMoov() {
+        // Sample times, in media time scale ticks from the first sample.  Rounding each
+        // time rather than each duration keeps the error from accumulating.
+        long firstPtsUsec = mSamplePtsUsec[0];
+        long[] ticks = new long[mSampleCount + 1];
+        for (int i = 0; i < mSampleCount; i++) {
+            ticks[i] = usecToTicks(mSamplePtsUsec[i] - firstPtsUsec, TIMESCALE);
+        }
+        // The last sample lasts as long as the one before it.
+        long lastDurationUsec = mSampleCount > 1 ?
+                mSamplePtsUsec[mSampleCount - 1] - mSamplePtsUsec[mSampleCount - 2] :
+                DEFAULT_DURATION_USEC;
+        long durationUsec = mSamplePtsUsec[mSampleCount - 1] - firstPtsUsec + lastDurationUsec;
+        ticks[mSampleCount] = usecToTicks(durationUsec, TIMESCALE);
+        long mediaDuration = ticks[mSampleCount];
+        long movieDuration = usecToTicks(durationUsec, MOVIE_TIMESCALE);
+
+        ByteBuffer buf = ByteBuffer.allocate(1024 + mSps.length + mPps.length +
+                mSampleCount * 12 + mSyncCount * 4);
+        int moov = startBox(buf, "moov");
+        Mp4Boxes.putMovieHeader(buf, movieDuration);
+        int trak = startBox(buf, "trak");
+        Mp4Boxes.putTrackHeader(buf, movieDuration, mWidth, mHeight);
+        int mdia = startBox(buf, "mdia");
+        Mp4Boxes.putMediaHeaders(buf, mediaDuration);
+        int minf = startBox(buf, "minf");
+        Mp4Boxes.putVideoMediaInfo(buf);
+
+        int stbl = startBox(buf, "stbl");
+        Mp4Boxes.putSampleDescription(buf, mWidth, mHeight, mSps, mPps);
+
+        // Time to sample, run-length encoded.
+        int stts = startFullBox(buf, "stts", 0, 0);
+        int countPos = buf.position();
+        buf.putInt(0);
+        int entries = 0;
+        int run = 0;
+        long runDelta = -1;
+        for (int i = 0; i < mSampleCount; i++) {
+            long delta = ticks[i + 1] - ticks[i];
+            if (delta != runDelta && run > 0) {
+                buf.putInt(run);
+                buf.putInt((int) runDelta);
+                entries++;
+                run = 0;
+            }
+            runDelta = delta;
+            run++;
+        }
+        buf.putInt(run);
+        buf.putInt((int) runDelta);
+        entries++;
+        buf.putInt(countPos, entries);
+        endBox(buf, stts);
+
+        int stss = startFullBox(buf, "stss", 0, 0);
+        buf.putInt(mSyncCount);
+        for (int i = 0; i < mSyncCount; i++) {
+            buf.putInt(mSyncSamples[i]);
+        }
+        endBox(buf, stss);
+
+        // Everything is in one chunk.
+        int stsc = startFullBox(buf, "stsc", 0, 0);
+        buf.putInt(1);
+        buf.putInt(1);                          // first chunk
+        buf.putInt(mSampleCount);               // samples per chunk
+        buf.putInt(1);                          // sample description index
+        endBox(buf, stsc);
+
+        int stsz = startFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);                          // sizes vary
+        buf.putInt(mSampleCount);
+        for (int i = 0; i < mSampleCount; i++) {
+            buf.putInt(mSampleSizes[i]);
+        }
+        endBox(buf, stsz);
+
+        long chunkOffset = mMdatStart + MDAT_HEADER_SIZE;
+        if (chunkOffset <= 0xffffffffL) {
+            int stco = startFullBox(buf, "stco", 0, 0);
+            buf.putInt(1);
+            buf.putInt((int) chunkOffset);
+            endBox(buf, stco);
+        } else {
+            int co64 = startFullBox(buf, "co64", 0, 0);
+            buf.putInt(1);
+            buf.putLong(chunkOffset);
+            endBox(buf, co64);
+        }
+
+        endBox(buf, stbl);
+        endBox(buf, minf);
+        endBox(buf, mdia);
+        endBox(buf, trak);
+        endBox(buf, moov);
+        buf.flip();
+        return buf;
+    }
+}
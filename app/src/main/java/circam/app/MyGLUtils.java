@@ -7,12 +7,17 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLUtils;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -22,14 +27,23 @@ import javax.microedition.khronos.opengles.GL10;
 public class MyGLUtils {
     private static final String TAG = "MyGLUtils";
 
+    /**
+     * GL for the render thread, with redundant state changes skipped.  See GlStateCache.
+     */
+    public static final GlStateCache GL = new GlStateCache(GlApi.GLES);
+
     public static int genTexture() {
         return genTexture(GLES20.GL_TEXTURE_2D);
     }
 
     public static int genTexture(int textureType) {
+        return genTexture(GL, textureType);
+    }
+
+    private static int genTexture(GlApi gl, int textureType) {
         int[] genBuf = new int[1];
         GLES20.glGenTextures(1, genBuf, 0);
-        GLES20.glBindTexture(textureType, genBuf[0]);
+        gl.glBindTexture(textureType, genBuf[0]);
 
         // Set texture default draw parameters
         if (textureType == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
@@ -49,7 +63,15 @@ public class MyGLUtils {
     }
 
     public static int loadTexture(final Context context, final int resourceId, int[] size) {
-        final int texId = genTexture();
+        return loadTexture(GL, context, resourceId, size);
+    }
+
+    /**
+     * Loads a texture, binding it through gl.  A thread with its own context, such as a
+     * loader sharing the render thread's, passes a GlApi.Gles20 of its own rather than GL.
+     */
+    public static int loadTexture(GlApi gl, final Context context, final int resourceId, int[] size) {
+        final int texId = genTexture(gl, GLES20.GL_TEXTURE_2D);
 
         if (texId != 0) {
             final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -77,12 +99,40 @@ public class MyGLUtils {
         return texId;
     }
 
+    /**
+     * Puts static vertex data in a buffer object, so it isn't copied to the GPU every draw.
+     */
+    public static int createVertexBuffer(float[] data) {
+        FloatBuffer buf = ByteBuffer.allocateDirect(data.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buf.put(data);
+        buf.position(0);
+
+        int[] genBuf = new int[1];
+        GLES20.glGenBuffers(1, genBuf, 0);
+        GL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, genBuf[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.length * 4, buf, GLES20.GL_STATIC_DRAW);
+        return genBuf[0];
+    }
+
+    /**
+     * Builds a program from raw resources, or loads it from a previous run.  See
+     * ProgramBinaryCache.
+     */
     public static int buildProgram(Context context, int vertexSourceRawId, int fragmentSourceRawId) {
-        return buildProgram(getStringFromRaw(context, vertexSourceRawId),
+        return ProgramBinaryCache.get(context).buildProgram(
+                getStringFromRaw(context, vertexSourceRawId),
                 getStringFromRaw(context, fragmentSourceRawId));
     }
 
     public static int buildProgram(String vertexSource, String fragmentSource) {
+        return buildProgram(vertexSource, fragmentSource, false);
+    }
+
+    /**
+     * @param retrievable Whether we'll want the linked binary back.  GLES 3 only.
+     */
+    static int buildProgram(String vertexSource, String fragmentSource, boolean retrievable) {
         final int vertexShader = buildShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -100,7 +150,22 @@ public class MyGLUtils {
 
         GLES20.glAttachShader(program, vertexShader);
         GLES20.glAttachShader(program, fragmentShader);
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+        }
         GLES20.glLinkProgram(program);
+        // The program keeps what it needs; the shaders go when it does.
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
 
         return program;
     }
@@ -145,4 +210,283 @@ public class MyGLUtils {
 
         return str;
     }
+
+    /**
+     * Remembers the GL state the renderer sets per frame, and passes on only the calls that
+     * would change it: the program, the active texture unit and each unit's bindings, the
+     * framebuffer, the viewport, the array buffer, and the vertex attribute arrays.  Every
+     * filter pass sets all of these, and most of the time they're already set.  The other
+     * calls go straight through.
+     * <p>
+     * This only works if all such state changes go through here.  Call invalidate() when the
+     * context is new, or after something else may have changed it, and
+     * invalidateTextures() after SurfaceTexture.updateTexImage(), which binds its texture.
+     * <p>
+     * The counters cover the state calls only; ShaderProgram already skips unchanged
+     * uniforms.  Use it on the thread that owns the GL context.
+     */
+    public static class GlStateCache implements GlApi {
+        private static final int MAX_TEXTURE_UNITS = 32;
+        private static final int MAX_VERTEX_ATTRIBS = 16;
+        private static final int UNKNOWN = -1;
+
+        private final GlApi mGl;
+
+        private int mProgram;
+        private int mActiveUnit;
+        private final int[] mTexture2D = new int[MAX_TEXTURE_UNITS];
+        private final int[] mTextureExternal = new int[MAX_TEXTURE_UNITS];
+        private int mFramebuffer;
+        private int mViewportX, mViewportY, mViewportWidth, mViewportHeight;
+        private int mArrayBuffer;
+
+        // Per vertex attribute.
+        private final boolean[] mAttribEnabled = new boolean[MAX_VERTEX_ATTRIBS];
+        private final boolean[] mAttribKnown = new boolean[MAX_VERTEX_ATTRIBS];
+        private final int[] mAttribBuffer = new int[MAX_VERTEX_ATTRIBS];
+        private final Buffer[] mAttribClientData = new Buffer[MAX_VERTEX_ATTRIBS];
+        private final int[] mAttribOffset = new int[MAX_VERTEX_ATTRIBS];
+        private final int[] mAttribFormat = new int[MAX_VERTEX_ATTRIBS];
+
+        private long mIssued;
+        private long mSkipped;
+
+        public GlStateCache(GlApi gl) {
+            mGl = gl;
+            invalidate();
+        }
+
+        /**
+         * Forgets everything, so the next call of each kind is passed on.
+         */
+        public void invalidate() {
+            mProgram = UNKNOWN;
+            mActiveUnit = UNKNOWN;
+            invalidateTextures();
+            mFramebuffer = UNKNOWN;
+            mViewportWidth = UNKNOWN;
+            mArrayBuffer = UNKNOWN;
+            for (int i = 0; i < MAX_VERTEX_ATTRIBS; i++) {
+                mAttribEnabled[i] = false;
+                mAttribKnown[i] = false;
+                mAttribClientData[i] = null;
+            }
+        }
+
+        /**
+         * Deletes a program.  If it was in use, GL keeps it until another is used, but its
+         * name may be given out again, so we forget it either way.
+         */
+        public void deleteProgram(int program) {
+            if (mProgram == program) {
+                mProgram = UNKNOWN;
+            }
+            GLES20.glDeleteProgram(program);
+        }
+
+        /**
+         * Forgets the texture bindings.
+         */
+        public void invalidateTextures() {
+            for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+                mTexture2D[i] = UNKNOWN;
+                mTextureExternal[i] = UNKNOWN;
+            }
+        }
+
+        /** Returns the number of state calls passed on to GL. */
+        public long getIssued() {
+            return mIssued;
+        }
+
+        /** Returns the number of state calls skipped because they'd change nothing. */
+        public long getSkipped() {
+            return mSkipped;
+        }
+
+        private boolean issue(boolean needed) {
+            if (needed) {
+                mIssued++;
+            } else {
+                mSkipped++;
+            }
+            return needed;
+        }
+
+        @Override
+        public void glUseProgram(int program) {
+            if (issue(program != mProgram)) {
+                mProgram = program;
+                mGl.glUseProgram(program);
+            }
+        }
+
+        @Override
+        public void glActiveTexture(int texture) {
+            int unit = texture - GLES20.GL_TEXTURE0;
+            if (issue(unit != mActiveUnit)) {
+                mActiveUnit = unit < MAX_TEXTURE_UNITS ? unit : UNKNOWN;
+                mGl.glActiveTexture(texture);
+            }
+        }
+
+        @Override
+        public void glBindTexture(int target, int texture) {
+            int[] bindings;
+            if (target == GLES20.GL_TEXTURE_2D) {
+                bindings = mTexture2D;
+            } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+                bindings = mTextureExternal;
+            } else {
+                bindings = null;
+            }
+            if (bindings == null || mActiveUnit == UNKNOWN) {
+                issue(true);
+                mGl.glBindTexture(target, texture);
+            } else if (issue(bindings[mActiveUnit] != texture)) {
+                bindings[mActiveUnit] = texture;
+                mGl.glBindTexture(target, texture);
+            }
+        }
+
+        @Override
+        public void glBindFramebuffer(int target, int framebuffer) {
+            if (issue(framebuffer != mFramebuffer)) {
+                mFramebuffer = framebuffer;
+                mGl.glBindFramebuffer(target, framebuffer);
+            }
+        }
+
+        @Override
+        public void glViewport(int x, int y, int width, int height) {
+            if (issue(x != mViewportX || y != mViewportY || width != mViewportWidth ||
+                    height != mViewportHeight)) {
+                mViewportX = x;
+                mViewportY = y;
+                mViewportWidth = width;
+                mViewportHeight = height;
+                mGl.glViewport(x, y, width, height);
+            }
+        }
+
+        @Override
+        public void glBindBuffer(int target, int buffer) {
+            if (target != GLES20.GL_ARRAY_BUFFER) {
+                issue(true);
+                mGl.glBindBuffer(target, buffer);
+            } else if (issue(buffer != mArrayBuffer)) {
+                mArrayBuffer = buffer;
+                mGl.glBindBuffer(target, buffer);
+            }
+        }
+
+        @Override
+        public void glEnableVertexAttribArray(int index) {
+            if (index >= MAX_VERTEX_ATTRIBS) {
+                issue(true);
+                mGl.glEnableVertexAttribArray(index);
+            } else if (issue(!mAttribEnabled[index])) {
+                mAttribEnabled[index] = true;
+                mGl.glEnableVertexAttribArray(index);
+            }
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, Buffer ptr) {
+            // GL takes the address at the buffer's position, so that counts too.
+            int format = attribFormat(size, type, normalized, stride);
+            if (index >= MAX_VERTEX_ATTRIBS) {
+                issue(true);
+                mGl.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+            } else if (issue(!mAttribKnown[index] || mAttribBuffer[index] != 0 ||
+                    mAttribClientData[index] != ptr || mAttribOffset[index] != ptr.position() ||
+                    mAttribFormat[index] != format)) {
+                mAttribKnown[index] = true;
+                mAttribBuffer[index] = 0;
+                mAttribClientData[index] = ptr;
+                mAttribOffset[index] = ptr.position();
+                mAttribFormat[index] = format;
+                mGl.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+            }
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, int offset) {
+            int format = attribFormat(size, type, normalized, stride);
+            if (index >= MAX_VERTEX_ATTRIBS || mArrayBuffer == UNKNOWN) {
+                issue(true);
+                mGl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+                if (index < MAX_VERTEX_ATTRIBS) {
+                    mAttribKnown[index] = false;
+                }
+            } else if (issue(!mAttribKnown[index] || mAttribBuffer[index] != mArrayBuffer ||
+                    mAttribOffset[index] != offset || mAttribFormat[index] != format)) {
+                mAttribKnown[index] = true;
+                mAttribBuffer[index] = mArrayBuffer;
+                mAttribClientData[index] = null;
+                mAttribOffset[index] = offset;
+                mAttribFormat[index] = format;
+                mGl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+            }
+        }
+
+        /** Packs the rest of a vertex attribute's format into an int. */
+        private static int attribFormat(int size, int type, boolean normalized, int stride) {
+            return (stride << 20) | ((type & 0xffff) << 4) | (normalized ? 8 : 0) | size;
+        }
+
+        // Not state we track.
+
+        @Override
+        public int glGetProgrami(int program, int pname) {
+            return mGl.glGetProgrami(program, pname);
+        }
+
+        @Override
+        public String glGetActiveUniform(int program, int index, int[] sizeType) {
+            return mGl.glGetActiveUniform(program, index, sizeType);
+        }
+
+        @Override
+        public String glGetActiveAttrib(int program, int index, int[] sizeType) {
+            return mGl.glGetActiveAttrib(program, index, sizeType);
+        }
+
+        @Override
+        public int glGetUniformLocation(int program, String name) {
+            return mGl.glGetUniformLocation(program, name);
+        }
+
+        @Override
+        public int glGetAttribLocation(int program, String name) {
+            return mGl.glGetAttribLocation(program, name);
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            mGl.glUniform1i(location, x);
+        }
+
+        @Override
+        public void glUniform1f(int location, float x) {
+            mGl.glUniform1f(location, x);
+        }
+
+        @Override
+        public void glUniform2f(int location, float x, float y) {
+            mGl.glUniform2f(location, x, y);
+        }
+
+        @Override
+        public void glUniform3f(int location, float x, float y, float z) {
+            mGl.glUniform3f(location, x, y, z);
+        }
+
+        @Override
+        public void glUniform3fv(int location, int count, float[] v, int offset) {
+            mGl.glUniform3fv(location, count, v, offset);
+        }
+    }
 }
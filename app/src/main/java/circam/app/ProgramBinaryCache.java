@@ -0,0 +1,295 @@
+package circam.app;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Linked programs kept on disk, so a launch after the first skips compiling and linking.
+ * <p>
+ * GLES 3 can hand back a linked program as a binary, in a format of the driver's choosing,
+ * and take it back on a later run with glProgramBinary().  Each is stored in a file named for
+ * a hash of its shader sources, so an edited shader misses.  The file also records the GL
+ * renderer and version strings.  A driver update may change the format, or reject binaries
+ * from before it, so a file from another driver is deleted and the program built from
+ * source; so is one the driver won't link.
+ * <p>
+ * On GLES 2, or a driver with no binary formats, programs are just built from source.
+ * <p>
+ * Use it on any thread with a current context.  Two threads saving the same program is
+ * harmless, since a file is replaced whole.
+ */
+public class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final int MAGIC = 0x43505242;     // "CPRB"
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static ProgramBinaryCache sInstance;
+
+    /**
+     * A linked program as the driver gave it to us.
+     */
+    static final class Binary {
+        final int format;
+        final byte[] data;
+
+        Binary(int format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    private final File mDir;
+
+    // Since the last resetStats().
+    private final AtomicInteger mLoaded = new AtomicInteger();
+    private final AtomicInteger mCompiled = new AtomicInteger();
+    private final AtomicLong mBuildNsec = new AtomicLong();
+
+    /**
+     * Returns the cache for the app, in its cache directory.
+     */
+    public static synchronized ProgramBinaryCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProgramBinaryCache(new File(context.getCacheDir(), "programs"));
+        }
+        return sInstance;
+    }
+
+    ProgramBinaryCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns a linked program for the sources, from its binary if we have one that works,
+     * else built from source.  Returns 0 if it doesn't build.
+     */
+    public int buildProgram(String vertexSource, String fragmentSource) {
+        long startNsec = System.nanoTime();
+        String driver = binaryDriver();
+        String key = null;
+        int program = 0;
+        if (driver != null) {
+            key = key(vertexSource, fragmentSource);
+            program = fromBinary(key, driver);
+        }
+        if (program != 0) {
+            mLoaded.incrementAndGet();
+        } else {
+            program = MyGLUtils.buildProgram(vertexSource, fragmentSource, driver != null);
+            if (program != 0 && driver != null) {
+                save(key, driver, program);
+            }
+            mCompiled.incrementAndGet();
+        }
+        mBuildNsec.addAndGet(System.nanoTime() - startNsec);
+        return program;
+    }
+
+    /** Programs loaded from binaries since resetStats(). */
+    public int getLoaded() {
+        return mLoaded.get();
+    }
+
+    /** Programs built from source since resetStats(). */
+    public int getCompiled() {
+        return mCompiled.get();
+    }
+
+    /** Time spent in buildProgram() since resetStats(), summed over threads. */
+    public long getBuildNsec() {
+        return mBuildNsec.get();
+    }
+
+    public void resetStats() {
+        mLoaded.set(0);
+        mCompiled.set(0);
+        mBuildNsec.set(0);
+    }
+
+    /**
+     * Returns what identifies the current context's driver, or null if it can't give us
+     * program binaries.
+     */
+    private static String binaryDriver() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            return null;
+        }
+        int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        if (formats[0] == 0) {
+            return null;
+        }
+        return GLES20.glGetString(GLES20.GL_RENDERER) + "; " + version;
+    }
+
+    private int fromBinary(String key, String driver) {
+        Binary binary = read(key, driver);
+        if (binary == null) {
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(binary.data.length).order(ByteOrder.nativeOrder());
+        buf.put(binary.data);
+        buf.position(0);
+        GLES30.glProgramBinary(program, binary.format, buf, binary.data.length);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.w(TAG, key + ": binary rejected; rebuilding");
+            GLES20.glDeleteProgram(program);
+            delete(key);
+            return 0;
+        }
+        return program;
+    }
+
+    private void save(String key, String driver, int program) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] == 0) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buf);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, key + ": no binary from the driver");
+            return;
+        }
+        byte[] data = new byte[length[0]];
+        buf.get(data);
+        write(key, driver, new Binary(format[0], data));
+    }
+
+    /**
+     * Returns the binary stored for key, or null if there isn't one from this driver.  One
+     * from another driver, or that we can't read, is deleted.
+     */
+    Binary read(String key, String driver) {
+        File file = file(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {
+                throw new IOException("not a program binary");
+            }
+            String storedDriver = in.readUTF();
+            if (!storedDriver.equals(driver)) {
+                Log.i(TAG, key + ": from driver " + storedDriver + "; rebuilding");
+                delete(key);
+                return null;
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > file.length()) {
+                throw new IOException("bad length " + length);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return new Binary(format, data);
+        } catch (IOException ioe) {
+            Log.w(TAG, key + ": unreadable; rebuilding", ioe);
+            delete(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores a binary for key, replacing any there was.
+     */
+    void write(String key, String driver, Binary binary) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "unable to create " + mDir);
+            return;
+        }
+        // Written aside and renamed, so a reader never sees half a file.
+        File temp = new File(mDir, key + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeUTF(driver);
+            out.writeInt(binary.format);
+            out.writeInt(binary.data.length);
+            out.write(binary.data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file(key))) {
+                throw new IOException("unable to rename " + temp);
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, key + ": unable to save", ioe);
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    private void delete(String key) {
+        file(key).delete();
+    }
+
+    private File file(String key) {
+        return new File(mDir, key + ".bin");
+    }
+
+    /**
+     * Returns the hex SHA-1 of the sources.
+     */
+    static String key(String vertexSource, String fragmentSource) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+        digest.update(vertexSource.getBytes(UTF8));
+        digest.update((byte) 0);
+        digest.update(fragmentSource.getBytes(UTF8));
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b & 0xff));
+        }
+        return key.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
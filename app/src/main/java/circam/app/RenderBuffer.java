@@ -3,10 +3,6 @@ package circam.app;
 
 import android.opengl.GLES20;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
-
 import javax.microedition.khronos.opengles.GL10;
 
 /**
@@ -27,11 +23,10 @@ public class RenderBuffer {
         int[] genbuf = new int[1];
 
         // Generate and bind 2d texture
-        GLES20.glActiveTexture(activeTexUnit);
+        MyGLUtils.GL.glActiveTexture(activeTexUnit);
         texId = MyGLUtils.genTexture();
-        IntBuffer texBuffer =
-                ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, texBuffer);
+        // No data; whoever draws it first clears it.
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
 
         GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
         GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
@@ -42,7 +37,7 @@ public class RenderBuffer {
         GLES20.glGenFramebuffers(1, genbuf, 0);
         frameBufferId = genbuf[0];
         // Bind frame buffer
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+        MyGLUtils.GL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
 
         // Generate render buffer
         GLES20.glGenRenderbuffers(1, genbuf, 0);
@@ -51,6 +46,12 @@ public class RenderBuffer {
         GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, renderBufferId);
         GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
 
+        // Attachments belong to the frame buffer, so they only need setting once.
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texId, 0);
+        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                GLES20.GL_RENDERBUFFER, renderBufferId);
+
         unbind();
     }
 
@@ -71,16 +72,23 @@ public class RenderBuffer {
     }
 
     public void bind() {
-        GLES20.glViewport(0, 0, width, height);
-
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, texId, 0);
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                GLES20.GL_RENDERBUFFER, renderBufferId);
+        MyGLUtils.GL.glViewport(0, 0, width, height);
+        MyGLUtils.GL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
     }
 
     public void unbind() {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        MyGLUtils.GL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Deletes the texture and buffers.  It mustn't be bound.
+     */
+    public void release() {
+        GLES20.glDeleteFramebuffers(1, new int[] { frameBufferId }, 0);
+        GLES20.glDeleteRenderbuffers(1, new int[] { renderBufferId }, 0);
+        GLES20.glDeleteTextures(1, new int[] { texId }, 0);
+        // Deleting a bound texture unbinds it, behind the cache's back.
+        MyGLUtils.GL.invalidateTextures();
+        texId = renderBufferId = frameBufferId = 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,226 @@
+package circam.app;
+
+/**
+ * Decides, frame by frame, whether the render thread has time to show a camera frame in
+ * the preview as well as send it to the encoder.
+ * <p>
+ * Every camera frame goes to the encoder, and it has to get there before the next one
+ * arrives: its deadline is its arrival time plus the frame interval.  The preview is a
+ * nicety.  After each encoder frame we look at how long the encoder and preview passes have
+ * been taking, and only draw the preview if the next encoder frame will still make its
+ * deadline afterwards.  We also show at most one preview frame per display refresh, since
+ * a second one would never be seen, and aim each one at the vsync it'll be shown at.  Skips
+ * are counted by reason.
+ * <p>
+ * Vsync times come from Choreographer, and may be reported from any thread.  Everything
+ * else is called on the render thread.  Times are in nanoseconds on the Clock passed in;
+ * normally that's System.nanoTime(), the clock Choreographer uses too.
+ */
+public class RenderScheduler {
+    /**
+     * Source of the current time, so tests can control it.
+     */
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    // Weight of each new measurement in the smoothed costs and vsync period.
+    private static final float SMOOTHING = 0.125f;
+
+    private final Clock mClock;
+    private final long mFrameIntervalNsec;
+
+    // Latest vsync, and the refresh period.
+    private final Object mVsyncLock = new Object();
+    private long mVsyncNsec = -1;
+    private long mVsyncPeriodNsec;
+
+    // Frame being rendered.
+    private long mFrameStartNsec;
+    private long mDeadlineNsec;
+    private long mPreviewStartNsec;
+    private long mPreviewVsyncNsec = Long.MIN_VALUE;
+
+    // Smoothed cost of each pass; zero until measured.
+    private long mEncoderCostNsec;
+    private long mPreviewCostNsec;
+
+    private int mFrames;
+    private int mDeadlineMisses;
+    private int mPreviewFrames;
+    private int mPreviewSkippedLate;
+    private int mPreviewSkippedVsync;
+
+    /**
+     * @param frameIntervalNsec Time between camera frames.
+     * @param vsyncPeriodNsec Display refresh period, to start with.  It's refined from the
+     *     vsyncs reported.
+     */
+    public RenderScheduler(Clock clock, long frameIntervalNsec, long vsyncPeriodNsec) {
+        if (frameIntervalNsec <= 0 || vsyncPeriodNsec <= 0) {
+            throw new IllegalArgumentException("Bad intervals: " + frameIntervalNsec + ", " +
+                    vsyncPeriodNsec);
+        }
+        mClock = clock;
+        mFrameIntervalNsec = frameIntervalNsec;
+        mVsyncPeriodNsec = vsyncPeriodNsec;
+    }
+
+    /**
+     * Records a vsync, e.g. from Choreographer.FrameCallback.doFrame().  May be called from
+     * any thread.
+     */
+    public void onVsync(long frameTimeNanos) {
+        synchronized (mVsyncLock) {
+            if (mVsyncNsec >= 0 && frameTimeNanos > mVsyncNsec) {
+                // Choreographer misses vsyncs when its thread is busy, so the gap can be
+                // several periods.
+                long gap = frameTimeNanos - mVsyncNsec;
+                long periods = Math.max(1, (gap + mVsyncPeriodNsec / 2) / mVsyncPeriodNsec);
+                mVsyncPeriodNsec += (long) ((gap / periods - mVsyncPeriodNsec) * SMOOTHING);
+            }
+            mVsyncNsec = frameTimeNanos;
+        }
+    }
+
+    /**
+     * Returns the first vsync at or after timeNsec, as best we can predict it.  Before the
+     * first vsync is reported, returns timeNsec.
+     */
+    public long nextVsync(long timeNsec) {
+        synchronized (mVsyncLock) {
+            if (mVsyncNsec < 0 || timeNsec <= mVsyncNsec) {
+                return Math.max(timeNsec, mVsyncNsec);
+            }
+            long periods = (timeNsec - mVsyncNsec + mVsyncPeriodNsec - 1) / mVsyncPeriodNsec;
+            return mVsyncNsec + periods * mVsyncPeriodNsec;
+        }
+    }
+
+    /**
+     * Returns the current estimate of the display refresh period.
+     */
+    public long getVsyncPeriodNsec() {
+        synchronized (mVsyncLock) {
+            return mVsyncPeriodNsec;
+        }
+    }
+
+    /**
+     * Starts a camera frame.
+     *
+     * @param arrivalNsec When the frame became available.
+     */
+    public void beginFrame(long arrivalNsec) {
+        mFrameStartNsec = mClock.nanoTime();
+        mDeadlineNsec = arrivalNsec + mFrameIntervalNsec;
+        mFrames++;
+    }
+
+    /**
+     * Records that the current frame has been handed to the encoder.
+     *
+     * @return false if it missed its deadline.
+     */
+    public boolean encoderFrameDone() {
+        long now = mClock.nanoTime();
+        mEncoderCostNsec = smooth(mEncoderCostNsec, now - mFrameStartNsec);
+        if (now > mDeadlineNsec) {
+            mDeadlineMisses++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decides whether to show the current frame in the preview.  Call after
+     * encoderFrameDone().  If this returns true, draw the preview, present it at
+     * {@link #getPreviewPresentationNsec()}, and call previewFrameDone().
+     *
+     * @param framesWaiting Camera frames that have arrived and are waiting to be rendered.
+     */
+    public boolean shouldDrawPreview(int framesWaiting) {
+        long now = mClock.nanoTime();
+        // If we're behind, or the next frame's encoder pass wouldn't fit between the preview
+        // and its deadline, the preview has to go.
+        if (framesWaiting > 0 || now + mPreviewCostNsec + mEncoderCostNsec >
+                mDeadlineNsec + mFrameIntervalNsec) {
+            // Let the preview cost estimate decay while we skip, or one slow preview frame
+            // would shut the preview off for good.
+            mPreviewCostNsec -= (long) (mPreviewCostNsec * SMOOTHING);
+            mPreviewSkippedLate++;
+            return false;
+        }
+        long vsync = nextVsync(now + mPreviewCostNsec);
+        if (vsync < mPreviewVsyncNsec + getVsyncPeriodNsec() / 2) {
+            // There's already a frame for that refresh.
+            mPreviewSkippedVsync++;
+            return false;
+        }
+        mPreviewVsyncNsec = vsync;
+        mPreviewStartNsec = now;
+        return true;
+    }
+
+    /**
+     * Returns the vsync the preview frame is aimed at, for eglPresentationTimeANDROID().
+     */
+    public long getPreviewPresentationNsec() {
+        return mPreviewVsyncNsec;
+    }
+
+    /**
+     * Records that the preview frame has been drawn and swapped.
+     */
+    public void previewFrameDone() {
+        mPreviewCostNsec = smooth(mPreviewCostNsec, mClock.nanoTime() - mPreviewStartNsec);
+        mPreviewFrames++;
+    }
+
+    private static long smooth(long average, long sample) {
+        if (average == 0) {
+            return sample;
+        }
+        return average + (long) ((sample - average) * SMOOTHING);
+    }
+
+    /** Returns the number of camera frames rendered. */
+    public int getFrames() {
+        return mFrames;
+    }
+
+    /** Returns the number of frames that reached the encoder after their deadline. */
+    public int getDeadlineMisses() {
+        return mDeadlineMisses;
+    }
+
+    /** Returns the number of frames shown in the preview. */
+    public int getPreviewFrames() {
+        return mPreviewFrames;
+    }
+
+    /** Returns the number of preview frames skipped so the encoder could keep up. */
+    public int getPreviewSkippedLate() {
+        return mPreviewSkippedLate;
+    }
+
+    /** Returns the number of preview frames skipped because the display couldn't show them. */
+    public int getPreviewSkippedVsync() {
+        return mPreviewSkippedVsync;
+    }
+
+    public long getEncoderCostNsec() {
+        return mEncoderCostNsec;
+    }
+
+    public long getPreviewCostNsec() {
+        return mPreviewCostNsec;
+    }
+}
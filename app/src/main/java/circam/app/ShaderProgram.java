@@ -0,0 +1,257 @@
+package circam.app;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+
+/**
+ * A linked GL program, with its active uniforms and attributes looked up once.
+ * <p>
+ * After linking we ask GL for every active uniform and attribute, and keep their locations.
+ * Filters look up the handles they need when they're built, and per frame only pass values.
+ * Each uniform has storage for its last value, so a value that hasn't changed since the
+ * last frame isn't sent again; a uniform's value belongs to the program, so nothing else can
+ * change it behind our back.  Nothing here allocates once the program is built.
+ * <p>
+ * Uniforms the shader doesn't use are optimized out by the compiler, and get the handle -1.
+ * Setting -1 does nothing, as with glUniform*() and location -1.
+ * <p>
+ * Use it on the thread that owns the GL context.  It may be built on another thread whose
+ * context shares the program, and handed over.
+ */
+public class ShaderProgram {
+    private static final String TAG = "ShaderProgram";
+
+    private static final int GL_SAMPLER_EXTERNAL_OES = 0x8D66;
+
+    private final GlApi mGl;
+    private final int mProgram;
+
+    // Per active uniform, by handle.
+    private final HashMap<String, Integer> mUniformHandles = new HashMap<>();
+    private final int[] mLocations;
+    private final int[] mArraySizes;
+    private final float[][] mFloatValues;       // for float types
+    private final int[][] mIntValues;           // for int, bool and sampler types
+    private final boolean[] mValueSet;
+
+    private final HashMap<String, Integer> mAttribLocations = new HashMap<>();
+
+    /**
+     * Looks up the active uniforms and attributes of a linked program.
+     */
+    public ShaderProgram(GlApi gl, int program) {
+        this(gl, gl, program);
+    }
+
+    /**
+     * Looks up the inputs with reflectWith, and uses gl from then on.  For programs linked
+     * on a loader thread, whose context shares objects with the render thread's.
+     */
+    public ShaderProgram(GlApi gl, GlApi reflectWith, int program) {
+        mGl = gl;
+        mProgram = program;
+
+        int[] sizeType = new int[2];
+        int uniforms = reflectWith.glGetProgrami(program, GLES20.GL_ACTIVE_UNIFORMS);
+        mLocations = new int[uniforms];
+        mArraySizes = new int[uniforms];
+        mFloatValues = new float[uniforms][];
+        mIntValues = new int[uniforms][];
+        mValueSet = new boolean[uniforms];
+        for (int i = 0; i < uniforms; i++) {
+            String name = baseName(reflectWith.glGetActiveUniform(program, i, sizeType));
+            int components = components(sizeType[1]);
+            mLocations[i] = reflectWith.glGetUniformLocation(program, name);
+            mArraySizes[i] = sizeType[0];
+            if (isIntType(sizeType[1])) {
+                mIntValues[i] = new int[sizeType[0] * components];
+            } else {
+                mFloatValues[i] = new float[sizeType[0] * components];
+            }
+            mUniformHandles.put(name, i);
+        }
+
+        int attribs = reflectWith.glGetProgrami(program, GLES20.GL_ACTIVE_ATTRIBUTES);
+        for (int i = 0; i < attribs; i++) {
+            String name = baseName(reflectWith.glGetActiveAttrib(program, i, sizeType));
+            mAttribLocations.put(name, reflectWith.glGetAttribLocation(program, name));
+        }
+        Log.d(TAG, "program " + program + ": " + uniforms + " uniforms, " + attribs + " attributes");
+    }
+
+    public int getProgram() {
+        return mProgram;
+    }
+
+    /**
+     * Returns the handle for a uniform, or -1 if the program doesn't use it.
+     */
+    public int uniform(String name) {
+        Integer handle = mUniformHandles.get(name);
+        return handle == null ? -1 : handle;
+    }
+
+    /**
+     * Returns the location of an attribute, or -1 if the program doesn't use it.
+     */
+    public int attribute(String name) {
+        Integer location = mAttribLocations.get(name);
+        return location == null ? -1 : location;
+    }
+
+    public void use() {
+        mGl.glUseProgram(mProgram);
+    }
+
+    // The setters below need the program to be in use.
+
+    public void set1i(int uniform, int x) {
+        if (uniform < 0) {
+            return;
+        }
+        int[] value = mIntValues[uniform];
+        if (!mValueSet[uniform] || value[0] != x) {
+            value[0] = x;
+            mValueSet[uniform] = true;
+            mGl.glUniform1i(mLocations[uniform], x);
+        }
+    }
+
+    public void set1f(int uniform, float x) {
+        if (uniform < 0) {
+            return;
+        }
+        float[] value = mFloatValues[uniform];
+        if (!mValueSet[uniform] || value[0] != x) {
+            value[0] = x;
+            mValueSet[uniform] = true;
+            mGl.glUniform1f(mLocations[uniform], x);
+        }
+    }
+
+    public void set2f(int uniform, float x, float y) {
+        if (uniform < 0) {
+            return;
+        }
+        float[] value = mFloatValues[uniform];
+        if (!mValueSet[uniform] || value[0] != x || value[1] != y) {
+            value[0] = x;
+            value[1] = y;
+            mValueSet[uniform] = true;
+            mGl.glUniform2f(mLocations[uniform], x, y);
+        }
+    }
+
+    public void set3f(int uniform, float x, float y, float z) {
+        if (uniform < 0) {
+            return;
+        }
+        float[] value = mFloatValues[uniform];
+        if (!mValueSet[uniform] || value[0] != x || value[1] != y || value[2] != z) {
+            value[0] = x;
+            value[1] = y;
+            value[2] = z;
+            mValueSet[uniform] = true;
+            mGl.glUniform3f(mLocations[uniform], x, y, z);
+        }
+    }
+
+    /**
+     * Sets the first count elements of a vec3 array, from v.
+     */
+    public void set3fv(int uniform, float[] v, int count) {
+        if (uniform < 0) {
+            return;
+        }
+        count = Math.min(count, mArraySizes[uniform]);
+        float[] value = mFloatValues[uniform];
+        boolean changed = !mValueSet[uniform];
+        for (int i = 0; i < count * 3; i++) {
+            if (value[i] != v[i]) {
+                value[i] = v[i];
+                changed = true;
+            }
+        }
+        if (changed && count > 0) {
+            mValueSet[uniform] = true;
+            mGl.glUniform3fv(mLocations[uniform], count, value, 0);
+        }
+    }
+
+    /**
+     * Points an attribute at client-side float data, size components per vertex.
+     */
+    public void setAttribute(int location, int size, FloatBuffer data) {
+        if (location < 0) {
+            return;
+        }
+        mGl.glEnableVertexAttribArray(location);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glVertexAttribPointer(location, size, GLES20.GL_FLOAT, false, size * 4, data);
+    }
+
+    /**
+     * Points an attribute at float data in a vertex buffer object, size components per
+     * vertex.  See MyGLUtils.createVertexBuffer().
+     */
+    public void setAttribute(int location, int size, int vertexBuffer) {
+        if (location < 0) {
+            return;
+        }
+        mGl.glEnableVertexAttribArray(location);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+        mGl.glVertexAttribPointer(location, size, GLES20.GL_FLOAT, false, size * 4, 0);
+    }
+
+    /** Array uniforms are reported as "name[0]". */
+    private static String baseName(String name) {
+        int bracket = name.indexOf('[');
+        return bracket < 0 ? name : name.substring(0, bracket);
+    }
+
+    private static boolean isIntType(int type) {
+        switch (type) {
+            case GLES20.GL_INT:
+            case GLES20.GL_INT_VEC2:
+            case GLES20.GL_INT_VEC3:
+            case GLES20.GL_INT_VEC4:
+            case GLES20.GL_BOOL:
+            case GLES20.GL_BOOL_VEC2:
+            case GLES20.GL_BOOL_VEC3:
+            case GLES20.GL_BOOL_VEC4:
+            case GLES20.GL_SAMPLER_2D:
+            case GLES20.GL_SAMPLER_CUBE:
+            case GL_SAMPLER_EXTERNAL_OES:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int components(int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT_VEC2:
+            case GLES20.GL_INT_VEC2:
+            case GLES20.GL_BOOL_VEC2:
+                return 2;
+            case GLES20.GL_FLOAT_VEC3:
+            case GLES20.GL_INT_VEC3:
+            case GLES20.GL_BOOL_VEC3:
+                return 3;
+            case GLES20.GL_FLOAT_VEC4:
+            case GLES20.GL_INT_VEC4:
+            case GLES20.GL_BOOL_VEC4:
+            case GLES20.GL_FLOAT_MAT2:
+                return 4;
+            case GLES20.GL_FLOAT_MAT3:
+                return 9;
+            case GLES20.GL_FLOAT_MAT4:
+                return 16;
+            default:
+                return 1;
+        }
+    }
+}
@@ -5,13 +5,10 @@ import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.support.annotation.CallSuper;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import circam.app.MyGLUtils;
 import circam.app.R;
 import circam.app.RenderBuffer;
+import circam.app.ShaderProgram;
 
 
 public abstract class CameraFilter {
@@ -27,8 +24,9 @@ public abstract class CameraFilter {
             1.0f, 1.0f,
             0.0f, 1.0f,
     };
-    static FloatBuffer VERTEX_BUF, TEXTURE_COORD_BUF;
-    static int PROGRAM = 0;
+    // Vertex buffer objects; the geometry never changes.
+    static int VERTEX_VBO, TEXTURE_COORD_VBO;
+    static FilterProgram PROGRAM;
 
     private static final int BUF_ACTIVE_TEX_UNIT = GLES20.GL_TEXTURE8;
     private static RenderBuffer CAMERA_RENDER_BUF;
@@ -39,45 +37,49 @@ public abstract class CameraFilter {
             0.0f, 0.0f,
             0.0f, 1.0f,
     };
-    private static FloatBuffer ROATED_TEXTURE_COORD_BUF;
+    private static int ROATED_TEXTURE_COORD_VBO;
 
     final long START_TIME = System.currentTimeMillis();
     int iFrame = 0;
 
     public CameraFilter(Context context) {
         // Setup default Buffers
-        if (VERTEX_BUF == null) {
-            VERTEX_BUF = ByteBuffer.allocateDirect(SQUARE_COORDS.length * 4)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-            VERTEX_BUF.put(SQUARE_COORDS);
-            VERTEX_BUF.position(0);
+        if (VERTEX_VBO == 0) {
+            VERTEX_VBO = MyGLUtils.createVertexBuffer(SQUARE_COORDS);
         }
 
-        if (TEXTURE_COORD_BUF == null) {
-            TEXTURE_COORD_BUF = ByteBuffer.allocateDirect(TEXTURE_COORDS.length * 4)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-            TEXTURE_COORD_BUF.put(TEXTURE_COORDS);
-            TEXTURE_COORD_BUF.position(0);
+        if (TEXTURE_COORD_VBO == 0) {
+            TEXTURE_COORD_VBO = MyGLUtils.createVertexBuffer(TEXTURE_COORDS);
         }
 
-        if (ROATED_TEXTURE_COORD_BUF == null) {
-            ROATED_TEXTURE_COORD_BUF = ByteBuffer.allocateDirect(ROATED_TEXTURE_COORDS.length * 4)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-            ROATED_TEXTURE_COORD_BUF.put(ROATED_TEXTURE_COORDS);
-            ROATED_TEXTURE_COORD_BUF.position(0);
+        if (ROATED_TEXTURE_COORD_VBO == 0) {
+            ROATED_TEXTURE_COORD_VBO = MyGLUtils.createVertexBuffer(ROATED_TEXTURE_COORDS);
         }
 
-        if (PROGRAM == 0) {
-            PROGRAM = MyGLUtils.buildProgram(context, R.raw.vertext, R.raw.original_rtt);
+        if (PROGRAM == null) {
+            PROGRAM = buildProgram(context, R.raw.original_rtt);
         }
     }
 
+    /**
+     * Builds a filter shader, on the common vertex shader.
+     */
+    static FilterProgram buildProgram(Context context, int fragmentSourceRawId) {
+        int program = MyGLUtils.buildProgram(context, R.raw.vertext, fragmentSourceRawId);
+        return new FilterProgram(new ShaderProgram(MyGLUtils.GL, program));
+    }
+
     @CallSuper
     public void onAttach() {
         iFrame = 0;
     }
 
-    final public void draw(int cameraTexId, int canvasWidth, int canvasHeight) {
+    /**
+     * Runs the filter on a camera frame, leaving the result in output.
+     */
+    final public void draw(int cameraTexId, RenderBuffer output) {
+        int canvasWidth = output.getWidth();
+        int canvasHeight = output.getHeight();
         // TODO move?
         // Create camera render buffer
         if (CAMERA_RENDER_BUF == null ||
@@ -87,82 +89,77 @@ public abstract class CameraFilter {
         }
 
         // Use shaders
-        GLES20.glUseProgram(PROGRAM);
-
-        int iChannel0Location = GLES20.glGetUniformLocation(PROGRAM, "iChannel0");
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTexId);
-        GLES20.glUniform1i(iChannel0Location, 0);
+        ShaderProgram program = PROGRAM.program;
+        program.use();
 
-        int vPositionLocation = GLES20.glGetAttribLocation(PROGRAM, "vPosition");
-        GLES20.glEnableVertexAttribArray(vPositionLocation);
-        GLES20.glVertexAttribPointer(vPositionLocation, 2, GLES20.GL_FLOAT, false, 4 * 2, VERTEX_BUF);
+        MyGLUtils.GL.glActiveTexture(GLES20.GL_TEXTURE0);
+        MyGLUtils.GL.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTexId);
+        program.set1i(PROGRAM.iChannel[0], 0);
 
-        int vTexCoordLocation = GLES20.glGetAttribLocation(PROGRAM, "vTexCoord");
-        GLES20.glEnableVertexAttribArray(vTexCoordLocation);
-        GLES20.glVertexAttribPointer(vTexCoordLocation, 2, GLES20.GL_FLOAT, false, 4 * 2, ROATED_TEXTURE_COORD_BUF);
+        program.setAttribute(PROGRAM.vPosition, 2, VERTEX_VBO);
+        program.setAttribute(PROGRAM.vTexCoord, 2, ROATED_TEXTURE_COORD_VBO);
 
         // Render to texture
         CAMERA_RENDER_BUF.bind();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         CAMERA_RENDER_BUF.unbind();
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-        onDraw(CAMERA_RENDER_BUF.getTexId(), canvasWidth, canvasHeight);
+        onDraw(CAMERA_RENDER_BUF.getTexId(), output);
+        output.unbind();
 
         iFrame++;
     }
 
-    abstract void onDraw(int cameraTexId, int canvasWidth, int canvasHeight);
-
-    void setupShaderInputs(int program, int[] iResolution, int[] iChannels, int[][] iChannelResolutions) {
-        setupShaderInputs(program, VERTEX_BUF, TEXTURE_COORD_BUF, iResolution, iChannels, iChannelResolutions);
+    /**
+     * Draws the filter into output, binding and clearing it first.  Passes before the last
+     * may draw to other buffers.
+     */
+    abstract void onDraw(int cameraTexId, RenderBuffer output);
+
+    /**
+     * Uses the program, and sets the inputs common to all filter shaders.  Callers should
+     * keep their iChannels and iChannelResolutions arrays from frame to frame; nothing here
+     * allocates.
+     */
+    void setupShaderInputs(FilterProgram program, int width, int height, int[] iChannels, int[][] iChannelResolutions) {
+        setupShaderInputs(program, VERTEX_VBO, TEXTURE_COORD_VBO, width, height, iChannels, iChannelResolutions);
     }
 
-    void setupShaderInputs(int program, FloatBuffer vertex, FloatBuffer textureCoord, int[] iResolution, int[] iChannels, int[][] iChannelResolutions) {
-        GLES20.glUseProgram(program);
+    void setupShaderInputs(FilterProgram program, int vertexVbo, int textureCoordVbo, int width, int height, int[] iChannels, int[][] iChannelResolutions) {
+        ShaderProgram shader = program.program;
+        shader.use();
 
-        int iResolutionLocation = GLES20.glGetUniformLocation(program, "iResolution");
-        GLES20.glUniform3fv(iResolutionLocation, 1,
-                FloatBuffer.wrap(new float[]{(float) iResolution[0], (float) iResolution[1], 1.0f}));
+        shader.set3f(program.iResolution, (float) width, (float) height, 1.0f);
 
         float time = ((float) (System.currentTimeMillis() - START_TIME)) / 1000.0f;
-        int iGlobalTimeLocation = GLES20.glGetUniformLocation(program, "iGlobalTime");
-        GLES20.glUniform1f(iGlobalTimeLocation, time);
+        shader.set1f(program.iGlobalTime, time);
 
-        int iFrameLocation = GLES20.glGetUniformLocation(program, "iFrame");
-        GLES20.glUniform1i(iFrameLocation, iFrame);
+        shader.set1i(program.iFrame, iFrame);
 
-        int vPositionLocation = GLES20.glGetAttribLocation(program, "vPosition");
-        GLES20.glEnableVertexAttribArray(vPositionLocation);
-        GLES20.glVertexAttribPointer(vPositionLocation, 2, GLES20.GL_FLOAT, false, 4 * 2, vertex);
-
-        int vTexCoordLocation = GLES20.glGetAttribLocation(program, "vTexCoord");
-        GLES20.glEnableVertexAttribArray(vTexCoordLocation);
-        GLES20.glVertexAttribPointer(vTexCoordLocation, 2, GLES20.GL_FLOAT, false, 4 * 2, textureCoord);
+        shader.setAttribute(program.vPosition, 2, vertexVbo);
+        shader.setAttribute(program.vTexCoord, 2, textureCoordVbo);
 
         for (int i = 0; i < iChannels.length; i++) {
-            int sTextureLocation = GLES20.glGetUniformLocation(program, "iChannel" + i);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, iChannels[i]);
-            GLES20.glUniform1i(sTextureLocation, i);
+            MyGLUtils.GL.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            MyGLUtils.GL.glBindTexture(GLES20.GL_TEXTURE_2D, iChannels[i]);
+            shader.set1i(program.iChannel[i], i);
         }
 
-        float _iChannelResolutions[] = new float[iChannelResolutions.length * 3];
+        float[] resolutions = program.channelResolutions;
         for (int i = 0; i < iChannelResolutions.length; i++) {
-            _iChannelResolutions[i * 3] = iChannelResolutions[i][0];
-            _iChannelResolutions[i * 3 + 1] = iChannelResolutions[i][1];
-            _iChannelResolutions[i * 3 + 2] = 1.0f;
+            resolutions[i * 3] = iChannelResolutions[i][0];
+            resolutions[i * 3 + 1] = iChannelResolutions[i][1];
+            resolutions[i * 3 + 2] = 1.0f;
         }
-
-        int iChannelResolutionLocation = GLES20.glGetUniformLocation(program, "iChannelResolution");
-        GLES20.glUniform3fv(iChannelResolutionLocation,
-                _iChannelResolutions.length, FloatBuffer.wrap(_iChannelResolutions));
+        shader.set3fv(program.iChannelResolution, resolutions, iChannelResolutions.length);
     }
 
     public static void release() {
-        PROGRAM = 0;
+        PROGRAM = null;
+        VERTEX_VBO = 0;
+        TEXTURE_COORD_VBO = 0;
+        ROATED_TEXTURE_COORD_VBO = 0;
         CAMERA_RENDER_BUF = null;
     }
 }
@@ -0,0 +1,132 @@
+package circam.app.filter;
+
+/**
+ * Which render buffer each of a filter's passes draws to, and which each of its pass-output
+ * channels reads.
+ * <p>
+ * The passes run in order, and the last draws to the filter's output.  Every other pass is a
+ * node whose output is an edge to the passes that read it.  An edge read in the same frame
+ * only has to live from its pass to its last reader, so buffers are handed out by liveness:
+ * a pass takes the first buffer whose last reader has already run, which for intervals taken
+ * in order gives the fewest buffers there can be.  An edge read the next frame, like a pass
+ * reading its own last output, lives across frames, so that pass gets a pair of buffers to
+ * itself and alternates between them, drawing one while the other holds the frame before.
+ * <p>
+ * Worked out once per FilterSpec; the per-frame lookups don't allocate.
+ */
+final class FilterGraph {
+    /** The pass draws to the filter's output. */
+    static final int OUTPUT = -1;
+
+    private final int[] mBuffer;            // per pass: its buffer, or the first of its pair
+    private final boolean[] mFeedback;      // per pass: read the next frame
+    private final int mFeedbackBufferCount;
+    private final int mBufferCount;
+
+    FilterGraph(FilterSpec.Pass[] passes) {
+        int count = passes.length;
+        mBuffer = new int[count];
+        mFeedback = new boolean[count];
+
+        int[] lastReader = new int[count];
+        for (int p = 0; p < count; p++) {
+            lastReader[p] = -1;
+        }
+        for (int p = 0; p < count; p++) {
+            FilterSpec.Pass pass = passes[p];
+            for (int i = 0; i < pass.getChannelCount(); i++) {
+                int channel = pass.getChannel(i);
+                if (!FilterSpec.isPassOutput(channel)) {
+                    continue;
+                }
+                int from = FilterSpec.passOf(channel);
+                if (from >= count) {
+                    throw new IllegalArgumentException("pass " + p + " reads pass " + from +
+                            ", of " + count);
+                }
+                if (FilterSpec.isPreviousOutput(channel)) {
+                    mFeedback[from] = true;
+                } else if (from >= p) {
+                    throw new IllegalArgumentException("pass " + p + " reads pass " + from +
+                            " before it's drawn");
+                } else {
+                    lastReader[from] = Math.max(lastReader[from], p);
+                }
+            }
+        }
+        int last = count - 1;
+        if (mFeedback[last]) {
+            throw new IllegalArgumentException("the last pass draws to the output, which " +
+                    "can't be read back");
+        }
+
+        // Pairs first; they're live all the time.
+        int buffers = 0;
+        for (int p = 0; p < last; p++) {
+            if (mFeedback[p]) {
+                mBuffer[p] = buffers;
+                buffers += 2;
+            } else if (lastReader[p] < 0) {
+                throw new IllegalArgumentException("pass " + p + " is never read");
+            }
+        }
+        mFeedbackBufferCount = buffers;
+
+        // Then the rest, each taking a buffer whose last reader has run.
+        int[] freeAfter = new int[count];   // per shared buffer, its current pass's last reader
+        int shared = 0;
+        for (int p = 0; p < last; p++) {
+            if (mFeedback[p]) {
+                continue;
+            }
+            int buffer = 0;
+            while (buffer < shared && freeAfter[buffer] >= p) {
+                buffer++;
+            }
+            if (buffer == shared) {
+                shared++;
+            }
+            freeAfter[buffer] = lastReader[p];
+            mBuffer[p] = mFeedbackBufferCount + buffer;
+        }
+        mBuffer[last] = OUTPUT;
+        mBufferCount = mFeedbackBufferCount + shared;
+    }
+
+    int getPassCount() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Returns how many buffers the passes need, not counting the output.
+     */
+    int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Returns how many of the buffers hold a frame for the next; they're the first ones, and
+     * should start out clear.
+     */
+    int getFeedbackBufferCount() {
+        return mFeedbackBufferCount;
+    }
+
+    /**
+     * Returns the buffer pass draws to in the given frame, or OUTPUT.
+     */
+    int target(int pass, int frame) {
+        return mFeedback[pass] ? mBuffer[pass] + (frame & 1) : mBuffer[pass];
+    }
+
+    /**
+     * Returns the buffer a pass-output channel reads in the given frame.
+     */
+    int source(int channel, int frame) {
+        int pass = FilterSpec.passOf(channel);
+        if (FilterSpec.isPreviousOutput(channel)) {
+            return mBuffer[pass] + ((frame + 1) & 1);
+        }
+        return target(pass, frame);
+    }
+}
@@ -0,0 +1,39 @@
+package circam.app.filter;
+
+import circam.app.ShaderProgram;
+
+/**
+ * A filter's ShaderProgram, with the handles of the Shadertoy-style inputs every filter
+ * shader may use looked up once.
+ */
+final class FilterProgram {
+    static final int MAX_CHANNELS = 4;
+    private static final String[] CHANNEL_NAMES = {
+            "iChannel0", "iChannel1", "iChannel2", "iChannel3"
+    };
+
+    final ShaderProgram program;
+    final int iResolution;
+    final int iGlobalTime;
+    final int iFrame;
+    final int iChannelResolution;
+    final int[] iChannel = new int[MAX_CHANNELS];
+    final int vPosition;
+    final int vTexCoord;
+
+    // Scratch for iChannelResolution.
+    final float[] channelResolutions = new float[MAX_CHANNELS * 3];
+
+    FilterProgram(ShaderProgram program) {
+        this.program = program;
+        iResolution = program.uniform("iResolution");
+        iGlobalTime = program.uniform("iGlobalTime");
+        iFrame = program.uniform("iFrame");
+        iChannelResolution = program.uniform("iChannelResolution");
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            iChannel[i] = program.uniform(CHANNEL_NAMES[i]);
+        }
+        vPosition = program.attribute("vPosition");
+        vTexCoord = program.attribute("vTexCoord");
+    }
+}
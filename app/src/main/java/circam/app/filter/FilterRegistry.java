@@ -0,0 +1,61 @@
+package circam.app.filter;
+
+import circam.app.R;
+
+import circam.app.filter.FilterSpec.Pass;
+
+import static circam.app.filter.FilterSpec.CAMERA;
+import static circam.app.filter.FilterSpec.output;
+import static circam.app.filter.FilterSpec.previousOutput;
+
+/**
+ * Every filter the app has, by index.  The first is the one shown at startup.
+ * <p>
+ * Nothing here touches GL; programs are compiled when a filter is first wanted.  See
+ * ShaderFilter.
+ */
+public final class FilterRegistry {
+    private static final FilterSpec[] FILTERS = {
+            new FilterSpec("Chromatic Aberration", R.raw.chromatic_aberration, CAMERA),
+            new FilterSpec("Original", R.raw.original, CAMERA),
+            new FilterSpec("ASCII Art", R.raw.ascii_art, CAMERA),
+            new FilterSpec("Basic Deform", R.raw.basic_deform, CAMERA),
+            new FilterSpec("Blue Orange", R.raw.blue_orange, CAMERA),
+            new FilterSpec("Contrast", R.raw.contrast, CAMERA),
+            new FilterSpec("Cracked", R.raw.cracked, CAMERA),
+            new FilterSpec("Crosshatch", R.raw.crosshatch, CAMERA),
+            new FilterSpec("Edge Detection", R.raw.edge_detection, CAMERA),
+            new FilterSpec("EM Interference", R.raw.em_interference, CAMERA),
+            new FilterSpec("Legofied", R.raw.legofied, CAMERA),
+            new FilterSpec("Lichtenstein-esque", R.raw.lichtenstein_esque, CAMERA),
+            new FilterSpec("Mapping", R.raw.mapping, R.raw.tex00, CAMERA),
+            new FilterSpec("Money", R.raw.money_filter, CAMERA),
+            new FilterSpec("Noise Warp", R.raw.noise_warp, CAMERA),
+            new FilterSpec("Pixelize", R.raw.pixelize, CAMERA),
+            new FilterSpec("Polygonization", R.raw.polygonization, CAMERA),
+            new FilterSpec("Refraction", R.raw.refraction, CAMERA, R.raw.tex11),
+            new FilterSpec("Tile Mosaic", R.raw.tile_mosaic, CAMERA),
+            new FilterSpec("Triangles Mosaic", R.raw.triangles_mosaic, CAMERA),
+            // Seeds at edges, kept a while (a), jump-flooded into cells over ten frames (b),
+            // and swapped in when complete (c), then coloured from the camera.
+            new FilterSpec("Voronoi",
+                    new Pass(R.raw.voronoi_buf_a, CAMERA, previousOutput(0)),
+                    new Pass(R.raw.voronoi_buf_b, previousOutput(1), output(0)),
+                    new Pass(R.raw.voronoi_buf_c, previousOutput(2), output(1)),
+                    new Pass(R.raw.voronoi, output(2), CAMERA)),
+    };
+
+    private FilterRegistry() {}
+
+    public static int size() {
+        return FILTERS.length;
+    }
+
+    /**
+     * Returns filter i, counting round in either direction.
+     */
+    public static FilterSpec get(int i) {
+        i %= FILTERS.length;
+        return FILTERS[i < 0 ? i + FILTERS.length : i];
+    }
+}
@@ -0,0 +1,110 @@
+package circam.app.filter;
+
+/**
+ * What a filter is: one or more shader passes, and what goes in each pass's iChannels.  The
+ * last pass draws what's shown.  A channel is the camera frame, a bundled image, or the output
+ * of a pass, from this frame or the one before.  See FilterRegistry and FilterGraph.
+ */
+public final class FilterSpec {
+    /** The channel gets the camera frame. */
+    public static final int CAMERA = 0;
+
+    static final int MAX_PASSES = 16;
+
+    /**
+     * A shader pass: its fragment shader, and what goes in each of its iChannels.
+     */
+    public static final class Pass {
+        public final int fragmentRawId;
+        private final int[] mChannels;
+
+        /**
+         * @param channels Per iChannel, CAMERA, the raw resource id of an image, or a pass
+         *     output; see output() and previousOutput().
+         */
+        Pass(int fragmentRawId, int... channels) {
+            if (channels.length == 0 || channels.length > FilterProgram.MAX_CHANNELS) {
+                throw new IllegalArgumentException(channels.length + " channels");
+            }
+            this.fragmentRawId = fragmentRawId;
+            mChannels = channels;
+        }
+
+        public int getChannelCount() {
+            return mChannels.length;
+        }
+
+        /**
+         * Returns CAMERA, the raw resource id of an image, or a pass output, for channel i.
+         */
+        public int getChannel(int i) {
+            return mChannels[i];
+        }
+    }
+
+    /**
+     * Returns the channel for what a pass drew this frame.  It must be an earlier pass.
+     */
+    static int output(int pass) {
+        return -1 - pass;
+    }
+
+    /**
+     * Returns the channel for what a pass drew the frame before; black on the first frame.
+     */
+    static int previousOutput(int pass) {
+        return -1 - MAX_PASSES - pass;
+    }
+
+    /** Returns true if channel is output() or previousOutput(). */
+    static boolean isPassOutput(int channel) {
+        return channel < 0;
+    }
+
+    /** Returns true if channel is previousOutput(). */
+    static boolean isPreviousOutput(int channel) {
+        return channel < -MAX_PASSES;
+    }
+
+    /** Returns the pass that a pass-output channel comes from. */
+    static int passOf(int channel) {
+        return isPreviousOutput(channel) ? -1 - MAX_PASSES - channel : -1 - channel;
+    }
+
+    public final String name;
+    private final Pass[] mPasses;
+    final FilterGraph graph;
+
+    /**
+     * A single-pass filter.
+     */
+    FilterSpec(String name, int fragmentRawId, int... channels) {
+        this(name, new Pass(fragmentRawId, channels));
+    }
+
+    FilterSpec(String name, Pass... passes) {
+        if (passes.length == 0 || passes.length > MAX_PASSES) {
+            throw new IllegalArgumentException(name + ": " + passes.length + " passes");
+        }
+        this.name = name;
+        mPasses = passes;
+        try {
+            graph = new FilterGraph(passes);
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(name + ": " + iae.getMessage());
+        }
+    }
+
+    public int getPassCount() {
+        return mPasses.length;
+    }
+
+    public Pass getPass(int i) {
+        return mPasses[i];
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
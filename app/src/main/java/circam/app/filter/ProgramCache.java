@@ -0,0 +1,316 @@
+package circam.app.filter;
+
+import android.content.Context;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import circam.app.EglCore;
+import circam.app.GlApi;
+import circam.app.MyGLUtils;
+import circam.app.R;
+import circam.app.ShaderProgram;
+
+/**
+ * Filter programs, compiled on a loader thread and kept for the render thread.  A filter
+ * with several passes has a program for each, and they're loaded and evicted together.
+ * <p>
+ * Compiling and linking a filter shader can take longer than a frame.  So get() never
+ * compiles: if the program isn't here it asks the loader for it and returns null, and the
+ * caller draws something else meanwhile.  The loader has its own EGL context, sharing objects
+ * with the render thread's, made current on a 1x1 pbuffer.  It links the program, looks up its
+ * inputs, and loads the images for its channels, then waits for GL to finish before handing
+ * them over; an object made on one context is only safe to use on another once it's complete.
+ * <p>
+ * At most capacity filters are kept, and the one used longest ago is deleted to make room.
+ * Images are few and small, and are kept until release().
+ * <p>
+ * If the loader's context can't be made, programs are compiled on the render thread when
+ * they're first wanted, stalling a frame each.
+ * <p>
+ * Use it on the render thread.
+ */
+final class ProgramCache {
+    private static final String TAG = "ProgramCache";
+
+    /**
+     * A pass's program, and the images for its channels.
+     */
+    static final class LoadedPass {
+        final FilterProgram program;
+        final int[][] images;             // per channel, {texture, width, height} or null
+
+        // Scratch for each draw's inputs.
+        final int[] channels;
+        final int[][] channelResolutions;
+
+        LoadedPass(FilterProgram program, int channelCount) {
+            this.program = program;
+            images = new int[channelCount][];
+            channels = new int[channelCount];
+            channelResolutions = new int[channelCount][2];
+        }
+    }
+
+    /**
+     * A filter's passes.
+     */
+    static final class Loaded {
+        final FilterSpec spec;
+        final LoadedPass[] passes;        // null if a pass didn't build
+
+        Loaded(FilterSpec spec, LoadedPass[] passes) {
+            this.spec = spec;
+            this.passes = passes;
+        }
+
+        void deletePrograms() {
+            for (LoadedPass pass : passes) {
+                MyGLUtils.GL.deleteProgram(pass.program.program.getProgram());
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final int mCapacity;
+    // Most recently used last.
+    private final LinkedHashMap<FilterSpec, Loaded> mFilters;
+    private final ArrayList<Loaded> mPinned = new ArrayList<>();
+    private final HashSet<FilterSpec> mPending = new HashSet<>();
+    private final HashSet<FilterSpec> mBroken = new HashSet<>();
+    private final ConcurrentLinkedQueue<Loaded> mLoaded = new ConcurrentLinkedQueue<>();
+
+    // Images by raw resource id.  Used by whichever thread loads; that's the loader, or the
+    // render thread if there's no loader.
+    private final HashMap<Integer, int[]> mImages = new HashMap<>();
+
+    private HandlerThread mLoaderThread;
+    private Handler mLoaderHandler;
+    private EglCore mLoaderEglCore;
+    private EGLSurface mLoaderSurface;
+    private volatile boolean mLoaderFailed;
+
+    /**
+     * @param renderCore The render thread's EGL state; the loader shares its objects.
+     * @param capacity Filters to keep, at least 2: the one drawn and the one coming.
+     */
+    ProgramCache(Context context, EglCore renderCore, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        mContext = context;
+        mCapacity = capacity;
+        mFilters = new LinkedHashMap<FilterSpec, Loaded>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FilterSpec, Loaded> eldest) {
+                if (size() <= mCapacity) {
+                    return false;
+                }
+                Log.d(TAG, "evicting " + eldest.getKey());
+                eldest.getValue().deletePrograms();
+                return true;
+            }
+        };
+
+        try {
+            mLoaderEglCore = new EglCore(renderCore);
+            mLoaderSurface = mLoaderEglCore.createOffscreenSurface(1, 1);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "no loader context; compiling on the render thread", e);
+            if (mLoaderEglCore != null) {
+                mLoaderEglCore.release();
+                mLoaderEglCore = null;
+            }
+            mLoaderFailed = true;
+            return;
+        }
+        mLoaderThread = new HandlerThread("ProgramLoader");
+        mLoaderThread.start();
+        mLoaderHandler = new Handler(mLoaderThread.getLooper());
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLoaderEglCore.makeCurrent(mLoaderSurface);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "loader context won't go current; compiling on the render thread", e);
+                    mLoaderFailed = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns spec's program, or null if it isn't ready yet, in which case it's on its way.
+     * Doesn't allocate if the program is here.
+     */
+    Loaded get(FilterSpec spec) {
+        drain();
+        Loaded loaded = mFilters.get(spec);
+        if (loaded == null) {
+            request(spec, true);
+        }
+        return loaded;
+    }
+
+    /**
+     * Starts loading spec's program, if it isn't here, so a later get() finds it.  Does
+     * nothing without a loader.
+     */
+    void prefetch(FilterSpec spec) {
+        if (!mFilters.containsKey(spec)) {
+            request(spec, false);
+        }
+    }
+
+    /**
+     * Compiles spec's program here and now, and keeps it until release().  For the program
+     * drawn while others load.
+     */
+    Loaded loadNow(FilterSpec spec) {
+        Loaded loaded = load(spec, MyGLUtils.GL);
+        if (loaded.passes == null) {
+            throw new RuntimeException("unable to build " + spec);
+        }
+        mPinned.add(loaded);
+        return loaded;
+    }
+
+    /**
+     * Stops the loader, and deletes the programs and images.  The render thread's context
+     * must be current.
+     */
+    void release() {
+        if (mLoaderThread != null) {
+            mLoaderHandler.removeCallbacksAndMessages(null);
+            mLoaderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mLoaderEglCore.releaseSurface(mLoaderSurface);
+                    mLoaderEglCore.release();
+                }
+            });
+            mLoaderThread.quitSafely();
+            try {
+                mLoaderThread.join();
+            } catch (InterruptedException ie) {
+                // The render thread is on its way out anyway.
+                Thread.currentThread().interrupt();
+            }
+            mLoaderThread = null;
+        }
+
+        drain();
+        for (Loaded loaded : mFilters.values()) {
+            loaded.deletePrograms();
+        }
+        for (Loaded loaded : mPinned) {
+            loaded.deletePrograms();
+        }
+        mFilters.clear();
+        mPinned.clear();
+        for (int[] image : mImages.values()) {
+            GLES20.glDeleteTextures(1, image, 0);
+        }
+        mImages.clear();
+        MyGLUtils.GL.invalidateTextures();
+    }
+
+    /**
+     * Takes in what the loader has finished.
+     */
+    private void drain() {
+        Loaded loaded;
+        while ((loaded = mLoaded.poll()) != null) {
+            mPending.remove(loaded.spec);
+            if (loaded.passes != null) {
+                mFilters.put(loaded.spec, loaded);
+            } else if (!mLoaderFailed) {
+                mBroken.add(loaded.spec);
+            }
+            // Else the loader gave up before trying, and the next get() builds it here.
+        }
+    }
+
+    private void request(final FilterSpec spec, boolean wanted) {
+        if (mPending.contains(spec) || mBroken.contains(spec)) {
+            return;
+        }
+        if (mLoaderFailed) {
+            if (wanted) {
+                Loaded loaded = load(spec, MyGLUtils.GL);
+                if (loaded.passes != null) {
+                    mFilters.put(spec, loaded);
+                } else {
+                    mBroken.add(spec);
+                }
+            }
+            return;
+        }
+
+        mPending.add(spec);
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLoaderFailed) {
+                    mLoaded.add(new Loaded(spec, null));
+                    return;
+                }
+                Loaded loaded = load(spec, new GlApi.Gles20());
+                // Everything must be done before the render thread uses it.
+                GLES20.glFinish();
+                mLoaded.add(loaded);
+            }
+        });
+    }
+
+    /**
+     * Builds the programs for spec's passes, and loads their images if they aren't yet,
+     * binding with gl.
+     */
+    private Loaded load(FilterSpec spec, GlApi gl) {
+        long startNsec = System.nanoTime();
+        LoadedPass[] passes = new LoadedPass[spec.getPassCount()];
+        for (int p = 0; p < passes.length; p++) {
+            FilterSpec.Pass pass = spec.getPass(p);
+            int program = MyGLUtils.buildProgram(mContext, R.raw.vertext, pass.fragmentRawId);
+            if (program == 0) {
+                Log.e(TAG, "unable to build " + spec + " pass " + p);
+                for (int i = 0; i < p; i++) {
+                    GLES20.glDeleteProgram(passes[i].program.program.getProgram());
+                }
+                return new Loaded(spec, null);
+            }
+
+            // Per frame, the program is used on the render thread, through the state cache.
+            passes[p] = new LoadedPass(
+                    new FilterProgram(new ShaderProgram(MyGLUtils.GL, gl, program)),
+                    pass.getChannelCount());
+            for (int i = 0; i < pass.getChannelCount(); i++) {
+                int rawId = pass.getChannel(i);
+                if (rawId == FilterSpec.CAMERA || FilterSpec.isPassOutput(rawId)) {
+                    continue;
+                }
+                int[] image = mImages.get(rawId);
+                if (image == null) {
+                    int[] size = new int[2];
+                    int texture = MyGLUtils.loadTexture(gl, mContext, rawId, size);
+                    image = new int[] { texture, size[0], size[1] };
+                    mImages.put(rawId, image);
+                }
+                passes[p].images[i] = image;
+            }
+        }
+        Log.d(TAG, spec + " loaded in " + (System.nanoTime() - startNsec) / 1000000 + " ms");
+        return new Loaded(spec, passes);
+    }
+}
@@ -0,0 +1,162 @@
+package circam.app.filter;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+
+import circam.app.EglCore;
+import circam.app.R;
+import circam.app.RenderBuffer;
+
+/**
+ * Draws whichever FilterRegistry filter was selected last.
+ * <p>
+ * Selecting a filter never waits for its program.  Until it's ready we keep drawing the
+ * filter shown before, or a plain copy of the camera if there wasn't one; see ProgramCache.
+ * <p>
+ * Each frame runs all the filter's passes, as laid out by its FilterGraph, every pass but the
+ * last drawing to a buffer from a pool at the output's size.  The pool is kept and grows to
+ * what the hungriest filter shown needs.
+ */
+public class ShaderFilter extends CameraFilter {
+    // Built up front, for while the first filter loads.
+    private static final FilterSpec PASSTHROUGH =
+            new FilterSpec("Passthrough", R.raw.original, FilterSpec.CAMERA);
+    private static final int CACHED_PROGRAMS = 6;
+    private static final int BUF_ACTIVE_TEX_UNIT = GLES20.GL_TEXTURE9;
+
+    private final ProgramCache mCache;
+    private final ProgramCache.Loaded mPassthrough;
+    private FilterSpec mSelected;
+    private FilterSpec mShown;
+    // The filter that last drew, and the buffers its passes draw to.
+    private FilterSpec mDrawn;
+    private final ArrayList<RenderBuffer> mBuffers = new ArrayList<>();
+
+    /**
+     * @param eglCore The render thread's EGL state, current on this thread.
+     */
+    public ShaderFilter(Context context, EglCore eglCore) {
+        super(context);
+        mCache = new ProgramCache(context, eglCore, CACHED_PROGRAMS);
+        mPassthrough = mCache.loadNow(PASSTHROUGH);
+    }
+
+    /**
+     * Switches to spec as soon as its programs are ready.
+     */
+    public void select(FilterSpec spec) {
+        mSelected = spec;
+        mCache.get(spec);
+    }
+
+    /**
+     * Loads spec's programs in the background, for a quick switch to it later.
+     */
+    public void prefetch(FilterSpec spec) {
+        mCache.prefetch(spec);
+    }
+
+    /**
+     * Returns true once the selected filter is the one being drawn.
+     */
+    public boolean isShowingSelected() {
+        return mShown != null && mShown == mSelected;
+    }
+
+    @Override
+    void onDraw(int cameraTexId, RenderBuffer output) {
+        ProgramCache.Loaded loaded = mSelected == null ? null : mCache.get(mSelected);
+        if (loaded != null) {
+            if (mShown != mSelected) {
+                mShown = mSelected;
+                onAttach();
+            }
+        } else if (mShown != null) {
+            loaded = mCache.get(mShown);
+        }
+        if (loaded == null) {
+            loaded = mPassthrough;
+        }
+
+        int width = output.getWidth();
+        int height = output.getHeight();
+        FilterGraph graph = loaded.spec.graph;
+        prepareBuffers(graph.getBufferCount(), width, height);
+        if (loaded.spec != mDrawn) {
+            // What's in the buffers was drawn by another filter.
+            mDrawn = loaded.spec;
+            for (int i = 0; i < graph.getFeedbackBufferCount(); i++) {
+                mBuffers.get(i).bind();
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            }
+        }
+
+        FilterSpec spec = loaded.spec;
+        for (int p = 0; p < spec.getPassCount(); p++) {
+            FilterSpec.Pass pass = spec.getPass(p);
+            ProgramCache.LoadedPass loadedPass = loaded.passes[p];
+            for (int i = 0; i < pass.getChannelCount(); i++) {
+                int channel = pass.getChannel(i);
+                int[] resolution = loadedPass.channelResolutions[i];
+                if (channel == FilterSpec.CAMERA) {
+                    loadedPass.channels[i] = cameraTexId;
+                    resolution[0] = width;
+                    resolution[1] = height;
+                } else if (FilterSpec.isPassOutput(channel)) {
+                    RenderBuffer buffer = mBuffers.get(graph.source(channel, iFrame));
+                    loadedPass.channels[i] = buffer.getTexId();
+                    resolution[0] = buffer.getWidth();
+                    resolution[1] = buffer.getHeight();
+                } else {
+                    int[] image = loadedPass.images[i];
+                    loadedPass.channels[i] = image[0];
+                    resolution[0] = image[1];
+                    resolution[1] = image[2];
+                }
+            }
+
+            int target = graph.target(p, iFrame);
+            RenderBuffer buffer = target == FilterGraph.OUTPUT ? output : mBuffers.get(target);
+            buffer.bind();
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            setupShaderInputs(loadedPass.program, width, height, loadedPass.channels,
+                    loadedPass.channelResolutions);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+    }
+
+    /**
+     * Makes sure there are at least count buffers of the given size.  They're kept from
+     * frame to frame, and shared by all filters.
+     */
+    private void prepareBuffers(int count, int width, int height) {
+        if (!mBuffers.isEmpty() && (mBuffers.get(0).getWidth() != width ||
+                mBuffers.get(0).getHeight() != height)) {
+            releaseBuffers();
+        }
+        while (mBuffers.size() < count) {
+            mBuffers.add(new RenderBuffer(width, height, BUF_ACTIVE_TEX_UNIT));
+            // Nothing in it yet, whoever drew last.
+            mDrawn = null;
+        }
+    }
+
+    private void releaseBuffers() {
+        for (RenderBuffer buffer : mBuffers) {
+            buffer.release();
+        }
+        mBuffers.clear();
+        mDrawn = null;
+    }
+
+    /**
+     * Deletes the programs and stops their loader.  The render thread's context must be
+     * current.
+     */
+    public void releasePrograms() {
+        releaseBuffers();
+        mCache.release();
+    }
+}
@@ -0,0 +1,198 @@
+package circam.app;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress test for lock-free reads: one thread stands in for drainEncoder() and adds packets
+ * to a small ring as fast as it can, while several Readers copy them out.  Every packet a
+ * Reader accepts must be byte-exact; packets it loses must be reported as overwritten.
+ * <p>
+ * One reader keeps up, one falls behind, and one always reads the oldest packet, which is
+ * the one most likely to be overwritten while it's being copied.
+ */
+public class CircularEncoderBufferConcurrencyTest {
+    private static final int PACKET_COUNT = 200000;
+    private static final int MAX_PACKET_SIZE = 3000;
+    private static final int GOP_SIZE = 30;
+
+    private static final int MODE_SEQUENTIAL = 0;
+    private static final int MODE_SLOW = 1;
+    private static final int MODE_TAIL = 2;
+
+    private static byte contentByte(long seq, int offset) {
+        return (byte) (seq * 31 + offset);
+    }
+
+    private static class Writer extends Thread {
+        private final CircularEncoderBuffer mBuffer;
+        volatile boolean mDone;
+
+        Writer(CircularEncoderBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(1);
+            ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+            for (int seq = 0; seq < PACKET_COUNT; seq++) {
+                int size = 1 + random.nextInt(MAX_PACKET_SIZE);
+                packet.clear();
+                for (int j = 0; j < size; j++) {
+                    packet.put(contentByte(seq, j));
+                }
+                packet.flip();
+                int flags = seq % GOP_SIZE == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                mBuffer.add(packet, flags, seq * 1000L);
+            }
+            mDone = true;
+        }
+    }
+
+    private static class ReaderThread extends Thread {
+        private final CircularEncoderBuffer mBuffer;
+        private final Writer mWriter;
+        private final int mMode;
+        final AtomicReference<String> mFailure = new AtomicReference<>();
+        int mReadCount;
+        int mOverwrittenCount;
+
+        ReaderThread(CircularEncoderBuffer buffer, Writer writer, int mode) {
+            mBuffer = buffer;
+            mWriter = writer;
+            mMode = mode;
+        }
+
+        @Override
+        public void run() {
+            CircularEncoderBuffer.Reader reader = mBuffer.new Reader();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer dst = ByteBuffer.allocate(MAX_PACKET_SIZE);
+            long seq = 0;
+            try {
+                while (seq < PACKET_COUNT) {
+                    if (mMode == MODE_TAIL) {
+                        if (mWriter.mDone) {
+                            break;
+                        }
+                        seq = mBuffer.getTailSeq();
+                    }
+                    dst.clear();
+                    int result = reader.read(seq, dst, info);
+                    if (result == CircularEncoderBuffer.READ_NOT_READY) {
+                        if (mWriter.mDone && seq >= mBuffer.getHeadSeq()) {
+                            mFailure.set("writer finished before seq " + seq);
+                            return;
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    if (result == CircularEncoderBuffer.READ_OVERWRITTEN) {
+                        mOverwrittenCount++;
+                        seq = Math.max(seq + 1, mBuffer.getTailSeq());
+                        continue;
+                    }
+
+                    if (info.presentationTimeUs != seq * 1000L || info.size != result) {
+                        mFailure.set("bad info for " + seq + ": pts=" +
+                                info.presentationTimeUs + " size=" + info.size);
+                        return;
+                    }
+                    if (((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) !=
+                            (seq % GOP_SIZE == 0)) {
+                        mFailure.set("bad flags for " + seq);
+                        return;
+                    }
+                    for (int j = 0; j < info.size; j++) {
+                        if (dst.get(info.offset + j) != contentByte(seq, j)) {
+                            mFailure.set("bad byte " + j + " of " + seq);
+                            return;
+                        }
+                    }
+                    mReadCount++;
+                    seq++;
+
+                    if (mMode == MODE_SLOW && seq % 100 == 0) {
+                        Thread.sleep(1);
+                    }
+                }
+            } catch (Throwable th) {
+                mFailure.set(th.toString());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void concurrentReadsAreExactOrReportedOverwritten() throws Exception {
+        // About 20 average packets fit, so readers get lapped regularly.
+        CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(ByteBuffer.allocateDirect(32 * 1024), 64);
+        Writer writer = new Writer(buffer);
+        ReaderThread[] readers = new ReaderThread[] {
+                new ReaderThread(buffer, writer, MODE_SEQUENTIAL),
+                new ReaderThread(buffer, writer, MODE_SLOW),
+                new ReaderThread(buffer, writer, MODE_TAIL),
+        };
+        for (ReaderThread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+
+        writer.join();
+        int totalRead = 0;
+        for (ReaderThread reader : readers) {
+            reader.join();
+            assertNull(reader.mFailure.get(), reader.mFailure.get());
+            totalRead += reader.mReadCount;
+        }
+        assertTrue(totalRead > 0);
+        assertTrue(readers[MODE_SLOW].mOverwrittenCount > 0);
+        assertFalse(buffer.hasReaders());
+    }
+
+    @Test
+    public void peekReportsMetaData() {
+        CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(ByteBuffer.allocateDirect(4096), 16);
+        CircularEncoderBuffer.Reader reader = buffer.new Reader();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(CircularEncoderBuffer.READ_NOT_READY, reader.peek(0, info));
+
+        for (int seq = 0; seq < 40; seq++) {
+            buffer.add(ByteBuffer.allocate(200), MediaCodec.BUFFER_FLAG_SYNC_FRAME, seq * 1000L);
+        }
+        long tail = buffer.getTailSeq();
+        assertTrue(tail > 0);
+        assertEquals(40, buffer.getHeadSeq());
+        assertEquals(CircularEncoderBuffer.READ_OVERWRITTEN, reader.peek(tail - 1, info));
+        assertEquals(200, reader.peek(tail, info));
+        assertEquals(tail * 1000L, info.presentationTimeUs);
+
+        // Can't resize with a Reader open.  Sequence numbers survive a resize.
+        assertFalse(buffer.resize(8192, 32));
+        reader.close();
+        assertTrue(buffer.resize(8192, 32));
+        assertEquals(tail * 1000L, ptsAfterResize(buffer, tail));
+    }
+
+    private static long ptsAfterResize(CircularEncoderBuffer buffer, long seq) {
+        CircularEncoderBuffer.Reader reader = buffer.new Reader();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            assertEquals(200, reader.peek(seq, info));
+            return info.presentationTimeUs;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package circam.app;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives CircularEncoderBuffer with a synthetic packet stream: 30fps, a sync frame every
+ * 30 packets, large sync frames and small delta frames.
+ */
+public class CircularEncoderBufferTest {
+    private static final long FRAME_USEC = 33333;
+    private static final int GOP_SIZE = 30;
+    private static final int SYNC_SIZE = 6000;
+    private static final int DELTA_SIZE = 700;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private CircularEncoderBuffer mBuffer;
+    private MediaCodec.BufferInfo mInfo;
+    private int mFrameNum;
+
+    @Before
+    public void setUp() {
+        // 64KB holds a little under 2.5 GOPs of this stream.
+        mBuffer = new CircularEncoderBuffer(ByteBuffer.allocateDirect(64 * 1024), 256);
+        mInfo = new MediaCodec.BufferInfo();
+        mFrameNum = 0;
+    }
+
+    /** Adds count frames; the contents of each are derived from its frame number. */
+    private void addFrames(int count) {
+        for (int i = 0; i < count; i++, mFrameNum++) {
+            boolean sync = mFrameNum % GOP_SIZE == 0;
+            int size = (sync ? SYNC_SIZE : DELTA_SIZE) + mFrameNum % 17;
+            ByteBuffer packet = ByteBuffer.allocate(size + 3);
+            packet.position(3);
+            for (int j = 0; j < size; j++) {
+                packet.put(contentByte(mFrameNum, j));
+            }
+            packet.position(3);
+            mBuffer.add(packet, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    mFrameNum * FRAME_USEC);
+        }
+    }
+
+    private static byte contentByte(int frameNum, int offset) {
+        return (byte) (frameNum * 31 + offset);
+    }
+
+    private long ptsOf(int index) {
+        mBuffer.getChunk(index, mInfo);
+        return mInfo.presentationTimeUs;
+    }
+
+    @Test
+    public void emptyBuffer() {
+        assertEquals(-1, mBuffer.getFirstIndex());
+        assertEquals(-1, mBuffer.findSyncAtOrBefore(Long.MAX_VALUE));
+        assertNull(mBuffer.indexRange(0, Long.MAX_VALUE));
+        assertEquals(0, mBuffer.computeTimeSpanUsec());
+    }
+
+    @Test
+    public void firstIndexFollowsEviction() {
+        addFrames(GOP_SIZE - 5);
+        assertEquals(0, ptsOf(mBuffer.getFirstIndex()));
+
+        // Enough to evict the first sync frame.
+        addFrames(GOP_SIZE * 3);
+        long firstPts = ptsOf(mBuffer.getFirstIndex());
+        assertTrue(firstPts > 0);
+        assertEquals(0, firstPts % (GOP_SIZE * FRAME_USEC));
+        assertTrue(mBuffer.computeTimeSpanUsec() >= 114 * FRAME_USEC - firstPts);
+    }
+
+    @Test
+    public void evictionKeepsTailOnSyncFrame() {
+        for (int round = 0; round < 10; round++) {
+            addFrames(GOP_SIZE / 2 + round * 3);
+
+            // Everything still held is reachable from the first sync frame.
+            int held = (int) (mBuffer.getHeadSeq() - mBuffer.getTailSeq());
+            assertEquals(held, mBuffer.countPackets(mBuffer.getFirstIndex(),
+                    mBuffer.getLastIndex()));
+            assertEquals(0, ptsOf(mBuffer.getFirstIndex()) % (GOP_SIZE * FRAME_USEC));
+            assertEquals(mFrameNum - held, mBuffer.getEvictedPackets());
+            assertEquals((mFrameNum - held) / GOP_SIZE, mBuffer.getEvictedGops());
+        }
+        assertTrue(mBuffer.getEvictedBytes() > (long) mBuffer.getEvictedGops() * SYNC_SIZE);
+        checkContents();
+    }
+
+    @Test
+    public void perPacketEviction() {
+        mBuffer.setEvictWholeGops(false);
+        addFrames(GOP_SIZE * 5 + 7);
+
+        // The tail is somewhere mid-GOP; the first index skips ahead to a sync frame.
+        long held = mBuffer.getHeadSeq() - mBuffer.getTailSeq();
+        assertTrue(held > mBuffer.countPackets(mBuffer.getFirstIndex(),
+                mBuffer.getLastIndex()));
+        assertEquals(mFrameNum - held, mBuffer.getEvictedPackets());
+        checkContents();
+    }
+
+    @Test
+    public void longTailKeepsEvictedSyncFrames() {
+        // Room for 5 sync frames.
+        mBuffer.enableLongTail(32 * 1024, 16);
+        CircularEncoderBuffer longTail = mBuffer.getLongTail();
+        addFrames(GOP_SIZE * 10 + 7);
+
+        // The long tail ends one GOP before the main buffer starts, and every frame in it
+        // is an evicted sync frame.
+        long firstPts = ptsOf(mBuffer.getFirstIndex());
+        long gopUsec = GOP_SIZE * FRAME_USEC;
+        int index = longTail.getFirstIndex();
+        long expectPts = firstPts - 5 * gopUsec;
+        int count = 0;
+        while (index >= 0) {
+            ByteBuffer chunk = longTail.getChunk(index, mInfo);
+            assertEquals(expectPts, mInfo.presentationTimeUs);
+            assertEquals(SYNC_SIZE + (int) (expectPts / FRAME_USEC) % 17, mInfo.size);
+            assertTrue((mInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            for (int j = 0; j < mInfo.size; j++) {
+                assertEquals(contentByte((int) (expectPts / FRAME_USEC), j),
+                        chunk.get(mInfo.offset + j));
+            }
+            expectPts += gopUsec;
+            count++;
+            index = longTail.getNextIndex(index);
+        }
+        assertEquals(5, count);
+        assertEquals(firstPts, expectPts);
+        checkContents();
+
+        // Shrinking the main buffer retires the GOPs it drops.
+        mBuffer.resize(32 * 1024, 64);
+        firstPts = ptsOf(mBuffer.getFirstIndex());
+        longTail.getChunk(longTail.getLastIndex(), mInfo);
+        assertEquals(firstPts - gopUsec, mInfo.presentationTimeUs);
+    }
+
+    @Test
+    public void findSyncAtOrBefore() {
+        addFrames(GOP_SIZE * 10 + 7);
+        int firstIndex = mBuffer.getFirstIndex();
+        long oldestSyncPts = ptsOf(firstIndex);
+        long gopUsec = GOP_SIZE * FRAME_USEC;
+
+        assertEquals(-1, mBuffer.findSyncAtOrBefore(oldestSyncPts - 1));
+        assertEquals(firstIndex, mBuffer.findSyncAtOrBefore(oldestSyncPts));
+        assertEquals(oldestSyncPts, ptsOf(mBuffer.findSyncAtOrBefore(oldestSyncPts + 1)));
+        assertEquals(oldestSyncPts + gopUsec,
+                ptsOf(mBuffer.findSyncAtOrBefore(oldestSyncPts + gopUsec + FRAME_USEC * 3)));
+        assertEquals(GOP_SIZE * 10 * FRAME_USEC,
+                ptsOf(mBuffer.findSyncAtOrBefore(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void indexRange() {
+        addFrames(GOP_SIZE * 10 + 7);
+        long newestSyncPts = GOP_SIZE * 10 * FRAME_USEC;
+
+        // Starts at the sync frame before fromUs, ends at the last packet <= toUs.
+        int[] range = mBuffer.indexRange(newestSyncPts + 2 * FRAME_USEC,
+                newestSyncPts + 5 * FRAME_USEC + 1);
+        assertNotNull(range);
+        assertEquals(newestSyncPts, ptsOf(range[0]));
+        assertEquals(newestSyncPts + 5 * FRAME_USEC, ptsOf(range[1]));
+
+        // Window reaching past both ends of the buffer covers everything.
+        range = mBuffer.indexRange(0, Long.MAX_VALUE);
+        assertEquals(mBuffer.getFirstIndex(), range[0]);
+        assertEquals((GOP_SIZE * 10 + 6) * FRAME_USEC, ptsOf(range[1]));
+        assertEquals(-1, mBuffer.getNextIndex(range[1]));
+
+        // Window that ends before the oldest sync frame.
+        long oldestSyncPts = ptsOf(mBuffer.getFirstIndex());
+        assertNull(mBuffer.indexRange(0, oldestSyncPts - 1));
+    }
+
+    @Test
+    public void wrappedPacketsReadBack() {
+        ByteBuffer[] views = new ByteBuffer[2];
+        boolean sawSplit = false;
+
+        for (int round = 0; round < 20; round++) {
+            addFrames(GOP_SIZE / 2 + round);
+
+            int index = mBuffer.getFirstIndex();
+            while (index >= 0) {
+                ByteBuffer chunk = mBuffer.getChunk(index, mInfo);
+                int frameNum = (int) (mInfo.presentationTimeUs / FRAME_USEC);
+                for (int j = 0; j < mInfo.size; j++) {
+                    assertEquals(contentByte(frameNum, j), chunk.get(mInfo.offset + j));
+                }
+
+                int count = mBuffer.getChunkViews(index, views);
+                sawSplit |= count == 2;
+                int j = 0;
+                for (int i = 0; i < count; i++) {
+                    while (views[i].hasRemaining()) {
+                        assertEquals(contentByte(frameNum, j++), views[i].get());
+                    }
+                }
+                assertEquals(mInfo.size, j);
+
+                index = mBuffer.getNextIndex(index);
+            }
+        }
+        assertTrue(sawSplit);
+    }
+
+    /** Checks that everything from the first sync frame on reads back intact. */
+    private void checkContents() {
+        int index = mBuffer.getFirstIndex();
+        int lastFrameNum = -1;
+        while (index >= 0) {
+            ByteBuffer chunk = mBuffer.getChunk(index, mInfo);
+            int frameNum = (int) (mInfo.presentationTimeUs / FRAME_USEC);
+            if (lastFrameNum >= 0) {
+                assertEquals(lastFrameNum + 1, frameNum);
+            }
+            for (int j = 0; j < mInfo.size; j++) {
+                assertEquals(contentByte(frameNum, j), chunk.get(mInfo.offset + j));
+            }
+            lastFrameNum = frameNum;
+            index = mBuffer.getNextIndex(index);
+        }
+        assertEquals(mFrameNum - 1, lastFrameNum);
+    }
+
+    @Test
+    public void fileBackedBufferWraps() throws Exception {
+        File file = mFolder.newFile("buffer.bin");
+        // 256Kbps for 2 sec: the same 64KB ring as the others, in the file.
+        mBuffer = new CircularEncoderBuffer(256 * 1024, 64, 2, file);
+        assertEquals(64 * 1024, mBuffer.getDataCapacity());
+        assertEquals(64 * 1024, file.length());
+        assertFalse(mBuffer.isResizable());
+
+        addFrames(GOP_SIZE * 6 + 7);
+        assertTrue(mBuffer.getEvictedGops() > 0);
+        checkContents();
+
+        // The packets really are in the file.
+        int first = mBuffer.getFirstIndex();
+        ByteBuffer chunk = mBuffer.getChunk(first, mInfo);
+        byte[] fromFile = new byte[16];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(mInfo.offset);
+            raf.readFully(fromFile);
+        } finally {
+            raf.close();
+        }
+        int frameNum = (int) (mInfo.presentationTimeUs / FRAME_USEC);
+        for (int j = 0; j < fromFile.length; j++) {
+            assertEquals(contentByte(frameNum, j), fromFile[j]);
+            assertEquals(fromFile[j], chunk.get(mInfo.offset + j));
+        }
+
+        // And read back by sequence number, wrapped or not.
+        CircularEncoderBuffer.Reader reader = mBuffer.new Reader();
+        ByteBuffer dst = ByteBuffer.allocate(SYNC_SIZE + 17);
+        try {
+            for (long seq = mBuffer.getTailSeq(); seq < mBuffer.getHeadSeq(); seq++) {
+                dst.clear();
+                int size = reader.read(seq, dst, mInfo);
+                assertTrue(size > 0);
+                frameNum = (int) (mInfo.presentationTimeUs / FRAME_USEC);
+                for (int j = 0; j < size; j++) {
+                    assertEquals(contentByte(frameNum, j), dst.get(j));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void resizeGrowKeepsEverything() {
+        addFrames(GOP_SIZE * 4 + 3);
+        long firstPts = ptsOf(mBuffer.getFirstIndex());
+
+        mBuffer.resize(256 * 1024, 1024);
+        assertEquals(256 * 1024, mBuffer.getDataCapacity());
+        assertEquals(firstPts, ptsOf(mBuffer.getFirstIndex()));
+        assertEquals((mFrameNum - 1) * FRAME_USEC - firstPts, mBuffer.computeTimeSpanUsec());
+        checkContents();
+
+        // Keeps working after the move.
+        addFrames(GOP_SIZE * 10);
+        checkContents();
+    }
+
+    @Test
+    public void resizeShrinkKeepsNewestGops() {
+        addFrames(GOP_SIZE * 4 + 3);
+
+        // Room for a bit over one GOP.
+        mBuffer.resize(32 * 1024, 64);
+        assertEquals(32 * 1024, mBuffer.getDataCapacity());
+        assertEquals(GOP_SIZE * 4 * FRAME_USEC, ptsOf(mBuffer.getFirstIndex()));
+        checkContents();
+
+        addFrames(GOP_SIZE * 3);
+        checkContents();
+    }
+
+    @Test
+    public void resizeBuiltElsewhereCatchesUp() throws Exception {
+        addFrames(GOP_SIZE * 4 + 3);
+        long firstPts = ptsOf(mBuffer.getFirstIndex());
+        final CircularEncoderBuffer.Resize resize = mBuffer.prepareResize(256 * 1024, 1024);
+        Thread builder = new Thread() {
+            @Override
+            public void run() {
+                resize.build();
+            }
+        };
+        builder.start();
+        builder.join();
+        assertTrue(resize.isBuilt());
+
+        // What's added after the build is copied in when it's swapped in.
+        addFrames(5);
+        assertTrue(mBuffer.finishResize(resize));
+        assertEquals(256 * 1024, mBuffer.getDataCapacity());
+        assertEquals(firstPts, ptsOf(mBuffer.getFirstIndex()));
+        checkContents();
+
+        addFrames(GOP_SIZE * 10);
+        checkContents();
+    }
+
+    @Test
+    public void resizeGivesUpIfKeptPacketsAreEvicted() {
+        addFrames(GOP_SIZE * 4 + 3);
+        CircularEncoderBuffer.Resize resize = mBuffer.prepareResize(256 * 1024, 1024);
+        assertTrue(resize.build());
+
+        // The old ring evicts a GOP the new storage still has.
+        addFrames(GOP_SIZE);
+        assertFalse(mBuffer.finishResize(resize));
+        assertEquals(64 * 1024, mBuffer.getDataCapacity());
+        checkContents();
+    }
+
+    @Test
+    public void resizeNeverDropsNewestGop() {
+        addFrames(GOP_SIZE * 2 + GOP_SIZE - 1);
+
+        // Far too small for a full GOP, so it should grow to fit one.
+        mBuffer.resize(1024, 4);
+        assertTrue(mBuffer.getDataCapacity() >= SYNC_SIZE + (GOP_SIZE - 1) * DELTA_SIZE);
+        assertEquals(GOP_SIZE * 2 * FRAME_USEC, ptsOf(mBuffer.getFirstIndex()));
+        checkContents();
+    }
+
+    /** Adds count frames on another thread. */
+    private Thread startAdding(final int count) {
+        Thread adder = new Thread() {
+            @Override
+            public void run() {
+                addFrames(count);
+            }
+        };
+        adder.start();
+        return adder;
+    }
+
+    @Test
+    public void evictionRevokesPin() throws Exception {
+        addFrames(GOP_SIZE + 5);
+        long first = mBuffer.getSeq(mBuffer.getFirstIndex());
+        int pin = mBuffer.pin(first);
+        assertTrue(pin >= 0);
+
+        // Another GOP or two has to evict the pinned sync frame, and doesn't wait to.
+        Thread adder = startAdding(GOP_SIZE * 2);
+        adder.join(2000);
+        assertFalse(adder.isAlive());
+
+        assertTrue(mBuffer.isPinRevoked(pin));
+        assertFalse(mBuffer.movePin(pin, mBuffer.getHeadSeq() - 1));
+        assertFalse(mBuffer.unpin(pin));
+        assertFalse(mBuffer.isPinned());
+        assertEquals(1, mBuffer.getRevokedPinCount());
+        // Too late to pin it now.
+        assertEquals(-1, mBuffer.pin(first));
+        checkContents();
+    }
+
+    @Test
+    public void movedPinHolds() {
+        addFrames(GOP_SIZE * 2);
+        long first = mBuffer.getSeq(mBuffer.getFirstIndex());
+        int pin = mBuffer.pin(first);
+
+        // Done with the first GOP, so only the second matters when it's evicted.
+        assertTrue(mBuffer.movePin(pin, first + GOP_SIZE));
+        addFrames(GOP_SIZE / 2);
+        assertEquals(first + GOP_SIZE, mBuffer.getTailSeq());
+        assertFalse(mBuffer.isPinRevoked(pin));
+
+        // The pinned GOP reads back in place.
+        int last = mBuffer.getIndex(first + GOP_SIZE * 2 - 1);
+        int count = 0;
+        for (int index = mBuffer.getIndex(first + GOP_SIZE); index >= 0;
+                index = mBuffer.getNextIndex(index, last)) {
+            assertEquals((GOP_SIZE + count) * FRAME_USEC, ptsOf(index));
+            count++;
+        }
+        assertEquals(GOP_SIZE, count);
+        assertTrue(mBuffer.unpin(pin));
+        assertEquals(0, mBuffer.getRevokedPinCount());
+    }
+
+    @Test
+    public void queuedSavesNeverBlockAdd() throws Exception {
+        // As CircularEncoder has it: more saves than writer threads, each pinning its range
+        // when it starts, and none getting anywhere, plus a post-roll following the encoder
+        // on a thread of its own.
+        addFrames(GOP_SIZE + 5);
+        int[] range = mBuffer.indexRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        final long firstSeq = mBuffer.getSeq(range[0]);
+        final long followFromSeq = mBuffer.getHeadSeq();
+        final CountDownLatch pinned = new CountDownLatch(2);
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final AtomicInteger overtaken = new AtomicInteger();
+        final AtomicInteger tooLate = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 3; i++) {
+            writers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int pin = mBuffer.pin(firstSeq);
+                    if (pin < 0) {
+                        tooLate.incrementAndGet();
+                        return;
+                    }
+                    pinned.countDown();
+                    try {
+                        stalled.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (!mBuffer.unpin(pin)) {
+                        overtaken.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        final AtomicBoolean stopFollowing = new AtomicBoolean();
+        final AtomicInteger followed = new AtomicInteger();
+        Thread follower = new Thread() {
+            @Override
+            public void run() {
+                CircularEncoderBuffer.Reader reader = mBuffer.new Reader();
+                ByteBuffer packet = ByteBuffer.allocateDirect(SYNC_SIZE + 17);
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                long seq = followFromSeq;
+                while (true) {
+                    boolean stopping = stopFollowing.get();
+                    packet.clear();
+                    int size = reader.read(seq, packet, info);
+                    if (size == CircularEncoderBuffer.READ_NOT_READY) {
+                        if (stopping) {
+                            break;
+                        }
+                        Thread.yield();
+                    } else if (size == CircularEncoderBuffer.READ_OVERWRITTEN) {
+                        seq = mBuffer.getTailSeq();
+                    } else {
+                        followed.incrementAndGet();
+                        seq++;
+                    }
+                }
+                reader.close();
+            }
+        };
+        follower.start();
+
+        assertTrue(pinned.await(5, TimeUnit.SECONDS));
+        Thread adder = startAdding(GOP_SIZE * 10);
+        adder.join(5000);
+        assertFalse(adder.isAlive());
+        stopFollowing.set(true);
+        follower.join(5000);
+        assertFalse(follower.isAlive());
+        assertTrue(followed.get() > 0);
+
+        // The two that got going were overtaken; the third started too late to pin anything.
+        stalled.countDown();
+        writers.shutdown();
+        assertTrue(writers.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, overtaken.get());
+        assertEquals(1, tooLate.get());
+        assertEquals(2, mBuffer.getRevokedPinCount());
+        assertFalse(mBuffer.isPinned());
+        checkContents();
+    }
+}
@@ -0,0 +1,109 @@
+package circam.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import circam.app.filter.FilterRegistry;
+import circam.app.filter.FilterSpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the registry against the shaders in res/raw.
+ */
+public class FilterRegistryTest {
+    // Not filters of their own: the vertex shader, and the camera pass.
+    private static final Set<String> NOT_FILTERS = new HashSet<>();
+    static {
+        NOT_FILTERS.add("vertext");
+        NOT_FILTERS.add("original_rtt");
+    }
+
+    private static File rawDir() {
+        // Gradle runs tests in the module directory.
+        File dir = new File("src/main/res/raw");
+        return dir.isDirectory() ? dir : new File("app/src/main/res/raw");
+    }
+
+    private static Map<Integer, String> rawNames() throws IllegalAccessException {
+        Map<Integer, String> names = new HashMap<>();
+        for (Field field : R.raw.class.getFields()) {
+            names.put(field.getInt(null), field.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void everyShaderIsRegisteredOnce() throws Exception {
+        Map<Integer, String> rawNames = rawNames();
+        Set<String> registered = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < FilterRegistry.size(); i++) {
+            FilterSpec spec = FilterRegistry.get(i);
+            assertTrue(spec.name, names.add(spec.name));
+            for (int p = 0; p < spec.getPassCount(); p++) {
+                String shader = rawNames.get(spec.getPass(p).fragmentRawId);
+                assertTrue(spec.name, registered.add(shader));
+            }
+        }
+
+        File[] files = rawDir().listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".fsh")) {
+                name = name.substring(0, name.length() - 4);
+                assertEquals(name, !NOT_FILTERS.contains(name), registered.contains(name));
+            }
+        }
+    }
+
+    @Test
+    public void channelsMatchTheShaders() throws Exception {
+        Map<Integer, String> rawNames = rawNames();
+        for (int i = 0; i < FilterRegistry.size(); i++) {
+            FilterSpec spec = FilterRegistry.get(i);
+            boolean camera = false;
+            for (int p = 0; p < spec.getPassCount(); p++) {
+                FilterSpec.Pass pass = spec.getPass(p);
+                String source = read(rawNames.get(pass.fragmentRawId) + ".fsh");
+                int declared = 0;
+                while (source.contains("iChannel" + declared + ";")) {
+                    declared++;
+                }
+                assertEquals(spec.name, declared, pass.getChannelCount());
+
+                for (int c = 0; c < pass.getChannelCount(); c++) {
+                    int channel = pass.getChannel(c);
+                    if (channel == FilterSpec.CAMERA) {
+                        camera = true;
+                    } else if (channel > 0) {
+                        assertTrue(spec.name, rawNames.get(channel).startsWith("tex"));
+                    }
+                }
+            }
+            assertTrue(spec.name, camera);
+        }
+    }
+
+    @Test
+    public void indicesWrapAround() {
+        int size = FilterRegistry.size();
+        assertSame(FilterRegistry.get(0), FilterRegistry.get(size));
+        assertSame(FilterRegistry.get(size - 1), FilterRegistry.get(-1));
+    }
+
+    private static String read(String name) throws IOException {
+        return new String(Files.readAllBytes(new File(rawDir(), name).toPath()),
+                StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+package circam.app;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FpsRangesTest {
+    private static List<int[]> ranges(int[]... ranges) {
+        return Arrays.asList(ranges);
+    }
+
+    @Test
+    public void highestFixedRangeWithinLimit() {
+        List<int[]> supported = ranges(new int[] { 15000, 15000 }, new int[] { 7000, 30000 },
+                new int[] { 30000, 30000 }, new int[] { 60000, 60000 }, new int[] { 120000, 120000 });
+        assertArrayEquals(new int[] { 60000, 60000 }, FpsRanges.chooseRange(supported, 60000));
+        assertArrayEquals(new int[] { 30000, 30000 }, FpsRanges.chooseRange(supported, 59000));
+    }
+
+    @Test
+    public void fixedBeatsVariable() {
+        List<int[]> supported = ranges(new int[] { 30000, 60000 }, new int[] { 24000, 24000 });
+        int[] range = FpsRanges.chooseRange(supported, 60000);
+        assertArrayEquals(new int[] { 24000, 24000 }, range);
+        assertEquals(24000, FpsRanges.expectedThousandFps(range, 60000));
+    }
+
+    @Test
+    public void variableWithHighestFloor() {
+        List<int[]> supported = ranges(new int[] { 7000, 30000 }, new int[] { 15000, 30000 },
+                new int[] { 15000, 24000 }, new int[] { 30000, 120000 });
+        int[] range = FpsRanges.chooseRange(supported, 60000);
+        assertArrayEquals(new int[] { 30000, 120000 }, range);
+        assertEquals(60000, FpsRanges.expectedThousandFps(range, 60000));
+
+        range = FpsRanges.chooseRange(supported, 29000);
+        assertArrayEquals(new int[] { 15000, 30000 }, range);
+        assertEquals(29000, FpsRanges.expectedThousandFps(range, 29000));
+    }
+
+    @Test
+    public void slowestWhenAllTooFast() {
+        List<int[]> supported = ranges(new int[] { 60000, 60000 }, new int[] { 30000, 30000 });
+        int[] range = FpsRanges.chooseRange(supported, 15000);
+        assertArrayEquals(new int[] { 30000, 30000 }, range);
+        assertEquals(30000, FpsRanges.expectedThousandFps(range, 15000));
+    }
+}
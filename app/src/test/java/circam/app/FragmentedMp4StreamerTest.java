@@ -0,0 +1,285 @@
+package circam.app;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static circam.app.Mp4TestStreams.FRAME_USEC;
+import static circam.app.Mp4TestStreams.GOP_SIZE;
+import static circam.app.Mp4TestStreams.HEIGHT;
+import static circam.app.Mp4TestStreams.PPS;
+import static circam.app.Mp4TestStreams.SPS;
+import static circam.app.Mp4TestStreams.WIDTH;
+import static circam.app.Mp4TestStreams.bytes;
+import static circam.app.Mp4TestStreams.findBox;
+import static circam.app.Mp4TestStreams.fourCC;
+import static circam.app.Mp4TestStreams.nalUnits;
+import static circam.app.Mp4TestStreams.typeAt;
+import static org.junit.Assert.*;
+
+/**
+ * Streams a synthetic H.264 stream to a viewer over a loopback socket, and parses what
+ * arrives.
+ */
+public class FragmentedMp4StreamerTest {
+    private CircularEncoderBuffer mBuffer;
+    private FragmentedMp4Streamer mStreamer;
+    private ServerSocketChannel mServer;
+    private int mFrameNum;
+    private long mGopStartSeq;
+
+    @Before
+    public void setUp() throws Exception {
+        // Each GOP is ~23KB, so this holds under three.
+        mBuffer = new CircularEncoderBuffer(ByteBuffer.allocateDirect(64 * 1024), 256);
+        mStreamer = new FragmentedMp4Streamer(mBuffer, WIDTH, HEIGHT, ByteBuffer.wrap(SPS),
+                ByteBuffer.wrap(PPS));
+        mStreamer.start();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mFrameNum = 0;
+        mGopStartSeq = -1;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStreamer.stop();
+        mServer.close();
+    }
+
+    /** Adds count frames, telling the streamer about each GOP as it completes. */
+    private void addFrames(int count) {
+        for (int i = 0; i < count; i++, mFrameNum++) {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            for (byte[] nal : nalUnits(mFrameNum)) {
+                packet.write(0);
+                packet.write(0);
+                packet.write(0);
+                packet.write(1);
+                packet.write(nal, 0, nal.length);
+            }
+            boolean sync = mFrameNum % GOP_SIZE == 0;
+            mBuffer.add(ByteBuffer.wrap(packet.toByteArray()),
+                    sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mFrameNum * FRAME_USEC);
+            if (sync) {
+                long seq = mBuffer.getHeadSeq() - 1;
+                if (mGopStartSeq >= 0) {
+                    mStreamer.onGop(mGopStartSeq, seq);
+                }
+                mGopStartSeq = seq;
+            }
+        }
+    }
+
+    /** Connects a viewer, and checks the init segment. */
+    private DataInputStream connect(int receiveBufferSize) throws Exception {
+        Socket client = new Socket();
+        if (receiveBufferSize > 0) {
+            client.setReceiveBufferSize(receiveBufferSize);
+        }
+        client.setSoTimeout(10000);
+        client.connect(mServer.socket().getLocalSocketAddress());
+        SocketChannel channel = mServer.accept();
+        if (receiveBufferSize > 0) {
+            channel.socket().setSendBufferSize(receiveBufferSize);
+        }
+        mStreamer.addViewer(channel);
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        checkInitSegment(in);
+        return in;
+    }
+
+    /** Connects to the streamer's HTTP port and sends a request line, and headers. */
+    private static DataInputStream request(int port, String requestLine) throws Exception {
+        Socket client = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        client.setSoTimeout(10000);
+        OutputStream out = client.getOutputStream();
+        out.write((requestLine + "\r\nHost: 127.0.0.1\r\n\r\n").getBytes());
+        out.flush();
+        return new DataInputStream(client.getInputStream());
+    }
+
+    /** Reads an HTTP response header, and returns its status line. */
+    private static String readStatus(DataInputStream in) throws Exception {
+        StringBuilder header = new StringBuilder();
+        while (!header.toString().endsWith("\r\n\r\n")) {
+            header.append((char) in.readUnsignedByte());
+        }
+        return header.substring(0, header.indexOf("\r\n"));
+    }
+
+    private static void checkInitSegment(DataInputStream in) throws Exception {
+        ByteBuffer ftyp = readBox(in, "ftyp");
+        assertEquals("iso5", fourCC(ftyp, 8));
+        ByteBuffer moov = readBox(in, "moov");
+        int trex = findBox(moov, findBox(moov, 0, "mvex"), "trex");
+        assertEquals(1, moov.getInt(trex + 12));
+        int trak = findBox(moov, 0, "trak");
+        int stbl = findBox(moov, findBox(moov, findBox(moov, trak, "mdia"), "minf"), "stbl");
+        int avc1 = findBox(moov, stbl, "stsd") + 16;
+        assertEquals("avc1", typeAt(moov, avc1));
+        assertEquals(WIDTH, moov.getShort(avc1 + 32));
+        assertArrayEquals(SPS, bytes(moov, avc1 + 86 + 16, SPS.length));
+        assertEquals(0, moov.getInt(findBox(moov, stbl, "stsz") + 16));
+    }
+
+    @Test
+    public void httpViewerNeedsTheToken() throws Exception {
+        String token = FragmentedMp4Streamer.newToken();
+        int port = mStreamer.listen(0, token);
+        addFrames(GOP_SIZE * 2 + 1);
+
+        DataInputStream in = request(port, "GET /" + token + " HTTP/1.1");
+        assertEquals("HTTP/1.0 200 OK", readStatus(in));
+        checkInitSegment(in);
+        int firstFrame = readFragment(in, 1, 0).get(0);
+        assertEquals(0, firstFrame % GOP_SIZE);
+
+        String[] refused = {
+                "GET / HTTP/1.1",
+                "GET /" + FragmentedMp4Streamer.newToken() + " HTTP/1.1",
+                "GET /" + token + "x HTTP/1.1",
+                "POST /" + token + " HTTP/1.1",
+                "GET /" + token,
+        };
+        for (String requestLine : refused) {
+            in = request(port, requestLine);
+            assertEquals(requestLine, "HTTP/1.0 404 Not Found", readStatus(in));
+            assertEquals(requestLine, -1, in.read());
+        }
+    }
+
+    @Test
+    public void tokensAreFresh() {
+        String token = FragmentedMp4Streamer.newToken();
+        assertTrue(token, token.matches("[0-9a-f]{32}"));
+        assertNotEquals(token, FragmentedMp4Streamer.newToken());
+    }
+
+    @Test
+    public void catchUpThenLive() throws Exception {
+        addFrames(GOP_SIZE * 8 + 1);
+        // The buffer starts on a sync frame, and the catch-up starts there.
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mBuffer.getChunkInfo(mBuffer.getFirstIndex(), info);
+        int firstFrame = (int) (info.presentationTimeUs / FRAME_USEC);
+        assertEquals(0, firstFrame % GOP_SIZE);
+        assertTrue(firstFrame > 0);
+
+        DataInputStream in = connect(0);
+        int sequence = 1;
+        for (int gop = firstFrame; gop < GOP_SIZE * 8; gop += GOP_SIZE) {
+            assertEquals(consecutive(gop, GOP_SIZE), readFragment(in, sequence++, firstFrame));
+        }
+
+        // Then each new GOP as it completes.
+        addFrames(GOP_SIZE * 2);
+        for (int gop = GOP_SIZE * 8; gop < GOP_SIZE * 10; gop += GOP_SIZE) {
+            assertEquals(consecutive(gop, GOP_SIZE), readFragment(in, sequence++, firstFrame));
+        }
+        assertEquals(0, mStreamer.getGopsSkipped());
+    }
+
+    @Test
+    public void slowViewerSkipsAhead() throws Exception {
+        DataInputStream in = connect(4096);
+        addFrames(GOP_SIZE + 1);
+        assertEquals(consecutive(0, GOP_SIZE), readFragment(in, 1, 0));
+
+        // Stop reading while lots more goes by.  Adding mustn't wait for the viewer.
+        addFrames(GOP_SIZE * 40);
+        int lastGop = GOP_SIZE * 40;
+
+        // Whatever arrives is whole GOPs, in order, ending with the latest one.
+        int sequence = 2;
+        int prevGop = 0;
+        while (prevGop != lastGop) {
+            List<Integer> frames = readFragment(in, sequence++, 0);
+            int gop = frames.get(0);
+            assertTrue(gop > prevGop);
+            assertEquals(consecutive(gop, GOP_SIZE), frames);
+            prevGop = gop;
+        }
+        assertTrue(sequence - 1 < 41);
+        assertTrue(mStreamer.getGopsSkipped() > 0);
+        assertEquals(41, sequence - 1 + mStreamer.getGopsSkipped());
+    }
+
+    private static List<Integer> consecutive(int first, int count) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(first + i);
+        }
+        return list;
+    }
+
+    /**
+     * Reads a moof and mdat, checks them against the frames they should hold, and returns
+     * those frames' numbers.
+     *
+     * @param baseFrame The frame at time zero on the viewer's timeline.
+     */
+    private static List<Integer> readFragment(DataInputStream in, int sequence, int baseFrame)
+            throws Exception {
+        ByteBuffer moof = readBox(in, "moof");
+        assertEquals(sequence, moof.getInt(findBox(moof, 0, "mfhd") + 12));
+        int traf = findBox(moof, 0, "traf");
+        int tfhd = findBox(moof, traf, "tfhd");
+        assertEquals(0x020000, moof.getInt(tfhd + 8));
+        assertEquals(1, moof.getInt(tfhd + 12));
+        int tfdt = findBox(moof, traf, "tfdt");
+        assertEquals(1, moof.get(tfdt + 8));
+        long ticks = moof.getLong(tfdt + 12);
+        int trun = findBox(moof, traf, "trun");
+        assertEquals(0x000701, moof.getInt(trun + 8));
+        int count = moof.getInt(trun + 12);
+        assertEquals(moof.capacity() + 8, moof.getInt(trun + 16));
+
+        ByteBuffer mdat = readBox(in, "mdat");
+        List<Integer> frames = new ArrayList<>();
+        int offset = 8;
+        for (int i = 0; i < count; i++) {
+            int duration = moof.getInt(trun + 20 + i * 12);
+            int size = moof.getInt(trun + 24 + i * 12);
+            int flags = moof.getInt(trun + 28 + i * 12);
+            int frame = baseFrame + (int) Math.round(ticks / (FRAME_USEC * 0.09));
+            frames.add(frame);
+            assertEquals(frame % GOP_SIZE == 0 ? 0x02000000 : 0x01010000, flags);
+
+            int end = offset + size;
+            for (byte[] nal : nalUnits(frame)) {
+                assertEquals(nal.length, mdat.getInt(offset));
+                assertArrayEquals(nal, bytes(mdat, offset + 4, nal.length));
+                offset += 4 + nal.length;
+            }
+            assertEquals(end, offset);
+            assertEquals(FRAME_USEC * 0.09, duration, 1.0);
+            ticks += duration;
+        }
+        assertEquals(mdat.capacity(), offset);
+        return frames;
+    }
+
+    private static ByteBuffer readBox(DataInputStream in, String type) throws Exception {
+        int size = in.readInt();
+        byte[] box = new byte[size];
+        ByteBuffer.wrap(box).putInt(size);
+        in.readFully(box, 4, size - 4);
+        ByteBuffer buf = ByteBuffer.wrap(box);
+        assertEquals(type, typeAt(buf, 0));
+        return buf;
+    }}
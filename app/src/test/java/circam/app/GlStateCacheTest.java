@@ -0,0 +1,242 @@
+package circam.app;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import org.junit.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Puts frames of GL state changes through the cache, and checks what reaches GL.
+ */
+public class GlStateCacheTest {
+    /** Records the state calls that get through. */
+    private static class RecordingGl implements GlApi {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void glUseProgram(int program) {
+            calls.add("useProgram " + program);
+        }
+
+        @Override
+        public void glActiveTexture(int texture) {
+            calls.add("activeTexture " + (texture - GLES20.GL_TEXTURE0));
+        }
+
+        @Override
+        public void glBindTexture(int target, int texture) {
+            calls.add("bindTexture " + target + " " + texture);
+        }
+
+        @Override
+        public void glBindFramebuffer(int target, int framebuffer) {
+            calls.add("bindFramebuffer " + framebuffer);
+        }
+
+        @Override
+        public void glViewport(int x, int y, int width, int height) {
+            calls.add("viewport " + width + "x" + height);
+        }
+
+        @Override
+        public void glBindBuffer(int target, int buffer) {
+            calls.add("bindBuffer " + buffer);
+        }
+
+        @Override
+        public void glEnableVertexAttribArray(int index) {
+            calls.add("enable " + index);
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, Buffer ptr) {
+            calls.add("pointer " + index + " client");
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, int offset) {
+            calls.add("pointer " + index + " +" + offset);
+        }
+
+        @Override
+        public int glGetProgrami(int program, int pname) {
+            return 0;
+        }
+
+        @Override
+        public String glGetActiveUniform(int program, int index, int[] sizeType) {
+            return null;
+        }
+
+        @Override
+        public String glGetActiveAttrib(int program, int index, int[] sizeType) {
+            return null;
+        }
+
+        @Override
+        public int glGetUniformLocation(int program, String name) {
+            return -1;
+        }
+
+        @Override
+        public int glGetAttribLocation(int program, String name) {
+            return -1;
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            calls.add("uniform");
+        }
+
+        @Override
+        public void glUniform1f(int location, float x) {
+            calls.add("uniform");
+        }
+
+        @Override
+        public void glUniform2f(int location, float x, float y) {
+            calls.add("uniform");
+        }
+
+        @Override
+        public void glUniform3f(int location, float x, float y, float z) {
+            calls.add("uniform");
+        }
+
+        @Override
+        public void glUniform3fv(int location, int count, float[] v, int offset) {
+            calls.add("uniform");
+        }
+    }
+
+    private static final int CAMERA_TEX = 1;
+    private static final int FBO = 2;
+    private static final int FBO_TEX = 3;
+    private static final int VBO = 4;
+    private static final int TEX_COORD_VBO = 5;
+    private static final int FILTER = 10;
+    private static final int BLIT = 11;
+
+    /** What a frame does: a filter pass into an FBO, then a copy to the screen. */
+    private static void frame(GlApi gl) {
+        gl.glViewport(0, 0, 1080, 1920);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, FBO);
+        gl.glUseProgram(FILTER);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, CAMERA_TEX);
+        vertices(gl);
+
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glViewport(0, 0, 1080, 1920);
+        gl.glUseProgram(BLIT);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, FBO_TEX);
+        vertices(gl);
+    }
+
+    private static void vertices(GlApi gl) {
+        gl.glEnableVertexAttribArray(0);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, VBO);
+        gl.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 8, 0);
+        gl.glEnableVertexAttribArray(1);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, TEX_COORD_VBO);
+        gl.glVertexAttribPointer(1, 2, GLES20.GL_FLOAT, false, 8, 0);
+    }
+
+    @Test
+    public void onlyChangesGetThrough() {
+        RecordingGl gl = new RecordingGl();
+        MyGLUtils.GlStateCache cache = new MyGLUtils.GlStateCache(gl);
+
+        frame(cache);
+        int firstFrame = gl.calls.size();
+        assertEquals(firstFrame, cache.getIssued());
+
+        // The same again.  The passes switch the program and framebuffer each way, and each
+        // draw's two attributes switch the array buffer; the rest is already set.  Both
+        // textures stay bound, since they're on different targets.
+        gl.calls.clear();
+        frame(cache);
+        assertEquals(expected(
+                "bindFramebuffer " + FBO, "useProgram " + FILTER,
+                "bindBuffer " + VBO, "bindBuffer " + TEX_COORD_VBO,
+                "bindFramebuffer 0", "useProgram " + BLIT,
+                "bindBuffer " + VBO, "bindBuffer " + TEX_COORD_VBO), gl.calls);
+        assertEquals(16, firstFrame);
+        assertEquals(firstFrame + 8, cache.getIssued());
+        assertEquals(2 * 22 - firstFrame - 8, cache.getSkipped());
+    }
+
+    @Test
+    public void bindingsArePerUnitAndTarget() {
+        RecordingGl gl = new RecordingGl();
+        MyGLUtils.GlStateCache cache = new MyGLUtils.GlStateCache(gl);
+        cache.glActiveTexture(GLES20.GL_TEXTURE0);
+        cache.glBindTexture(GLES20.GL_TEXTURE_2D, 7);
+        cache.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 7);
+        cache.glActiveTexture(GLES20.GL_TEXTURE1);
+        cache.glBindTexture(GLES20.GL_TEXTURE_2D, 7);
+        cache.glActiveTexture(GLES20.GL_TEXTURE0);
+        cache.glBindTexture(GLES20.GL_TEXTURE_2D, 7);
+        assertEquals(expected("activeTexture 0", "bindTexture " + GLES20.GL_TEXTURE_2D + " 7",
+                "bindTexture " + GLES11Ext.GL_TEXTURE_EXTERNAL_OES + " 7", "activeTexture 1",
+                "bindTexture " + GLES20.GL_TEXTURE_2D + " 7", "activeTexture 0"), gl.calls);
+
+        // Someone else bound textures.
+        gl.calls.clear();
+        cache.invalidateTextures();
+        cache.glBindTexture(GLES20.GL_TEXTURE_2D, 7);
+        cache.glActiveTexture(GLES20.GL_TEXTURE0);
+        assertEquals(expected("bindTexture " + GLES20.GL_TEXTURE_2D + " 7"), gl.calls);
+    }
+
+    @Test
+    public void vertexPointersFollowTheirBuffer() {
+        RecordingGl gl = new RecordingGl();
+        MyGLUtils.GlStateCache cache = new MyGLUtils.GlStateCache(gl);
+        FloatBuffer client = ByteBuffer.allocateDirect(32).asFloatBuffer();
+
+        cache.glBindBuffer(GLES20.GL_ARRAY_BUFFER, VBO);
+        cache.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 8, 0);
+        cache.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 8, 0);
+        // Same offset, different buffer.
+        cache.glBindBuffer(GLES20.GL_ARRAY_BUFFER, TEX_COORD_VBO);
+        cache.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 8, 0);
+        // Different format.
+        cache.glVertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 12, 0);
+        // Client-side data.
+        cache.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        cache.glVertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 12, client);
+        cache.glVertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 12, client);
+        client.position(2);
+        cache.glVertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 12, client);
+        assertEquals(expected("bindBuffer " + VBO, "pointer 0 +0", "bindBuffer " + TEX_COORD_VBO,
+                "pointer 0 +0", "pointer 0 +0", "bindBuffer 0", "pointer 0 client",
+                "pointer 0 client"), gl.calls);
+
+        gl.calls.clear();
+        cache.invalidate();
+        cache.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        cache.glEnableVertexAttribArray(0);
+        cache.glEnableVertexAttribArray(0);
+        assertEquals(expected("bindBuffer 0", "enable 0"), gl.calls);
+    }
+
+    private static List<String> expected(String... calls) {
+        List<String> list = new ArrayList<>();
+        for (String call : calls) {
+            list.add(call);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,169 @@
+package circam.app;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journals a synthetic stream, then reads it back the way recovery does.
+ */
+public class GopJournalTest {
+    private static final long FRAME_USEC = 33333;
+    private static final int GOP_SIZE = 30;
+    private static final int SYNC_SIZE = 6000;
+    private static final int DELTA_SIZE = 700;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private CircularEncoderBuffer mBuffer;
+    private int mFrameNum;
+    private long mGopStartSeq;
+
+    @Before
+    public void setUp() {
+        mDir = new File(mFolder.getRoot(), "journal");
+        // Holds over 30 GOPs, so the journal can't fall behind unless a test wants it to.
+        mBuffer = new CircularEncoderBuffer(ByteBuffer.allocateDirect(1024 * 1024), 1024);
+        mFrameNum = 0;
+        mGopStartSeq = -1;
+    }
+
+    /** Adds count frames, submitting each GOP as it completes, like the encoder thread. */
+    private void addFrames(GopJournal journal, int count) {
+        for (int i = 0; i < count; i++, mFrameNum++) {
+            boolean sync = mFrameNum % GOP_SIZE == 0;
+            int size = (sync ? SYNC_SIZE : DELTA_SIZE) + mFrameNum % 17;
+            ByteBuffer packet = ByteBuffer.allocate(size);
+            for (int j = 0; j < size; j++) {
+                packet.put(contentByte(mFrameNum, j));
+            }
+            packet.flip();
+            mBuffer.add(packet, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    mFrameNum * FRAME_USEC);
+            if (sync) {
+                long seq = mBuffer.getHeadSeq() - 1;
+                if (mGopStartSeq >= 0) {
+                    journal.submitGop(mBuffer, mGopStartSeq, seq);
+                }
+                mGopStartSeq = seq;
+            }
+        }
+    }
+
+    private static byte contentByte(int frameNum, int offset) {
+        return (byte) (frameNum * 31 + offset);
+    }
+
+    /** Reads the journal back, checking every packet, and returns their frame numbers. */
+    private List<Integer> scan() throws Exception {
+        final List<Integer> frames = new ArrayList<>();
+        int count = GopJournal.scan(mDir, new GopJournal.Sink() {
+            @Override
+            public void format(byte[] formatRecord) {
+                assertEquals(0, formatRecord.length);
+            }
+
+            @Override
+            public void packet(ByteBuffer data, MediaCodec.BufferInfo info) {
+                int frameNum = (int) (info.presentationTimeUs / FRAME_USEC);
+                assertEquals(frameNum % GOP_SIZE == 0,
+                        (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                for (int j = 0; j < info.size; j++) {
+                    assertEquals(contentByte(frameNum, j), data.get(info.offset + j));
+                }
+                frames.add(frameNum);
+            }
+        });
+        assertEquals(frames.size(), count);
+        return frames;
+    }
+
+    @Test
+    public void completedGopsReadBack() throws Exception {
+        GopJournal journal = new GopJournal(mDir, 1024 * 1024, 4);
+        addFrames(journal, GOP_SIZE * 3 + 10);
+        journal.close();
+
+        // The GOP in progress isn't complete, so it isn't there.
+        List<Integer> frames = scan();
+        assertEquals(GOP_SIZE * 3, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(i, (int) frames.get(i));
+        }
+        assertEquals(3, journal.getGopsWritten());
+        assertEquals(0, journal.getGopsDropped());
+        assertTrue(journal.getBytesWritten() > 3 * (SYNC_SIZE + (GOP_SIZE - 1) * DELTA_SIZE));
+    }
+
+    @Test
+    public void segmentsRotate() throws Exception {
+        // Each GOP is ~27KB, so a 64KB segment holds two.
+        GopJournal journal = new GopJournal(mDir, 64 * 1024, 3);
+        addFrames(journal, GOP_SIZE * 20 + 1);
+        journal.close();
+
+        assertEquals(20, journal.getGopsWritten());
+        List<Integer> frames = scan();
+        assertEquals(GOP_SIZE * 6, frames.size());
+        assertEquals(GOP_SIZE * 14, (int) frames.get(0));
+        assertEquals(GOP_SIZE * 20 - 1, (int) frames.get(frames.size() - 1));
+
+        // A new journal starts clean.
+        new GopJournal(mDir, 64 * 1024, 3).close();
+        assertFalse(GopJournal.hasSegments(mDir));
+    }
+
+    @Test
+    public void overwrittenGopsAreDropped() throws Exception {
+        // Barely over two GOPs, so the journal thread may well not keep up.
+        mBuffer = new CircularEncoderBuffer(ByteBuffer.allocateDirect(64 * 1024), 256);
+        GopJournal journal = new GopJournal(mDir, 1024 * 1024, 4);
+        addFrames(journal, GOP_SIZE * 50 + 1);
+        journal.close();
+
+        // Whatever made it is intact, and is whole GOPs.
+        assertEquals(50, journal.getGopsWritten() + journal.getGopsDropped());
+        assertEquals(GOP_SIZE * journal.getGopsWritten(), scan().size());
+    }
+
+    @Test
+    public void damagedTailIsDropped() throws Exception {
+        GopJournal journal = new GopJournal(mDir, 1024 * 1024, 4);
+        addFrames(journal, GOP_SIZE * 4 + 1);
+        journal.close();
+
+        File segment = mDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        long length = raf.length();
+        byte[] end = new byte[1000];
+        raf.seek(length - end.length);
+        raf.readFully(end);
+
+        // Cut the last GOP short, as if we were killed halfway through writing it.
+        raf.setLength(length - end.length);
+        assertEquals(GOP_SIZE * 3, scan().size());
+
+        // Put it back, and it's all there.
+        raf.write(end);
+        assertEquals(GOP_SIZE * 4, scan().size());
+
+        // Corrupt one byte of it.
+        raf.seek(length - end.length);
+        raf.write(end[0] ^ 0x55);
+        assertEquals(GOP_SIZE * 3, scan().size());
+        raf.close();
+    }
+}
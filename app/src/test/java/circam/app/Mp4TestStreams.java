@@ -0,0 +1,80 @@
+package circam.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A synthetic H.264 stream, and helpers for picking apart the MP4 boxes it ends up in.
+ * Shared by the Mp4Writer and FragmentedMp4Streamer tests.
+ */
+final class Mp4TestStreams {
+    static final long FRAME_USEC = 33333;
+    static final int GOP_SIZE = 30;
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+    static final byte[] SPS = { 0x67, 0x42, (byte) 0x80, 0x1f, 0x11, 0x22 };
+    static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+    private Mp4TestStreams() {}
+
+    /**
+     * Returns the NAL units of a frame, without start codes.  Sync frames are an SEI and an
+     * IDR slice; the rest are a single slice.
+     */
+    static List<byte[]> nalUnits(int frameNum) {
+        List<byte[]> nals = new ArrayList<>();
+        boolean sync = frameNum % GOP_SIZE == 0;
+        if (sync) {
+            nals.add(nalUnit(0x06, frameNum, 7));
+            nals.add(nalUnit(0x65, frameNum, 5000 + frameNum % 13));
+        } else {
+            nals.add(nalUnit(0x41, frameNum, 600 + frameNum % 13));
+        }
+        return nals;
+    }
+
+    static byte[] nalUnit(int header, int frameNum, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int j = 1; j < size; j++) {
+            // Never 0 or 1, so there's nothing that looks like a start code.
+            nal[j] = (byte) (2 + (frameNum * 31 + j) % 250);
+        }
+        return nal;
+    }
+
+    /** Returns the position of the child box of the given type, failing if it's missing. */
+    static int findBox(ByteBuffer buf, int parent, String type) {
+        int end = parent + buf.getInt(parent);
+        int pos = parent + 8;
+        while (pos < end) {
+            if (typeAt(buf, pos).equals(type)) {
+                return pos;
+            }
+            int size = buf.getInt(pos);
+            assertTrue(size >= 8);
+            pos += size;
+        }
+        fail("no " + type + " in " + typeAt(buf, parent));
+        return -1;
+    }
+
+    static String typeAt(ByteBuffer buf, int box) {
+        return fourCC(buf, box + 4);
+    }
+
+    static String fourCC(ByteBuffer buf, int pos) {
+        return new String(bytes(buf, pos, 4));
+    }
+
+    static byte[] bytes(ByteBuffer buf, int pos, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = buf.get(pos + i);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,274 @@
+package circam.app;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static circam.app.Mp4TestStreams.FRAME_USEC;
+import static circam.app.Mp4TestStreams.GOP_SIZE;
+import static circam.app.Mp4TestStreams.HEIGHT;
+import static circam.app.Mp4TestStreams.PPS;
+import static circam.app.Mp4TestStreams.SPS;
+import static circam.app.Mp4TestStreams.WIDTH;
+import static circam.app.Mp4TestStreams.bytes;
+import static circam.app.Mp4TestStreams.findBox;
+import static circam.app.Mp4TestStreams.fourCC;
+import static circam.app.Mp4TestStreams.nalUnits;
+import static circam.app.Mp4TestStreams.typeAt;
+import static org.junit.Assert.*;
+
+/**
+ * Writes a synthetic H.264 stream from a CircularEncoderBuffer with Mp4Writer, then parses
+ * the file and checks the box structure and every sample against what went in.
+ */
+public class Mp4WriterTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private CircularEncoderBuffer mBuffer;
+    private int mFrameNum;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        // Small enough that plenty of packets wrap around the end.
+        mBuffer = new CircularEncoderBuffer(ByteBuffer.allocateDirect(64 * 1024), 256);
+        mFrameNum = 0;
+        mFile = mFolder.newFile("out.mp4");
+    }
+
+    /** Adds count frames in Annex B form, alternating 4- and 3-byte start codes. */
+    private void addFrames(CircularEncoderBuffer buffer, int count) {
+        for (int i = 0; i < count; i++, mFrameNum++) {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            int n = 0;
+            for (byte[] nal : nalUnits(mFrameNum)) {
+                if ((mFrameNum + n++) % 2 == 0) {
+                    packet.write(0);
+                }
+                packet.write(0);
+                packet.write(0);
+                packet.write(1);
+                packet.write(nal, 0, nal.length);
+            }
+            boolean sync = mFrameNum % GOP_SIZE == 0;
+            buffer.add(ByteBuffer.wrap(packet.toByteArray()),
+                    sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mFrameNum * FRAME_USEC);
+        }
+    }
+
+    private Mp4Writer newWriter() throws Exception {
+        // SPS with a start code, PPS without.
+        ByteBuffer sps = ByteBuffer.allocate(SPS.length + 4);
+        sps.putInt(1);
+        sps.put(SPS);
+        sps.flip();
+        return new Mp4Writer(mFile, WIDTH, HEIGHT, sps, ByteBuffer.wrap(PPS));
+    }
+
+    private static void writeRange(Mp4Writer writer, CircularEncoderBuffer buffer, int first)
+            throws Exception {
+        int last = buffer.getLastIndex();
+        for (int index = first; index >= 0; index = buffer.getNextIndex(index, last)) {
+            writer.addSample(buffer, index);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        addFrames(mBuffer, GOP_SIZE * 7 + 11);
+        Mp4Writer writer = newWriter();
+        int first = mBuffer.getFirstIndex();
+        writeRange(writer, mBuffer, first);
+        writer.finish();
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mBuffer.getChunkInfo(first, info);
+        int firstFrame = (int) (info.presentationTimeUs / FRAME_USEC);
+        checkFile(firstFrame, mFrameNum - 1, 1);
+    }
+
+    @Test
+    public void longTailThenBuffer() throws Exception {
+        mBuffer.enableLongTail(32 * 1024, 16);
+        addFrames(mBuffer, GOP_SIZE * 9 + 3);
+        CircularEncoderBuffer longTail = mBuffer.getLongTail();
+
+        Mp4Writer writer = newWriter();
+        writeRange(writer, longTail, longTail.getFirstIndex());
+        writeRange(writer, mBuffer, mBuffer.getFirstIndex());
+        writer.finish();
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        longTail.getChunkInfo(longTail.getFirstIndex(), info);
+        int firstFrame = (int) (info.presentationTimeUs / FRAME_USEC);
+        mBuffer.getChunkInfo(mBuffer.getFirstIndex(), info);
+        int fullRateFrame = (int) (info.presentationTimeUs / FRAME_USEC);
+        // Sync frames only up to fullRateFrame, then everything.
+        checkFile(firstFrame, mFrameNum - 1, fullRateFrame);
+    }
+
+    @Test
+    public void ringThenCopiedPackets() throws Exception {
+        // Like a post-roll: the buffered frames, then new ones as they arrive.
+        addFrames(mBuffer, GOP_SIZE * 2 + 5);
+        Mp4Writer writer = newWriter();
+        int first = mBuffer.getFirstIndex();
+        writeRange(writer, mBuffer, first);
+        writer.flush();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mBuffer.getChunkInfo(first, info);
+        int firstFrame = (int) (info.presentationTimeUs / FRAME_USEC);
+
+        // More than the ring holds, so what was written from it has been overwritten.
+        CircularEncoderBuffer.Reader reader = mBuffer.new Reader();
+        ByteBuffer packet = ByteBuffer.allocateDirect(16 * 1024);
+        for (int i = 0; i < GOP_SIZE * 5; i++) {
+            long seq = mBuffer.getHeadSeq();
+            addFrames(mBuffer, 1);
+            packet.clear();
+            packet.position(100);
+            assertTrue(reader.read(seq, packet, info) > 0);
+            writer.addSample(packet, info);
+        }
+        reader.close();
+        writer.finish();
+        checkFile(firstFrame, mFrameNum - 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ptsMustIncrease() throws Exception {
+        addFrames(mBuffer, GOP_SIZE);
+        Mp4Writer writer = newWriter();
+        try {
+            int index = mBuffer.getFirstIndex();
+            writer.addSample(mBuffer, index);
+            writer.addSample(mBuffer, index);
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * Checks the file holds frames firstFrame through lastFrame, where those before
+     * fullRateFrame are sync frames only.
+     */
+    private void checkFile(int firstFrame, int lastFrame, int fullRateFrame) throws Exception {
+        List<Integer> frames = new ArrayList<>();
+        for (int f = firstFrame; f <= lastFrame; f++) {
+            if (f >= fullRateFrame || f % GOP_SIZE == 0) {
+                frames.add(f);
+            }
+        }
+
+        ByteBuffer file = readFile();
+        // Top level: ftyp, mdat, moov, and nothing else.
+        int ftyp = 0;
+        assertEquals("ftyp", typeAt(file, ftyp));
+        assertEquals("isom", fourCC(file, ftyp + 8));
+        int mdat = ftyp + file.getInt(ftyp);
+        assertEquals("mdat", typeAt(file, mdat));
+        assertEquals(1, file.getInt(mdat));
+        int moov = (int) (mdat + file.getLong(mdat + 8));
+        assertEquals("moov", typeAt(file, moov));
+        assertEquals(file.capacity(), moov + file.getInt(moov));
+
+        int mvhd = findBox(file, moov, "mvhd");
+        int trak = findBox(file, moov, "trak");
+        assertEquals(1, file.getInt(findBox(file, trak, "tkhd") + 20));
+        int mdia = findBox(file, trak, "mdia");
+        int mdhd = findBox(file, mdia, "mdhd");
+        assertEquals("vide", fourCC(file, findBox(file, mdia, "hdlr") + 16));
+        int stbl = findBox(file, findBox(file, mdia, "minf"), "stbl");
+
+        // Sample description.
+        int stsd = findBox(file, stbl, "stsd");
+        assertEquals(1, file.getInt(stsd + 12));
+        int avc1 = stsd + 16;
+        assertEquals("avc1", typeAt(file, avc1));
+        assertEquals(WIDTH, file.getShort(avc1 + 32));
+        assertEquals(HEIGHT, file.getShort(avc1 + 34));
+        int avcC = avc1 + 86;
+        assertEquals("avcC", typeAt(file, avcC));
+        assertEquals(SPS[1], file.get(avcC + 9));
+        assertEquals(SPS[3], file.get(avcC + 11));
+        assertEquals(SPS.length, file.getShort(avcC + 14));
+        assertArrayEquals(SPS, bytes(file, avcC + 16, SPS.length));
+        int pps = avcC + 16 + SPS.length;
+        assertEquals(1, file.get(pps));
+        assertEquals(PPS.length, file.getShort(pps + 1));
+        assertArrayEquals(PPS, bytes(file, pps + 3, PPS.length));
+
+        // Sample sizes, and the data they describe.
+        int stsz = findBox(file, stbl, "stsz");
+        assertEquals(frames.size(), file.getInt(stsz + 16));
+        int stco = findBox(file, stbl, "stco");
+        assertEquals(1, file.getInt(stco + 12));
+        int offset = file.getInt(stco + 16);
+        assertEquals(mdat + 16, offset);
+        int stsc = findBox(file, stbl, "stsc");
+        assertEquals(frames.size(), file.getInt(stsc + 20));
+        for (int i = 0; i < frames.size(); i++) {
+            int sampleSize = file.getInt(stsz + 20 + i * 4);
+            int end = offset + sampleSize;
+            for (byte[] nal : nalUnits(frames.get(i))) {
+                assertEquals(nal.length, file.getInt(offset));
+                assertArrayEquals(nal, bytes(file, offset + 4, nal.length));
+                offset += 4 + nal.length;
+            }
+            assertEquals(end, offset);
+        }
+        assertEquals(moov, offset);
+
+        // Sync samples.
+        int stss = findBox(file, stbl, "stss");
+        List<Integer> syncs = new ArrayList<>();
+        for (int i = 0; i < frames.size(); i++) {
+            if (frames.get(i) % GOP_SIZE == 0) {
+                syncs.add(i + 1);
+            }
+        }
+        assertEquals(syncs.size(), file.getInt(stss + 12));
+        for (int i = 0; i < syncs.size(); i++) {
+            assertEquals((int) syncs.get(i), file.getInt(stss + 16 + i * 4));
+        }
+
+        // Sample times match the PTS, to within rounding.
+        int timescale = file.getInt(mdhd + 20);
+        int stts = findBox(file, stbl, "stts");
+        int entries = file.getInt(stts + 12);
+        long ticks = 0;
+        int sample = 0;
+        for (int e = 0; e < entries; e++) {
+            int count = file.getInt(stts + 16 + e * 8);
+            int delta = file.getInt(stts + 20 + e * 8);
+            for (int i = 0; i < count; i++, sample++) {
+                double expectTicks = (frames.get(sample) - firstFrame) * FRAME_USEC *
+                        (double) timescale / 1000000;
+                assertEquals(expectTicks, ticks, 1.0);
+                ticks += delta;
+            }
+        }
+        assertEquals(frames.size(), sample);
+        assertEquals(ticks, file.getInt(mdhd + 24));
+        long movieDuration = file.getInt(mvhd + 24) & 0xffffffffL;
+        assertEquals(ticks * file.getInt(mvhd + 20) / timescale, movieDuration, 1);
+    }
+
+    private ByteBuffer readFile() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return ByteBuffer.wrap(data);
+    }}
@@ -0,0 +1,77 @@
+package circam.app;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the on-disk side of ProgramBinaryCache: what's kept, and what's thrown away.
+ */
+public class ProgramBinaryCacheTest {
+    private static final String DRIVER = "Adreno (TM) 618; OpenGL ES 3.2 V@415.0";
+    private static final String KEY = ProgramBinaryCache.key("vertex", "fragment");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ProgramBinaryCache.Binary binary() {
+        return new ProgramBinaryCache.Binary(0x8740, new byte[] { 1, 2, 3, 4, 5 });
+    }
+
+    @Test
+    public void keyFollowsTheSources() {
+        assertEquals(40, KEY.length());
+        assertEquals(KEY, ProgramBinaryCache.key("vertex", "fragment"));
+        assertNotEquals(KEY, ProgramBinaryCache.key("vertex", "fragment2"));
+        assertNotEquals(ProgramBinaryCache.key("ab", "c"), ProgramBinaryCache.key("a", "bc"));
+    }
+
+    @Test
+    public void readsBackWhatItWrote() throws Exception {
+        ProgramBinaryCache cache = new ProgramBinaryCache(new File(mFolder.getRoot(), "programs"));
+        assertNull(cache.read(KEY, DRIVER));
+
+        cache.write(KEY, DRIVER, binary());
+        ProgramBinaryCache.Binary read = cache.read(KEY, DRIVER);
+        assertNotNull(read);
+        assertEquals(0x8740, read.format);
+        assertArrayEquals(binary().data, read.data);
+        // Nothing left lying around.
+        assertEquals(1, new File(mFolder.getRoot(), "programs").list().length);
+    }
+
+    @Test
+    public void anotherDriversBinaryIsDeleted() throws Exception {
+        ProgramBinaryCache cache = new ProgramBinaryCache(mFolder.getRoot());
+        cache.write(KEY, DRIVER, binary());
+        assertNull(cache.read(KEY, DRIVER + ".1"));
+        assertNull(cache.read(KEY, DRIVER));
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void damagedFilesAreDeleted() throws Exception {
+        ProgramBinaryCache cache = new ProgramBinaryCache(mFolder.getRoot());
+        cache.write(KEY, DRIVER, binary());
+        File file = mFolder.getRoot().listFiles()[0];
+
+        // Cut short.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        assertNull(cache.read(KEY, DRIVER));
+        assertFalse(file.exists());
+
+        // Under another program's name.
+        cache.write(KEY, DRIVER, binary());
+        String otherKey = ProgramBinaryCache.key("vertex", "other");
+        assertTrue(file.renameTo(new File(mFolder.getRoot(), otherKey + ".bin")));
+        assertNull(cache.read(otherKey, DRIVER));
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+}
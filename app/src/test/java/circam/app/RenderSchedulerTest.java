@@ -0,0 +1,151 @@
+package circam.app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives RenderScheduler with a fake clock.
+ */
+public class RenderSchedulerTest {
+    private static final long MSEC = 1000000L;
+    private static final long VSYNC_60HZ = 16666667L;
+
+    private long mNow;
+    private final RenderScheduler.Clock mClock = new RenderScheduler.Clock() {
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mNow = 1000 * MSEC;
+    }
+
+    /**
+     * Renders one frame that arrives now: the encoder pass takes encoderMsec, then the
+     * preview, if there's time, takes previewMsec.  Reports vsyncs as they go by.
+     *
+     * @return Whether the preview was drawn.
+     */
+    private boolean renderFrame(RenderScheduler scheduler, long encoderMsec, long previewMsec,
+            int framesWaiting) {
+        scheduler.beginFrame(mNow);
+        mNow += encoderMsec * MSEC;
+        scheduler.encoderFrameDone();
+        if (!scheduler.shouldDrawPreview(framesWaiting)) {
+            return false;
+        }
+        mNow += previewMsec * MSEC;
+        scheduler.previewFrameDone();
+        return true;
+    }
+
+    /** Advances the clock to time, reporting the vsyncs on the way. */
+    private void advanceTo(RenderScheduler scheduler, long time, long vsyncPeriod) {
+        long vsync = scheduler.nextVsync(mNow);
+        while (vsync <= time) {
+            scheduler.onVsync(vsync);
+            vsync += vsyncPeriod;
+        }
+        mNow = time;
+    }
+
+    @Test
+    public void previewEveryFrameWhenThereIsTime() {
+        RenderScheduler scheduler = new RenderScheduler(mClock, 33 * MSEC, VSYNC_60HZ);
+        scheduler.onVsync(mNow);
+        for (int i = 0; i < 30; i++) {
+            long arrival = mNow;
+            assertTrue(renderFrame(scheduler, 5, 5, 0));
+            // The preview is aimed at a vsync no earlier than it's ready.
+            assertTrue(scheduler.getPreviewPresentationNsec() >= mNow - 5 * MSEC);
+            advanceTo(scheduler, arrival + 33 * MSEC, VSYNC_60HZ);
+        }
+        assertEquals(30, scheduler.getFrames());
+        assertEquals(30, scheduler.getPreviewFrames());
+        assertEquals(0, scheduler.getDeadlineMisses());
+        assertEquals(0, scheduler.getPreviewSkippedLate() + scheduler.getPreviewSkippedVsync());
+    }
+
+    @Test
+    public void oneFramePerVsync() {
+        // 60fps camera on a 30Hz display: only every other frame can be seen.
+        long vsync30Hz = 2 * VSYNC_60HZ;
+        RenderScheduler scheduler = new RenderScheduler(mClock, VSYNC_60HZ, vsync30Hz);
+        scheduler.onVsync(mNow);
+        for (int i = 0; i < 60; i++) {
+            long arrival = mNow;
+            renderFrame(scheduler, 2, 2, 0);
+            advanceTo(scheduler, arrival + VSYNC_60HZ, vsync30Hz);
+        }
+        assertEquals(30, scheduler.getPreviewFrames(), 1);
+        assertEquals(30, scheduler.getPreviewSkippedVsync(), 1);
+        assertEquals(0, scheduler.getPreviewSkippedLate());
+        assertEquals(0, scheduler.getDeadlineMisses());
+    }
+
+    @Test
+    public void skipPreviewToProtectEncoder() {
+        RenderScheduler scheduler = new RenderScheduler(mClock, 33 * MSEC, VSYNC_60HZ);
+        // Learn the costs: 20ms for the encoder, 30ms for the preview.
+        assertTrue(renderFrame(scheduler, 20, 30, 0));
+        // 20 + 30 + 20 is more than the 66ms to the next frame's deadline.
+        assertFalse(renderFrame(scheduler, 20, 30, 0));
+        assertEquals(1, scheduler.getPreviewSkippedLate());
+
+        // The estimate comes down while we skip, and once the preview is tried again and
+        // turns out to be cheaper, it's drawn every frame.
+        int drawn = 0;
+        for (int i = 0; i < 10; i++) {
+            if (renderFrame(scheduler, 20, 5, 0)) {
+                drawn++;
+            }
+        }
+        assertTrue(scheduler.getPreviewSkippedLate() <= 3);
+        assertEquals(10 - (scheduler.getPreviewSkippedLate() - 1), drawn);
+        assertTrue(scheduler.getPreviewCostNsec() < 30 * MSEC);
+    }
+
+    @Test
+    public void skipPreviewWhenBehind() {
+        RenderScheduler scheduler = new RenderScheduler(mClock, 33 * MSEC, VSYNC_60HZ);
+        assertFalse(renderFrame(scheduler, 5, 5, 2));
+        assertEquals(1, scheduler.getPreviewSkippedLate());
+    }
+
+    @Test
+    public void deadlineMissesAreCounted() {
+        RenderScheduler scheduler = new RenderScheduler(mClock, 33 * MSEC, VSYNC_60HZ);
+        scheduler.beginFrame(mNow - 30 * MSEC);     // arrived a while ago
+        mNow += 5 * MSEC;
+        assertFalse(scheduler.encoderFrameDone());
+        scheduler.beginFrame(mNow);
+        mNow += 5 * MSEC;
+        assertTrue(scheduler.encoderFrameDone());
+        assertEquals(1, scheduler.getDeadlineMisses());
+    }
+
+    @Test
+    public void vsyncPeriodSurvivesMissedCallbacks() {
+        // Start with a poor guess, and report 60Hz vsyncs with some missing.
+        RenderScheduler scheduler = new RenderScheduler(mClock, 33 * MSEC, 20 * MSEC);
+        long vsync = mNow;
+        for (int i = 0; i < 200; i++) {
+            if (i % 5 != 3) {
+                scheduler.onVsync(vsync);
+            }
+            vsync += VSYNC_60HZ;
+        }
+        assertEquals(VSYNC_60HZ, scheduler.getVsyncPeriodNsec(), 0.01 * VSYNC_60HZ);
+
+        long last = vsync - VSYNC_60HZ;
+        assertEquals(last, scheduler.nextVsync(last));
+        assertEquals(last + VSYNC_60HZ, scheduler.nextVsync(last + 1), 0.02 * VSYNC_60HZ);
+        assertEquals(last + 3 * VSYNC_60HZ, scheduler.nextVsync(last + 2 * VSYNC_60HZ + MSEC),
+                0.05 * VSYNC_60HZ);
+    }
+}
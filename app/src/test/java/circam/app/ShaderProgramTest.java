@@ -0,0 +1,249 @@
+package circam.app;
+
+import android.opengl.GLES20;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs ShaderProgram against a stand-in for GL that plays back a filter shader's uniforms
+ * and attributes, and counts the calls that reach it.
+ */
+public class ShaderProgramTest {
+    private static final int PROGRAM = 7;
+    private static final String[] UNIFORMS = {
+            "iResolution", "iGlobalTime", "iFrame", "iChannel0", "iChannelResolution[0]"
+    };
+    private static final int[] UNIFORM_TYPES = {
+            GLES20.GL_FLOAT_VEC3, GLES20.GL_FLOAT, GLES20.GL_INT, GLES20.GL_SAMPLER_2D,
+            GLES20.GL_FLOAT_VEC3
+    };
+    private static final int[] UNIFORM_SIZES = { 1, 1, 1, 1, 4 };
+    private static final String[] ATTRIBS = { "vPosition", "vTexCoord" };
+
+    private static class FakeGl implements GlApi {
+        int uniformCalls;
+        int attribCalls;
+        int useCalls;
+        int lastLocation = -1;
+        float[] last3fv = new float[12];
+
+        @Override
+        public void glUseProgram(int program) {
+            assertEquals(PROGRAM, program);
+            useCalls++;
+        }
+
+        @Override
+        public int glGetProgrami(int program, int pname) {
+            if (pname == GLES20.GL_ACTIVE_UNIFORMS) {
+                return UNIFORMS.length;
+            } else if (pname == GLES20.GL_ACTIVE_ATTRIBUTES) {
+                return ATTRIBS.length;
+            }
+            throw new AssertionError("pname " + pname);
+        }
+
+        @Override
+        public String glGetActiveUniform(int program, int index, int[] sizeType) {
+            sizeType[0] = UNIFORM_SIZES[index];
+            sizeType[1] = UNIFORM_TYPES[index];
+            return UNIFORMS[index];
+        }
+
+        @Override
+        public String glGetActiveAttrib(int program, int index, int[] sizeType) {
+            sizeType[0] = 1;
+            sizeType[1] = GLES20.GL_FLOAT_VEC2;
+            return ATTRIBS[index];
+        }
+
+        @Override
+        public int glGetUniformLocation(int program, String name) {
+            for (int i = 0; i < UNIFORMS.length; i++) {
+                if (UNIFORMS[i].startsWith(name + "[") || UNIFORMS[i].equals(name)) {
+                    return 100 + i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int glGetAttribLocation(int program, String name) {
+            for (int i = 0; i < ATTRIBS.length; i++) {
+                if (ATTRIBS[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            uniform(location);
+        }
+
+        @Override
+        public void glUniform1f(int location, float x) {
+            uniform(location);
+        }
+
+        @Override
+        public void glUniform2f(int location, float x, float y) {
+            uniform(location);
+        }
+
+        @Override
+        public void glUniform3f(int location, float x, float y, float z) {
+            uniform(location);
+        }
+
+        @Override
+        public void glUniform3fv(int location, int count, float[] v, int offset) {
+            uniform(location);
+            System.arraycopy(v, offset, last3fv, 0, count * 3);
+        }
+
+        private void uniform(int location) {
+            assertTrue(location >= 100);
+            lastLocation = location;
+            uniformCalls++;
+        }
+
+        @Override
+        public void glEnableVertexAttribArray(int index) {
+            attribCalls++;
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, Buffer ptr) {
+            assertEquals(GLES20.GL_FLOAT, type);
+            assertEquals(size * 4, stride);
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, int offset) {
+            fail("no vertex buffers here");
+        }
+
+        @Override
+        public void glBindBuffer(int target, int buffer) {}
+
+        @Override
+        public void glActiveTexture(int texture) {}
+
+        @Override
+        public void glBindTexture(int target, int texture) {}
+
+        @Override
+        public void glBindFramebuffer(int target, int framebuffer) {}
+
+        @Override
+        public void glViewport(int x, int y, int width, int height) {}
+    }
+
+    private final FloatBuffer mVertices = ByteBuffer.allocateDirect(8 * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private final float[] mResolutions = { 640, 480, 1, 256, 256, 1 };
+
+    /** One frame's worth of inputs, as a filter sets them. */
+    private void frame(ShaderProgram program, int[] handles, int frame) {
+        program.use();
+        program.set3f(handles[0], 1080, 1920, 1);
+        program.set1f(handles[1], frame / 30.0f);
+        program.set1i(handles[2], frame);
+        program.set1i(handles[3], 0);
+        program.set3fv(handles[4], mResolutions, 2);
+        program.setAttribute(handles[5], 2, mVertices);
+        program.setAttribute(handles[6], 2, mVertices);
+    }
+
+    private static int[] handles(ShaderProgram program) {
+        return new int[] {
+                program.uniform("iResolution"), program.uniform("iGlobalTime"),
+                program.uniform("iFrame"), program.uniform("iChannel0"),
+                program.uniform("iChannelResolution"),
+                program.attribute("vPosition"), program.attribute("vTexCoord")
+        };
+    }
+
+    @Test
+    public void reflectsActiveInputs() {
+        FakeGl gl = new FakeGl();
+        ShaderProgram program = new ShaderProgram(gl, PROGRAM);
+        assertEquals(PROGRAM, program.getProgram());
+        assertEquals(0, program.uniform("iResolution"));
+        assertEquals(4, program.uniform("iChannelResolution"));
+        assertEquals(-1, program.uniform("iChannel1"));
+        assertEquals(1, program.attribute("vTexCoord"));
+        assertEquals(-1, program.attribute("vColor"));
+
+        // Inputs the shader doesn't have are quietly ignored.
+        program.set1i(program.uniform("iChannel1"), 1);
+        program.setAttribute(program.attribute("vColor"), 4, mVertices);
+        assertEquals(0, gl.uniformCalls);
+        assertEquals(0, gl.attribCalls);
+    }
+
+    @Test
+    public void onlyChangedValuesAreUploaded() {
+        FakeGl gl = new FakeGl();
+        ShaderProgram program = new ShaderProgram(gl, PROGRAM);
+        int[] handles = handles(program);
+
+        frame(program, handles, 0);
+        assertEquals(5, gl.uniformCalls);
+        assertArrayEquals(new float[] { 640, 480, 1, 256, 256, 1 },
+                Arrays.copyOf(gl.last3fv, 6), 0);
+
+        // Next frame, only the time and frame number change.
+        frame(program, handles, 1);
+        assertEquals(7, gl.uniformCalls);
+        frame(program, handles, 1);
+        assertEquals(7, gl.uniformCalls);
+
+        mResolutions[4] = 512;
+        frame(program, handles, 1);
+        assertEquals(8, gl.uniformCalls);
+        assertEquals(104, gl.lastLocation);
+        assertEquals(512, gl.last3fv[4], 0);
+    }
+
+    @Test
+    public void steadyStateFramesDontAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        FakeGl gl = new FakeGl();
+        ShaderProgram program = new ShaderProgram(gl, PROGRAM);
+        int[] handles = handles(program);
+        for (int i = 0; i < 20000; i++) {
+            frame(program, handles, i);
+        }
+
+        long thread = Thread.currentThread().getId();
+        allocations.getThreadAllocatedBytes(thread);
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10000; i++) {
+            frame(program, handles, i);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        assertEquals(0, allocated);
+        assertEquals(30000, gl.useCalls);
+    }
+}
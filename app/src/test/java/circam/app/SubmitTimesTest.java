@@ -0,0 +1,25 @@
+package circam.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Looks up frame submit times by presentation time, as the encoder thread does.
+ */
+public class SubmitTimesTest {
+    @Test
+    public void findsRecentFrames() {
+        CircularEncoder.SubmitTimes times = new CircularEncoder.SubmitTimes(4);
+        assertEquals(-1, times.get(0));
+        for (int i = 0; i < 10; i++) {
+            times.put(i * 33333, 1000 + i);
+        }
+        for (int i = 6; i < 10; i++) {
+            assertEquals(1000 + i, times.get(i * 33333));
+        }
+        // Too long ago, or never submitted.
+        assertEquals(-1, times.get(5 * 33333));
+        assertEquals(-1, times.get(12345));
+    }
+}
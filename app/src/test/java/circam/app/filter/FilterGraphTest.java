@@ -0,0 +1,103 @@
+package circam.app.filter;
+
+import org.junit.Test;
+
+import circam.app.filter.FilterSpec.Pass;
+
+import static circam.app.filter.FilterSpec.CAMERA;
+import static circam.app.filter.FilterSpec.output;
+import static circam.app.filter.FilterSpec.previousOutput;
+import static org.junit.Assert.*;
+
+/**
+ * Lays out pass graphs and checks which buffers their passes draw to and read.
+ */
+public class FilterGraphTest {
+    private static final int SHADER = 1;
+
+    @Test
+    public void singlePassNeedsNoBuffers() {
+        FilterGraph graph = new FilterGraph(new Pass[] { new Pass(SHADER, CAMERA) });
+        assertEquals(0, graph.getBufferCount());
+        assertEquals(FilterGraph.OUTPUT, graph.target(0, 0));
+    }
+
+    @Test
+    public void chainSharesTwoBuffers() {
+        // Each pass reads only the one before, so two buffers take turns.
+        FilterGraph graph = new FilterGraph(new Pass[] {
+                new Pass(SHADER, CAMERA),
+                new Pass(SHADER, output(0)),
+                new Pass(SHADER, output(1)),
+                new Pass(SHADER, output(2)),
+                new Pass(SHADER, output(3)),
+        });
+        assertEquals(2, graph.getBufferCount());
+        assertEquals(0, graph.getFeedbackBufferCount());
+        for (int p = 0; p < 3; p++) {
+            assertNotEquals(graph.target(p, 0), graph.target(p + 1, 0));
+            assertEquals(graph.target(p, 0), graph.source(output(p), 0));
+        }
+        assertEquals(FilterGraph.OUTPUT, graph.target(4, 0));
+    }
+
+    @Test
+    public void bufferStaysUntilItsLastReader() {
+        // Pass 0 is read by the last pass, so passes 1 and 2 can't have its buffer.
+        FilterGraph graph = new FilterGraph(new Pass[] {
+                new Pass(SHADER, CAMERA),
+                new Pass(SHADER, CAMERA),
+                new Pass(SHADER, output(1)),
+                new Pass(SHADER, output(0), output(2)),
+        });
+        assertEquals(3, graph.getBufferCount());
+        int first = graph.target(0, 0);
+        assertNotEquals(first, graph.target(1, 0));
+        assertNotEquals(first, graph.target(2, 0));
+        assertNotEquals(graph.target(1, 0), graph.target(2, 0));
+    }
+
+    @Test
+    public void voronoiPingPongs() {
+        FilterSpec voronoi = null;
+        for (int i = 0; i < FilterRegistry.size(); i++) {
+            if (FilterRegistry.get(i).name.equals("Voronoi")) {
+                voronoi = FilterRegistry.get(i);
+            }
+        }
+        assertNotNull(voronoi);
+        FilterGraph graph = voronoi.graph;
+
+        // Every buffer pass reads itself back, so each has a pair, and nothing is shared.
+        assertEquals(6, graph.getBufferCount());
+        assertEquals(6, graph.getFeedbackBufferCount());
+        for (int frame = 0; frame < 4; frame++) {
+            for (int p = 0; p < 3; p++) {
+                int drawn = graph.target(p, frame);
+                int previous = graph.source(previousOutput(p), frame);
+                assertNotEquals(drawn, previous);
+                assertEquals(drawn, graph.source(output(p), frame));
+                // What's drawn this frame is what's read back the next.
+                assertEquals(drawn, graph.source(previousOutput(p), frame + 1));
+                assertEquals(p, drawn / 2);
+            }
+            assertEquals(FilterGraph.OUTPUT, graph.target(3, frame));
+        }
+    }
+
+    @Test
+    public void badGraphsAreRejected() {
+        assertRejected(new Pass(SHADER, output(0)));
+        assertRejected(new Pass(SHADER, CAMERA), new Pass(SHADER, output(2)));
+        assertRejected(new Pass(SHADER, previousOutput(0)));
+        assertRejected(new Pass(SHADER, CAMERA), new Pass(SHADER, CAMERA));
+    }
+
+    private static void assertRejected(Pass... passes) {
+        try {
+            new FilterGraph(passes);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
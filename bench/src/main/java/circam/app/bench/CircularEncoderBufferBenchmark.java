@@ -0,0 +1,91 @@
+package circam.app.bench;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import circam.app.CircularEncoderBuffer;
+
+/**
+ * Hot paths of CircularEncoderBuffer, on a buffer that's already full, so every add() has to
+ * evict.  Run with "-prof gc" (the :bench:jmh task does) to see the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CircularEncoderBufferBenchmark {
+    private static final int SPAN_SEC = 20;
+
+    @Param({"30", "60"})
+    public int frameRate;
+
+    @Param({"2000000", "6000000", "20000000"})
+    public int bitRate;
+
+    /** Whole-GOP eviction (the default), or the old one-packet-at-a-time loop. */
+    @Param({"true", "false"})
+    public boolean evictWholeGops;
+
+    private CircularEncoderBuffer mBuffer;
+    private SyntheticStream mStream;
+    private MediaCodec.BufferInfo mInfo;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBuffer = new CircularEncoderBuffer(bitRate, frameRate, SPAN_SEC, true);
+        mBuffer.setEvictWholeGops(evictWholeGops);
+        mStream = new SyntheticStream(bitRate, frameRate, 42);
+        mInfo = new MediaCodec.BufferInfo();
+
+        // Fill to steady state: twice the span is enough to have wrapped around.
+        for (int i = 0; i < frameRate * SPAN_SEC * 2; i++) {
+            add();
+        }
+    }
+
+    private void add() {
+        ByteBuffer packet = mStream.next();
+        mBuffer.add(packet, mStream.flags(), mStream.ptsUsec());
+    }
+
+    /** One packet into a full buffer, including whatever eviction that takes. */
+    @Benchmark
+    public void addSteadyState() {
+        add();
+    }
+
+    /** Finding where a save starts, on a full buffer. */
+    @Benchmark
+    public int getFirstIndex() {
+        return mBuffer.getFirstIndex();
+    }
+
+    /** Walking every packet of a full buffer, as saveVideo() does. */
+    @Benchmark
+    public void saveIteration(Blackhole bh) {
+        int index = mBuffer.getFirstIndex();
+        while (index >= 0) {
+            bh.consume(mBuffer.getChunk(index, mInfo));
+            bh.consume(mInfo.size);
+            index = mBuffer.getNextIndex(index);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package circam.app.bench;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A repeating stream of fake H.264 packets with a realistic size distribution: one sync
+ * frame per second, sync frames about 8x the size of the delta frames between them, and
+ * sizes jittered by up to 25% either way.  The average rate matches the requested bit rate.
+ */
+public class SyntheticStream {
+    private static final int SYNC_TO_DELTA_RATIO = 8;
+    private static final int GOPS = 10;
+
+    private final int[] mSizes;
+    private final ByteBuffer mPayload;
+    private final long mFrameUsec;
+    private final int mFrameRate;
+    private int mNext;
+    private long mPtsUsec;
+
+    public SyntheticStream(int bitRate, int frameRate, long seed) {
+        mFrameRate = frameRate;
+        mFrameUsec = 1000000L / frameRate;
+
+        int bytesPerSec = bitRate / 8;
+        int deltaSize = bytesPerSec / (frameRate - 1 + SYNC_TO_DELTA_RATIO);
+        Random random = new Random(seed);
+        mSizes = new int[frameRate * GOPS];
+        int maxSize = 0;
+        for (int i = 0; i < mSizes.length; i++) {
+            int size = isSync(i) ? deltaSize * SYNC_TO_DELTA_RATIO : deltaSize;
+            size += (int) (size * (random.nextFloat() - 0.5f) * 0.5f);
+            mSizes[i] = size;
+            maxSize = Math.max(maxSize, size);
+        }
+
+        mPayload = ByteBuffer.allocateDirect(maxSize);
+        while (mPayload.hasRemaining()) {
+            mPayload.put((byte) random.nextInt());
+        }
+    }
+
+    private boolean isSync(int frame) {
+        return frame % mFrameRate == 0;
+    }
+
+    /**
+     * Sets up the payload buffer for the next packet, and returns it.  Call flags() and
+     * ptsUsec() before the next call.
+     */
+    public ByteBuffer next() {
+        mNext = (mNext + 1) % mSizes.length;
+        mPtsUsec += mFrameUsec;
+        mPayload.clear();
+        mPayload.limit(mSizes[mNext]);
+        return mPayload;
+    }
+
+    public int flags() {
+        return isSync(mNext) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+    }
+
+    public long ptsUsec() {
+        return mPtsUsec;
+    }
+}